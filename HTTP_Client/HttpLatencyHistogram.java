@@ -0,0 +1,211 @@
+
+/**
+ * HttpLatencyHistogram Class
+ *
+ * Latency histogram in the style of HdrHistogram: values (in micro-seconds) are counted in log-linear buckets,
+ * every power of two split into SUB_BUCKETS linear ones, so any recorded value is known to within 1/SUB_BUCKETS
+ * (better than 1%, two significant digits) from a micro-second up to hours in a fixed few thousand counters.
+ *
+ * A histogram is not thread safe, each load generator thread records into its own and they are added
+ * together once the run is over.
+ *
+ */
+
+import java.io.PrintStream;
+
+public class HttpLatencyHistogram {
+
+    //linear buckets per power of two
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    //largest power of two with its own buckets (2^40 micro-seconds is about 12 days), larger values go in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    //percentile ticks reported per halving of the distance to 100%, as HdrHistogram reports them
+    private static final int TICKS_PER_HALF = 5;
+
+    private final long[] counts;
+    private long total_count;
+    private long min;
+    private long max;
+    private double sum;
+
+    /**
+     * Default no-arg constructor, an empty histogram
+     */
+    public HttpLatencyHistogram() {
+        counts = new long[BUCKETS];
+        total_count = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+    }
+
+    /**
+     * Records a value
+     *
+     * @param micros    the latency in micro-seconds (negative values are recorded as 0)
+     */
+    public void record(long micros) {
+        long v = Math.max(0, micros);
+        counts[bucket(v)]++;
+        total_count++;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+        sum += v;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     *
+     * @param other     the histogram to add
+     */
+    public void add(HttpLatencyHistogram other) {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] += other.counts[b];
+        }
+        total_count += other.total_count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    //index of the bucket holding a value
+    private static int bucket(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //largest value held by a bucket
+    private static long bucketHigh(int b) {
+        if (b < SUB_BUCKETS) {
+            return b;
+        }
+        int exponent = b / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = b % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    //middle value of a bucket
+    private static double bucketMiddle(int b) {
+        if (b < SUB_BUCKETS) {
+            return b;
+        }
+        int exponent = b / SUB_BUCKETS + SUB_BITS - 1;
+        long low = (SUB_BUCKETS + (long) (b % SUB_BUCKETS)) << (exponent - SUB_BITS);
+        return (low + bucketHigh(b)) / 2.0;
+    }
+
+    /**
+     * Finds the value at a percentile
+     *
+     * @param percentile    the percentile, 0 to 100
+     * @return the largest value of the bucket the percentile falls in (capped at the largest value recorded), 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total_count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total_count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(bucketHigh(b), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Prints the percentile distribution in the HdrHistogram text format (which its plotter reads):
+     * value, percentile, count up to the value and 1/(1-percentile), then the summary lines
+     *
+     * @param out       the stream to print to
+     * @param scale     values are divided by this when printed (ie. 1000.0 to print micro-seconds as milli-seconds)
+     */
+    public void printPercentiles(PrintStream out, double scale) {
+        out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        out.println();
+        if (total_count > 0) {
+            double percentile = 0;
+            double step = 50.0 / TICKS_PER_HALF;
+            double next_half = 50;
+            while (true) {
+                long value = getValueAtPercentile(percentile);
+                out.println(String.format("%12.3f %2.12f %10d %14.2f", value / scale, percentile / 100, countUpTo(value),
+                    1 / (1 - percentile / 100)));
+                if (value >= max) {
+                    break;
+                }
+                percentile += step;
+                if (percentile >= next_half - 1e-9) {
+                    step /= 2;
+                    next_half += (100 - next_half) / 2;
+                }
+                if (percentile >= 100 - 1e-9) {
+                    percentile = 100;
+                }
+            }
+            out.println(String.format("%12.3f %2.12f %10d", max / scale, 1.0, total_count));
+        }
+        out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]", getMean() / scale, getStdDeviation() / scale));
+        out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", max / scale, total_count));
+        out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]", BUCKETS / SUB_BUCKETS, SUB_BUCKETS));
+    }
+
+    //values recorded at or below the given one (whole buckets)
+    private long countUpTo(long value) {
+        long seen = 0;
+        int last = bucket(value);
+        for (int b = 0; b <= last; b++) {
+            seen += counts[b];
+        }
+        return seen;
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    public long getTotalCount() {
+        return total_count;
+    }
+
+    public long getMin() {
+        return (total_count > 0) ? min : 0;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return (total_count > 0) ? sum / total_count : 0;
+    }
+
+    //standard deviation, from the bucket middles
+    public double getStdDeviation() {
+        if (total_count == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        double squares = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (counts[b] > 0) {
+                double d = bucketMiddle(b) - mean;
+                squares += d * d * counts[b];
+            }
+        }
+        return Math.sqrt(squares / total_count);
+    }
+}
@@ -0,0 +1,258 @@
+
+/**
+ * HttpLoadConnection Class
+ *
+ * A persistent (keep-alive) Http/1.1 connection to one server for the load generator.
+ * It follows the steps of HttpClient.get (connect, send a GET request, read the response head then the body)
+ * but keeps the connection open across requests, reads the response in bulk instead of byte by byte,
+ * and discards the body rather than saving it, so the client costs as little as possible per request.
+ * Bodies framed by Content-Length, by the chunked transfer coding, or by the server closing the connection are all read.
+ *
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+public class HttpLoadConnection {
+
+    //server host and port
+    private final String srv_host;
+    private final int srv_port;
+
+    //read timeout in milli-seconds (0 means infinity)
+    private final int timeout;
+
+    //server socket and its streams, null while not connected
+    private Socket srv_sock;
+    private InputStream srv_sock_in;
+    private OutputStream srv_sock_out;
+
+    //response bytes recieved but not yet consumed are resp_buffer[resp_start, resp_end)
+    private final byte[] resp_buffer;
+    private int resp_start;
+    private int resp_end;
+
+    //request bytes by path (built once)
+    private final HashMap<String, byte[]> requests;
+
+    //body bytes of the last response, and the connections opened so far
+    private long body_bytes;
+    private long connects;
+
+    /**
+     * Constructor for HttpLoadConnection, the connection is opened by the first request
+     *
+     * @param host      the server host name
+     * @param port      the server port number
+     * @param timeout   read timeout in milli-seconds, 0 means infinity
+     */
+    public HttpLoadConnection(String host, int port, int timeout) {
+        srv_host = host;
+        srv_port = port;
+        this.timeout = timeout;
+        resp_buffer = new byte[64*1024];
+        requests = new HashMap<String, byte[]>();
+    }
+
+    /**
+     * Sends a GET request for a path and reads the whole response, opening the connection first if needed
+     * (the connection is closed afterwards if the server said it would close it)
+     *
+     * @param path  the object path
+     * @return the response status code
+     * @throws IOException if the connection fails or the response is malformed (the connection is closed)
+     */
+    public int get(String path) throws IOException {
+        try {
+            if (srv_sock == null) {
+                connect();
+            }
+            byte[] request = requests.get(path);
+            if (request == null) {
+                request = generate_HttpReq(path);
+                requests.put(path, request);
+            }
+            srv_sock_out.write(request);
+            return read_ServerResponse();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    //establishes the connection to the server
+    private void connect() throws IOException {
+        srv_sock = new Socket();
+        srv_sock.setTcpNoDelay(true);
+        srv_sock.connect(new InetSocketAddress(srv_host, srv_port), (timeout > 0) ? timeout : 0);
+        srv_sock.setSoTimeout(timeout);
+        srv_sock_in = srv_sock.getInputStream();
+        srv_sock_out = srv_sock.getOutputStream();
+        resp_start = 0;
+        resp_end = 0;
+        connects++;
+    }
+
+    //builds the GET request for a path (the connection is kept open, Http/1.1 default)
+    private byte[] generate_HttpReq(String path) {
+        String httpReq =
+            "GET " + path + " HTTP/1.1" + "\r\n" +
+            "Host: " + srv_host + ((srv_port != 80) ? ":" + srv_port : "") + "\r\n" +
+            "\r\n";
+        return httpReq.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    //reads the response head and skips its body, returns the status code
+    private int read_ServerResponse() throws IOException {
+        String status_line = readLine();
+        if (!status_line.startsWith("HTTP/1.") || status_line.length() < 12) {
+            throw new IOException("malformed response status line: " + status_line);
+        }
+        int status = Integer.parseInt(status_line.substring(9, 12));
+
+        long content_length = -1;
+        boolean chunked = false;
+        boolean closing = status_line.startsWith("HTTP/1.0");
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                content_length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                closing = value.equalsIgnoreCase("close");
+            }
+        }
+
+        //responses to GET without a body (1xx, 204, 304), then chunked, then Content-Length, else read until the server closes
+        body_bytes = 0;
+        if (status / 100 == 1 || status == 204 || status == 304) {
+            // no body
+        } else if (chunked) {
+            long size;
+            while ((size = Long.parseLong(chunkSize(readLine()), 16)) > 0) {
+                skip(size);
+                body_bytes += size;
+                readLine();
+            }
+            //trailer fields, up to the empty line
+            while (!readLine().isEmpty()) {
+                // Ok, ignore
+            }
+        } else if (content_length >= 0) {
+            skip(content_length);
+            body_bytes = content_length;
+        } else {
+            while (fill()) {
+                body_bytes += resp_end - resp_start;
+                resp_start = resp_end;
+            }
+            closing = true;
+        }
+
+        if (closing) {
+            close();
+        }
+        return status;
+    }
+
+    //the hex size of a chunk size line (without any chunk extensions)
+    private static String chunkSize(String line) {
+        int semicolon = line.indexOf(';');
+        return ((semicolon < 0) ? line : line.substring(0, semicolon)).trim();
+    }
+
+    //reads a line ending in LF (the CR before it is dropped)
+    private String readLine() throws IOException {
+        int from = resp_start;
+        while (true) {
+            for (int i = from; i < resp_end; i++) {
+                if (resp_buffer[i] == '\n') {
+                    int end = (i > resp_start && resp_buffer[i - 1] == '\r') ? i - 1 : i;
+                    String line = new String(resp_buffer, resp_start, end - resp_start, StandardCharsets.ISO_8859_1);
+                    resp_start = i + 1;
+                    return line;
+                }
+            }
+            from = resp_end - resp_start;
+            if (!fill()) {
+                throw new IOException("connection closed by server part way through a response");
+            }
+            from = resp_start + from;
+        }
+    }
+
+    //consumes n bytes of body
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            if (resp_start == resp_end && !fill()) {
+                throw new IOException("connection closed by server part way through a response body");
+            }
+            int take = (int) Math.min(n, resp_end - resp_start);
+            resp_start += take;
+            n -= take;
+        }
+    }
+
+    //reads more bytes into the buffer (moving unconsumed bytes to the front first), returns false at end of stream
+    private boolean fill() throws IOException {
+        if (resp_start == resp_end) {
+            resp_start = 0;
+            resp_end = 0;
+        } else if (resp_end == resp_buffer.length) {
+            if (resp_start == 0) {
+                throw new IOException("response line longer than " + resp_buffer.length + " bytes");
+            }
+            System.arraycopy(resp_buffer, resp_start, resp_buffer, 0, resp_end - resp_start);
+            resp_end -= resp_start;
+            resp_start = 0;
+        }
+        int n = srv_sock_in.read(resp_buffer, resp_end, resp_buffer.length - resp_end);
+        if (n == -1) {
+            return false;
+        }
+        resp_end += n;
+        return true;
+    }
+
+    /**
+     * Closes the connection (the next request opens a new one)
+     */
+    public void close() {
+        if (srv_sock != null) {
+            try {
+                srv_sock.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+        srv_sock = null;
+        srv_sock_in = null;
+        srv_sock_out = null;
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //body bytes of the last response
+    public long getBodyBytes() {
+        return body_bytes;
+    }
+
+    //connections opened so far
+    public long getConnects() {
+        return connects;
+    }
+}
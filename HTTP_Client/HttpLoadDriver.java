@@ -0,0 +1,193 @@
+
+/**
+ * A driver class for HttpLoadGenerator
+ *
+ * Benchmarks an Http server (ie. the WebServer on loopback) with a closed or open loop of GET requests
+ * and reports throughput and the latency distribution.
+ *
+ * The URL mix is given either as a comma separated list (equal weights):
+ * 		-u http://localhost:2025/index.html,http://localhost:2025/simplePic.jpg
+ * or as a file with one "<weight> <url>" per line (blank lines and lines starting with # are skipped):
+ * 		-f mix.txt
+ *
+ * Other options:
+ * 		-c <n>		virtual users (closed loop) or connections (open loop), default 16
+ * 		-r <n>		requests per second for an open loop, default 0 (closed loop)
+ * 		-z <ms>		closed loop think time between a response and the next request, default 0
+ * 		-w <s>		warm-up seconds (not recorded), default 2
+ * 		-d <s>		measured seconds, default 10
+ * 		-t <ms>		read timeout of each connection, default 30000
+ * 		-hg <file>	also write the latency distribution (milli-seconds) to a .hgrm file for the HdrHistogram plotter
+ * 		-v <level>	log level: all, info, off (failed requests are logged at all), default info
+ *
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.logging.*;
+
+
+public class HttpLoadDriver {
+	private static final Logger logger = Logger.getLogger("HttpClient");
+
+	public static void main(String[] args) {
+		// parse command line args
+		HashMap<String, String> params = parseCommandLine(args);
+		if (!params.containsKey("-u") && !params.containsKey("-f")) {
+			System.out.println("incorrect usage, a url mix is required (-u url[,url...] or -f mixfile)");
+			System.out.println("try again");
+			System.exit(0);
+		}
+
+		// set the parameters
+		int users = Integer.parseInt( params.getOrDefault("-c", "16") ); // virtual users or connections
+		double rate = Double.parseDouble( params.getOrDefault("-r", "0") ); // open loop arrival rate, 0 for a closed loop
+		long think = Long.parseLong( params.getOrDefault("-z", "0") ); // closed loop think time (milli-seconds)
+		int warmup = Integer.parseInt( params.getOrDefault("-w", "2") ); // warm-up (seconds)
+		int duration = Integer.parseInt( params.getOrDefault("-d", "10") ); // measured period (seconds)
+		int timeout = Integer.parseInt( params.getOrDefault("-t", "30000") ); // read timeout (milli-seconds)
+		Level logLevel = Level.parse( params.getOrDefault("-v", "info").toUpperCase() ); // log levels: all, info, off
+
+		// set log level
+		setLogLevel(logLevel);
+
+		HttpLoadGenerator generator = null;
+		try {
+			List<HttpLoadGenerator.Target> mix = params.containsKey("-f") ? readMix(params.get("-f")) : listMix(params.get("-u"));
+			generator = new HttpLoadGenerator(mix, users, rate, think, warmup, duration, timeout);
+		} catch (IllegalArgumentException | IOException e) {
+			System.out.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+
+		System.out.println((generator.isOpenLoop() ? "open loop at " + rate + " requests/s over " + users + " connections" : "closed loop with " + users + " users")
+			+ ", " + warmup + " s warm-up, " + duration + " s measured");
+		for (HttpLoadGenerator.Target t : generator.getTargets()) {
+			System.out.println("  " + t + " (weight " + t.weight + ")");
+		}
+
+		try {
+			generator.run();
+		} catch (InterruptedException e) {
+			System.out.println("Error: the load run was interrupted");
+			System.exit(1);
+		}
+
+		report(generator, System.out);
+		if (params.containsKey("-hg")) {
+			try (PrintStream hgrm = new PrintStream(params.get("-hg"), "US-ASCII")) {
+				generator.getLatency().printPercentiles(hgrm, 1000.0);
+			} catch (IOException e) {
+				System.out.println("Error: could not write the latency distribution to " + params.get("-hg"));
+			}
+		}
+
+		// get rid of any lingering threads/timers
+		System.exit(0);
+	}
+
+
+	// print the throughput, status codes and latency distribution of a run
+	private static void report(HttpLoadGenerator generator, PrintStream out) {
+		double secs = generator.getDurationSeconds();
+		out.println();
+		out.println(String.format("requests     %d (%.1f requests/s, %.2f MB/s of body)", generator.getCompleted(),
+			generator.getCompleted() / secs, generator.getBytes() / 1048576.0 / secs));
+		out.println(String.format("errors       %d (connect or read failures)", generator.getErrors()));
+		out.println(String.format("connections  %d opened", generator.getConnects()));
+		if (generator.isOpenLoop()) {
+			out.println(String.format("backlog      %d scheduled requests never sent (the server fell behind the arrival rate)", generator.getBacklog()));
+		}
+		long[] statuses = generator.getStatuses();
+		StringBuilder codes = new StringBuilder();
+		for (int s = 0; s < statuses.length; s++) {
+			if (statuses[s] > 0) {
+				codes.append(" ").append(s).append(": ").append(statuses[s]);
+			}
+		}
+		out.println("status codes" + codes);
+
+		HttpLatencyHistogram latency = generator.getLatency();
+		out.println();
+		out.println("latency (ms)" + (generator.isOpenLoop() ? ", from each request's scheduled send time" : ""));
+		summary(out, latency);
+		if (generator.isOpenLoop()) {
+			out.println("service time (ms), from each request being sent");
+			summary(out, generator.getServiceTime());
+		}
+		out.println();
+		out.println("latency distribution (ms)");
+		latency.printPercentiles(out, 1000.0);
+	}
+
+	// print the main percentiles of a histogram in milli-seconds
+	private static void summary(PrintStream out, HttpLatencyHistogram h) {
+		out.println(String.format("  min %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  p99.99 %.3f  max %.3f  mean %.3f",
+			h.getMin() / 1000.0, h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+			h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getValueAtPercentile(99.99) / 1000.0,
+			h.getMax() / 1000.0, h.getMean() / 1000.0));
+	}
+
+	// read a url mix given as a comma separated list
+	private static List<HttpLoadGenerator.Target> listMix(String urls) {
+		List<HttpLoadGenerator.Target> mix = new ArrayList<HttpLoadGenerator.Target>();
+		for (String url : urls.split(",")) {
+			if (!url.trim().isEmpty()) {
+				mix.add(new HttpLoadGenerator.Target(url.trim(), 1));
+			}
+		}
+		return mix;
+	}
+
+	// read a url mix file of "<weight> <url>" lines
+	private static List<HttpLoadGenerator.Target> readMix(String file) throws IOException {
+		List<HttpLoadGenerator.Target> mix = new ArrayList<HttpLoadGenerator.Target>();
+		for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split("\\s+", 2);
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("url mix lines must be \"<weight> <url>\": " + line);
+			}
+			try {
+				mix.add(new HttpLoadGenerator.Target(parts[1], Double.parseDouble(parts[0])));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("url mix weight is not a number: " + line);
+			}
+		}
+		return mix;
+	}
+
+
+	// parse command line arguments
+	private static HashMap<String, String> parseCommandLine(String[] args) {
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		int i = 0;
+		while ((i + 1) < args.length) {
+			params.put(args[i], args[i+1]);
+			i += 2;
+		}
+
+		return params;
+	}
+
+
+	// set the global log level and format
+	private static void setLogLevel(Level level) {
+		System.setProperty("java.util.logging.SimpleFormatter.format", "%5$s %n");
+
+		ConsoleHandler handler = new ConsoleHandler();
+		handler.setLevel(level);
+		logger.addHandler(handler);
+		logger.setLevel(level);
+		logger.setUseParentHandlers(false);
+	}
+
+}
@@ -0,0 +1,371 @@
+
+/**
+ * HttpLoadGenerator Class
+ *
+ * Generates Http GET load against one or more servers from a weighted mix of URLs, in one of two ways:
+ *  closed loop - a fixed number of virtual users, each sending its next request as soon as the previous
+ *                response is read (after an optional think time). Throughput is whatever the server sustains,
+ *                latency is measured from sending each request.
+ *  open loop   - requests are scheduled at a fixed arrival rate whatever the server does, and handed to a pool of
+ *                connections. Latency is measured from when each request was scheduled to be sent, so time a request
+ *                spends waiting because the server (or every connection) is busy is counted rather than hidden
+ *                (no coordinated omission); the time from actually sending it is reported separately as service time.
+ *
+ * Only requests started within the measured period (after the warm-up) are recorded.
+ * Each thread records into its own HttpLatencyHistogram and counters, added together once the run is over.
+ *
+ */
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+public class HttpLoadGenerator {
+
+	private static final Logger logger = Logger.getLogger("HttpClient"); // global logger
+
+    /**
+     * Target Class
+     * A URL of the mix, with its weight
+     */
+    public static class Target {
+        final String host;
+        final int port;
+        final String path;
+        final double weight;
+
+        /**
+         * Parses a URL of the form http://hostname[:port]/[pathname] (the same form HttpClient accepts)
+         *
+         * @param url       the URL
+         * @param weight    the share of requests sent to it, relative to the other URLs of the mix
+         * @throws IllegalArgumentException if the URL is malformed or not http
+         */
+        public Target(String url, double weight) {
+            URI uri;
+            try {
+                uri = new URI(url);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("improperly formatted url: " + url);
+            }
+            if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+                throw new IllegalArgumentException("this program only accepts 'http' urls with a host name: " + url);
+            }
+            host = uri.getHost();
+            port = (uri.getPort() > 0) ? uri.getPort() : 80;
+            //no pathname defaults to /index.html, as in HttpClient
+            String p = uri.getRawPath();
+            if (p == null || p.isEmpty() || p.equals("/")) {
+                p = "/index.html";
+            }
+            path = (uri.getRawQuery() != null) ? p + "?" + uri.getRawQuery() : p;
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("url weight must be positive: " + url);
+            }
+            this.weight = weight;
+        }
+
+        //the server the URL is on, connections are kept per server
+        String server() {
+            return host + ":" + port;
+        }
+
+        public String toString() {
+            return "http://" + server() + path;
+        }
+    }
+
+    //the URL mix and its cumulative weights
+    private final Target[] targets;
+    private final double[] cumulative;
+
+    //closed loop: users (connections) and think time; open loop: connections and arrival rate (requests per second)
+    private final int users;
+    private final double rate;
+    private final long think_nanos;
+
+    //warm-up and measured period, read timeout of each connection
+    private final long warmup_nanos;
+    private final long duration_nanos;
+    private final int timeout;
+
+    //start and end of the measured period (System.nanoTime), the run stops at its end
+    private long measure_start;
+    private long measure_end;
+    private volatile boolean stopping;
+
+    //open loop: the scheduled send times waiting for a connection
+    private LinkedBlockingQueue<Long> schedule;
+
+    //results, added up from the workers once the run is over
+    private final HttpLatencyHistogram latency;
+    private final HttpLatencyHistogram service;
+    private long completed;
+    private long errors;
+    private long bytes;
+    private long connects;
+    private long backlog;
+    private final long[] statuses;
+
+    /**
+     * Constructor for HttpLoadGenerator
+     *
+     * @param mix       the URLs to request and thier weights
+     * @param users     closed loop: the virtual users; open loop: the connections requests are sent over
+     * @param rate      requests per second for an open loop, 0 for a closed loop
+     * @param think     closed loop: milli-seconds each user waits between a response and its next request
+     * @param warmup    seconds of load before the measured period (not recorded)
+     * @param duration  seconds of the measured period
+     * @param timeout   read timeout of each connection in milli-seconds, 0 means infinity
+     */
+    public HttpLoadGenerator(List<Target> mix, int users, double rate, long think, int warmup, int duration, int timeout) {
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("the url mix is empty");
+        }
+        targets = mix.toArray(new Target[0]);
+        cumulative = new double[targets.length];
+        double total = 0;
+        for (int i = 0; i < targets.length; i++) {
+            total += targets[i].weight;
+            cumulative[i] = total;
+        }
+        this.users = Math.max(1, users);
+        this.rate = rate;
+        think_nanos = think * 1000000L;
+        warmup_nanos = warmup * 1000000000L;
+        duration_nanos = Math.max(1, duration) * 1000000000L;
+        this.timeout = timeout;
+        latency = new HttpLatencyHistogram();
+        service = new HttpLatencyHistogram();
+        statuses = new long[600];
+    }
+
+    /**
+     * Runs the load for the warm-up and measured periods and adds up the results
+     *
+     * @throws InterruptedException if interrupted while waiting for the run
+     */
+    public void run() throws InterruptedException {
+        boolean open_loop = isOpenLoop();
+        if (open_loop) {
+            schedule = new LinkedBlockingQueue<Long>();
+        }
+        long start = System.nanoTime();
+        measure_start = start + warmup_nanos;
+        measure_end = measure_start + duration_nanos;
+        stopping = false;
+
+        Worker[] workers = new Worker[users];
+        for (int i = 0; i < users; i++) {
+            workers[i] = new Worker(i, open_loop);
+            workers[i].start();
+        }
+
+        if (open_loop) {
+            //send times are fixed up front by the rate, late ones are queued rather than skipped
+            double interval = 1e9 / rate;
+            long sent = 0;
+            long now;
+            while ((now = System.nanoTime()) < measure_end) {
+                long next;
+                while ((next = start + (long) (sent * interval)) <= now) {
+                    schedule.offer(next);
+                    sent++;
+                }
+                LockSupport.parkNanos(Math.min(next, measure_end) - now);
+            }
+        } else {
+            long now;
+            while ((now = System.nanoTime()) < measure_end) {
+                Thread.sleep(Math.max(1, (measure_end - now) / 1000000));
+            }
+        }
+        stopping = true;
+
+        for (Worker w : workers) {
+            w.join();
+            latency.add(w.latency);
+            service.add(w.service);
+            completed += w.completed;
+            errors += w.errors;
+            bytes += w.bytes;
+            for (HttpLoadConnection c : w.connections.values()) {
+                connects += c.getConnects();
+            }
+            for (int s = 0; s < statuses.length; s++) {
+                statuses[s] += w.statuses[s];
+            }
+        }
+        if (open_loop) {
+            //scheduled within the measured period but never sent
+            for (Long t : schedule) {
+                if (t >= measure_start) {
+                    backlog++;
+                }
+            }
+        }
+    }
+
+    //picks a URL of the mix by weight
+    private Target pick() {
+        if (targets.length == 1) {
+            return targets[0];
+        }
+        double r = ThreadLocalRandom.current().nextDouble(cumulative[cumulative.length - 1]);
+        for (int i = 0; i < cumulative.length; i++) {
+            if (r < cumulative[i]) {
+                return targets[i];
+            }
+        }
+        return targets[targets.length - 1];
+    }
+
+    /**
+     * Worker Class
+     * A virtual user (closed loop) or a connection taking scheduled requests (open loop), with its own results
+     */
+    private class Worker extends Thread {
+        final boolean open_loop;
+        final HashMap<String, HttpLoadConnection> connections;
+        final HttpLatencyHistogram latency;
+        final HttpLatencyHistogram service;
+        final long[] statuses;
+        long completed;
+        long errors;
+        long bytes;
+
+        Worker(int id, boolean open) {
+            super("HttpLoadWorker-" + id);
+            setDaemon(true);
+            open_loop = open;
+            connections = new HashMap<String, HttpLoadConnection>();
+            latency = new HttpLatencyHistogram();
+            service = new HttpLatencyHistogram();
+            statuses = new long[600];
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    long intended;
+                    if (open_loop) {
+                        //requests still queued when the run ends are left unsent (and counted as backlog)
+                        if (stopping) {
+                            break;
+                        }
+                        Long t = schedule.poll(10, TimeUnit.MILLISECONDS);
+                        if (t == null) {
+                            continue;
+                        }
+                        intended = t;
+                    } else {
+                        if (System.nanoTime() >= measure_end) {
+                            break;
+                        }
+                        intended = System.nanoTime();
+                    }
+                    request(pick(), intended);
+                    if (!open_loop && think_nanos > 0) {
+                        LockSupport.parkNanos(think_nanos);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Ok, stop
+            } finally {
+                for (HttpLoadConnection c : connections.values()) {
+                    c.close();
+                }
+            }
+        }
+
+        //sends one request, recording it if it was due within the measured period
+        private void request(Target t, long intended) {
+            HttpLoadConnection c = connections.get(t.server());
+            if (c == null) {
+                c = new HttpLoadConnection(t.host, t.port, timeout);
+                connections.put(t.server(), c);
+            }
+            long sent = System.nanoTime();
+            boolean measured = intended >= measure_start && intended < measure_end;
+            try {
+                int status = c.get(t.path);
+                long done = System.nanoTime();
+                if (measured) {
+                    latency.record((done - intended) / 1000);
+                    service.record((done - sent) / 1000);
+                    completed++;
+                    bytes += c.getBodyBytes();
+                    if (status >= 0 && status < statuses.length) {
+                        statuses[status]++;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                if (measured) {
+                    errors++;
+                }
+                logger.fine("Error: request for " + t + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    public boolean isOpenLoop() {
+        return rate > 0;
+    }
+
+    //latency of the requests recorded, from thier scheduled send time in an open loop
+    public HttpLatencyHistogram getLatency() {
+        return latency;
+    }
+
+    //time from sending each request to reading its whole response
+    public HttpLatencyHistogram getServiceTime() {
+        return service;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    //body bytes recieved
+    public long getBytes() {
+        return bytes;
+    }
+
+    //connections opened (more than the users when the server closes persistent connections)
+    public long getConnects() {
+        return connects;
+    }
+
+    //open loop: requests scheduled within the measured period that were never sent
+    public long getBacklog() {
+        return backlog;
+    }
+
+    //responses by status code
+    public long[] getStatuses() {
+        return statuses;
+    }
+
+    public double getDurationSeconds() {
+        return duration_nanos / 1e9;
+    }
+
+    public Target[] getTargets() {
+        return targets;
+    }
+}
@@ -19,7 +19,7 @@ import java.util.logging.*;
 public class ServerDriver {
 
 	private static final Logger logger = Logger.getLogger("WebServer"); // global logger
-	private static final int TERM_WAIT_TIME = 10000; // wait for server process to terminate (milli-seconds)
+	private static final int TERM_WAIT_TIME = 10000; // wait for server process to terminate, beyond its drain timeout (milli-seconds)
     
 	public static void main(String[] args) {
         // parse command line args
@@ -28,14 +28,45 @@ public class ServerDriver {
         // set the parameters
         int serverPort = Integer.parseInt( params.getOrDefault("-p", "2025") ); // server port number
         int conTimeout = Integer.parseInt( params.getOrDefault("-t", "0") ); // idle connection timeout in milli-seconds, 0 means infinity
-        Level logLevel = Level.parse( params.getOrDefault("-v", "all").toUpperCase() ); // log levels: all, info, off
+        Level logLevel = Level.parse( params.getOrDefault("-v", "info").toUpperCase() ); // log levels: all, info, off
+        WebServerConfig config = new WebServerConfig(conTimeout);
+        config.maxRequests = Integer.parseInt( params.getOrDefault("-k", Integer.toString(config.maxRequests)) ); // requests per persistent connection, 1 disables keep-alive
+        config.headerTimeout = Integer.parseInt( params.getOrDefault("-ht", Integer.toString(config.headerTimeout)) ); // time to recieve a started request head (milli-seconds), 0 uses -t
+        config.writeTimeout = Integer.parseInt( params.getOrDefault("-wt", Integer.toString(config.writeTimeout)) ); // time a response may make no progress (milli-seconds), 0 means infinity
+        config.minSendRate = Integer.parseInt( params.getOrDefault("-mr", Integer.toString(config.minSendRate)) ); // bytes per second a response must average past the write timeout, 0 means no minimum
+        config.tcpNoDelay = Boolean.parseBoolean( params.getOrDefault("-nd", Boolean.toString(config.tcpNoDelay)) ); // TCP_NODELAY on client connections
+        config.sendfileThreshold = Long.parseLong( params.getOrDefault("-z", Long.toString(config.sendfileThreshold)) ); // smallest object sent zero-copy (bytes)
+        config.cacheBytes = Long.parseLong( params.getOrDefault("-c", Long.toString(config.cacheBytes)) ); // content cache budget (bytes), 0 disables it
+        config.cacheMaxEntry = Long.parseLong( params.getOrDefault("-ce", Long.toString(config.cacheMaxEntry)) ); // largest object cached (bytes)
+        config.cacheStore = params.getOrDefault("-cs", config.cacheStore); // content cache store: heap, offheap
+        config.cacheMapThreshold = Long.parseLong( params.getOrDefault("-cm", Long.toString(config.cacheMapThreshold)) ); // offheap store: larger objects are memory-mapped (bytes)
+        config.cachePoolBytes = Long.parseLong( params.getOrDefault("-cp", Long.toString(config.cachePoolBytes)) ); // offheap store: released buffers kept for reuse (bytes)
+        config.indexEntries = Integer.parseInt( params.getOrDefault("-ix", Integer.toString(config.indexEntries)) ); // files kept in the file index, 0 disables it
+        config.negativeEntries = Integer.parseInt( params.getOrDefault("-nc", Integer.toString(config.negativeEntries)) ); // missing paths kept in the negative cache, 0 disables it
+        config.gzipLevel = Integer.parseInt( params.getOrDefault("-gz", Integer.toString(config.gzipLevel)) ); // gzip level of compressed variants (1-9), 0 disables gzip
+        config.accessLog = params.getOrDefault("-al", config.accessLog); // access log file, off disables it
+        config.accessLogRotate = Long.parseLong( params.getOrDefault("-ar", Long.toString(config.accessLogRotate)) ); // access log rotation size (bytes)
+        config.metricsPath = params.getOrDefault("-mp", config.metricsPath); // request path of the metrics (ie. /metrics), off disables them
+        config.mode = params.getOrDefault("-m", config.mode); // server modes: thread, virtual, pool, nio
+        config.reactors = Integer.parseInt( params.getOrDefault("-r", Integer.toString(config.reactors)) ); // event loops in nio mode
+        config.loaders = Integer.parseInt( params.getOrDefault("-nl", Integer.toString(config.loaders)) ); // threads reading objects and filling the content cache in nio mode
+        config.workers = Integer.parseInt( params.getOrDefault("-w", Integer.toString(config.workers)) ); // worker threads in pool mode
+        config.queueDepth = Integer.parseInt( params.getOrDefault("-q", Integer.toString(config.queueDepth)) ); // connections waiting for a worker before 503
+        config.clientQueueDepth = Integer.parseInt( params.getOrDefault("-qc", Integer.toString(config.clientQueueDepth)) ); // waiting connections allowed per client ip
+        config.drainTimeout = Integer.parseInt( params.getOrDefault("-dt", Integer.toString(config.drainTimeout)) ); // time in-flight responses get to finish on shutdown (milli-seconds)
 
         // standard output
         setLogLevel(logLevel);
 
         System.out.println("log level is set to " + logLevel);
-        System.out.println("starting the server on port " + serverPort);
-        WebServer server = new WebServer(serverPort, conTimeout);
+        System.out.println("starting the server on port " + serverPort + " in " + config.mode + " mode");
+        WebServer server = null;
+        try {
+            server = new WebServer(serverPort, config);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
         
         // start the server
         server.start();
@@ -50,8 +81,23 @@ public class ServerDriver {
             System.out.println();
             System.out.println("server is shutting down...");
             server.shutdown();
-            server.join(TERM_WAIT_TIME);
+            server.join(config.drainTimeout + TERM_WAIT_TIME);
             System.out.println("server stopped");
+            if (server.getWorkerPool() != null) {
+                System.out.println("worker pool: " + server.getWorkerPool());
+            }
+            if (server.getContentCache() != null) {
+                System.out.println("content cache: " + server.getContentCache());
+            }
+            if (server.getFileIndex() != null) {
+                System.out.println("file index: " + server.getFileIndex());
+            }
+            if (server.getNegativeCache() != null) {
+                System.out.println("negative cache: " + server.getNegativeCache());
+            }
+            if (server.getAccessLog() != null) {
+                System.out.println("access log: " + server.getAccessLog());
+            }
         } catch (InterruptedException e) {
             // Ok, ignore
             System.out.println("server did not shutdown properly");
@@ -4,7 +4,13 @@
  * WebServer Class
  * 
  * Implements a multi-threaded web server
- * supporting non-persistent connections.
+ * supporting persistent (keep-alive) and non-persistent connections.
+ * 
+ * The server runs in one of four modes:
+ *  thread  - a WebServerClientProcess platform thread is started for every accepted connection
+ *  virtual - a WebServerClientProcess virtual thread is started for every accepted connection (Java 21+)
+ *  pool    - WebServerClientProcesses are queued for a bounded WebServerWorkerPool, connections that do not fit get 503
+ *  nio     - accepted connections are spread across a fixed set of WebServerReactor event loops
  * 
  */
 
@@ -13,7 +19,11 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 import java.net.*;
@@ -24,7 +34,14 @@ public class WebServer extends Thread {
 	// global logger object, configures in the driver class
 	private static final Logger logger = Logger.getLogger("WebServer");
 
-    //server socket
+    //server modes
+    public static final String MODE_THREAD = "thread";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_POOL = "pool";
+    public static final String MODE_NIO = "nio";
+
+    //server socket (and the channel it is opened from)
+    private ServerSocketChannel srv_chan;
     private ServerSocket srv_sock;
     //server ip address
     private InetAddress srv_ip;
@@ -35,15 +52,51 @@ public class WebServer extends Thread {
     private int timeout;
 
     //the flag that is set to T when the server is directed to shutdown
-    public static boolean shutdownRequested;
+    public static volatile boolean shutdownRequested;
 
     //a very small timeout value set on server socket
     //which causes the server to periodically check if its host machine has requested to quit
     private final int SHUTDOWN_CHECKTIME = 100;
 
-    //This array list will essentially store each currently executing WebServerClientProcess created whenever
-    //a client connection is accepted and created by the webserver
-    private ArrayList<WebServerClientProcess> clientProcess_Threads;
+    //registry of the open connections in the threaded modes, each WebServerClientProcess is registered when its
+    //client connection is accepted and removes itself once the connection is closed
+    private WebServerConnectionRegistry connections;
+
+    //the server mode and, in nio mode, the event loops accepted connections are handed to
+    private String mode;
+    private WebServerReactor[] reactors;
+    private int next_reactor;
+
+    //in nio mode, the threads the event loops hand object reads and the loads of the content cache to
+    private ExecutorService loaders;
+
+    //in thread and virtual mode, the factory creating the thread each WebServerClientProcess runs on
+    private ThreadFactory clientProcess_ThreadFactory;
+
+    //in pool mode, the bounded pool WebServerClientProcesses are queued for
+    private WebServerWorkerPool worker_pool;
+
+    //in the threaded modes, the timer wheel enforcing the timeouts of every connection (null if there are none)
+    //(nio mode event loops each keep thier own)
+    private WebServerTimerWheel timer_wheel;
+
+    //the server settings
+    private WebServerConfig config;
+
+    //in-memory cache of served objects shared by all connections, null when disabled
+    private WebServerContentCache content_cache;
+
+    //metadata index of the document root shared by all connections and the content cache, null when disabled
+    private WebServerFileIndex file_index;
+
+    //paths recently found missing shared by all connections, null when disabled
+    private WebServerNegativeCache negative_cache;
+
+    //access log shared by all connections, null when disabled
+    private WebServerAccessLog access_log;
+
+    //metrics recorded by all connections and served at the metrics path, null when disabled
+    private WebServerMetrics metrics;
 	
 	
     /**
@@ -54,16 +107,51 @@ public class WebServer extends Thread {
      * 
      */
 	public WebServer(int port, int timeout){
+        this(port, new WebServerConfig(timeout));
+    }
+
+    /**
+     * Constructor to initialize the web server with the given settings
+     * 
+     * @param port 	    The server port at which the web server listens > 1024
+     * @param config    The server settings (mode, timeout, event loop and worker pool sizes)
+     * 
+     */
+	public WebServer(int port, WebServerConfig config){
 
-        //initialize client thread list
-        clientProcess_Threads = new ArrayList<WebServerClientProcess>();
+        this.config = config;
+        int timeout = config.timeout;
+        int reactors = config.reactors;
+
+        //initialize server mode
+        mode = config.mode;
+        if (!mode.equals(MODE_THREAD) && !mode.equals(MODE_VIRTUAL) && !mode.equals(MODE_POOL) && !mode.equals(MODE_NIO)) {
+            throw new IllegalArgumentException("unknown server mode: " + mode);
+        }
+
+        //check the content cache store
+        if (!config.cacheStore.equals("heap") && !config.cacheStore.equals("offheap")) {
+            throw new IllegalArgumentException("unknown content cache store: " + config.cacheStore);
+        }
+
+        //initialize the factory for client process threads
+        if (mode.equals(MODE_VIRTUAL)) {
+            clientProcess_ThreadFactory = WebServerThreads.virtualFactory("WebServerClientProcess");
+        } else {
+            clientProcess_ThreadFactory = WebServerThreads.platformFactory("WebServerClientProcess");
+        }
+
+        //initialize the connection registry
+        connections = new WebServerConnectionRegistry();
 
         //initialize timeout value
         this.timeout = timeout;
 
         //Create server socket to listen for client requests
+        //(opened from a channel so that accepted sockets can also be driven as channels)
         try {
-            srv_sock = new ServerSocket();
+            srv_chan = ServerSocketChannel.open();
+            srv_sock = srv_chan.socket();
             srv_ip = InetAddress.getLocalHost();
 
             //DEBUGGING
@@ -78,7 +166,81 @@ public class WebServer extends Thread {
             System.exit(1);
         }
         shutdownRequested = false;
-        
+
+        //index the document root (the server carries on looking files up on disk if it can not be indexed)
+        if (config.indexEntries > 0) {
+            try {
+                file_index = new WebServerFileIndex(System.getProperty("user.dir"), config.indexEntries);
+            } catch (IOException e) {
+                System.out.println("Error: could not index the document root, files will be looked up on disk");
+                e.printStackTrace();
+            }
+        }
+
+        //create the negative cache (it follows the file index to learn of created files)
+        if (config.negativeEntries > 0) {
+            negative_cache = new WebServerNegativeCache(config.negativeEntries, file_index);
+        }
+
+        //create the content cache
+        if (config.cacheBytes > 0) {
+            WebServerCacheStore store;
+            if (config.cacheStore.equals("offheap")) {
+                store = new WebServerOffHeapStore(config.cacheMapThreshold, config.cachePoolBytes);
+            } else {
+                store = new WebServerHeapStore();
+            }
+            content_cache = new WebServerContentCache(config.cacheBytes, config.cacheMaxEntry, config.gzipLevel, store, file_index);
+        }
+
+        //create the access log and start its writer
+        if (!config.accessLog.equals("off")) {
+            try {
+                access_log = new WebServerAccessLog(config.accessLog, config.accessLogRotate, config.accessLogKeep, config.accessLogRing);
+            } catch (IOException e) {
+                System.out.println("Error: could not open the access log " + config.accessLog);
+                e.printStackTrace();
+                System.exit(1);
+            }
+            access_log.start();
+        }
+
+        //create the worker pool for pool mode
+        if (mode.equals(MODE_POOL)) {
+            try {
+                worker_pool = new WebServerWorkerPool(config.workers, config.queueDepth, config.clientQueueDepth, config.retryAfter);
+            } catch (IOException e) {
+                System.out.println("Error: could not create the worker pool");
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        //create the metrics (the gauges read the cache, pool and log, so they come first)
+        if (!config.metricsPath.equals("off")) {
+            metrics = new WebServerMetrics(config.metricsPath, mode, content_cache, worker_pool, access_log);
+        }
+
+        //create the event loops for nio mode
+        if (mode.equals(MODE_NIO)) {
+            loaders = Executors.newFixedThreadPool(Math.max(1, config.loaders), WebServerThreads.platformFactory("WebServerLoader"));
+            this.reactors = new WebServerReactor[reactors];
+            try {
+                for (int i = 0; i < reactors; i++) {
+                    this.reactors[i] = new WebServerReactor(i, config, content_cache, access_log, metrics, file_index, negative_cache, loaders);
+                }
+            } catch (IOException e) {
+                System.out.println("Error: could not create server event loops");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            next_reactor = 0;
+        }
+
+        //create the timer wheel for the threaded modes
+        if (!mode.equals(MODE_NIO) && (config.timeout > 0 || config.headerTimeout > 0 || config.writeTimeout > 0)) {
+            timer_wheel = new WebServerTimerWheel(WebServerTimerWheel.TICK_MILLIS, WebServerTimerWheel.SLOTS);
+        }
 
     }
 
@@ -102,6 +264,19 @@ public class WebServer extends Thread {
             System.exit(1);
         }
         
+        //start the event loops in nio mode, or the timer wheel of the threaded modes, and the file index watcher
+        if (mode.equals(MODE_NIO)) {
+            for (WebServerReactor reactor : reactors) {
+                reactor.start();
+            }
+        }
+        if (timer_wheel != null) {
+            timer_wheel.start();
+        }
+        if (file_index != null) {
+            file_index.start();
+        }
+
         //DEBUGGING
         //System.out.println("Listening for client connections...");
 
@@ -113,14 +288,32 @@ public class WebServer extends Thread {
                 Socket cli_sock = srv_sock.accept();
 
                 //client connection recieved
+                if (metrics != null) {
+                    metrics.connectionAccepted();
+                }
+
+                //in nio mode hand the connection to the next event loop (round robin) instead of starting a thread
+                if (mode.equals(MODE_NIO)) {
+                    reactors[next_reactor].addConnection(cli_sock.getChannel());
+                    next_reactor = (next_reactor + 1) % reactors.length;
+                    continue;
+                }
 
                 //begin running client process thread to deal with client connection 
                 //(pass the created cli_sock to the thread)
                 
                 try {
-                    WebServerClientProcess wscp = new WebServerClientProcess(Thread.currentThread(), cli_sock, timeout);
-                    wscp.start();
-                    clientProcess_Threads.add(wscp);
+                    WebServerClientProcess wscp = new WebServerClientProcess(Thread.currentThread(), cli_sock, config, content_cache, access_log, metrics, timer_wheel, file_index, negative_cache);
+                    connections.register(wscp);
+                    if (mode.equals(MODE_POOL)) {
+                        //admission control, shed the connection with 503 if the pool queue is full
+                        if (!worker_pool.submit(wscp)) {
+                            wscp.clientServiceUnavailable(config.retryAfter);
+                            continue;
+                        }
+                    } else {
+                        wscp.start(clientProcess_ThreadFactory);
+                    }
                 } catch (WebServerClientProcessException e) {
                     System.out.println("Error: Could not initialize Web Server Client Process Object for Client Connection");
                     e.printStackTrace();
@@ -129,54 +322,72 @@ public class WebServer extends Thread {
                 
 
                 //DEBUGGING
-                //System.out.println("There are now " + clientProcess_Threads.size() + " active client threads");
+                //System.out.println("There are now " + connections.size() + " open client connections");
             } catch (SocketTimeoutException e) {
-                if (shutdownRequested) {
-                    //begin shutdown
-
-                    //we need to start closing any WebServerClientProcesses
-                    //any WebServerClientProcess will either be
-                    //  a) awaiting client GET request
-                    //          will be waiting for client request during blocking read() call up to timeout val
-                    //          (can't just wait for timeout value) 
-                    //  b) in the middle of serving a client GET request
-                    //          easy, just wait for *non-persistent http process of client process to finish
-
-                    //we iterate through the list of client server processes and check thier status
-                    //if they are busy serving a client GET then we wait for them to finish
-                    //if they are blocked on a read() call waiting for a client GET then we close thier client socket
-                    //      this triggers a socket exception in that client thread which we handle by throwing our own custom exception which
-                    //      causes the client thread to shutdown (we wait for it to shutdown here before moving on to check the next client thread)                    
-                    try {
-                        for (WebServerClientProcess cpt : clientProcess_Threads) {
-                            if (!cpt.isProcessingGET()) {
-                                
-                                //DEBUGGING
-                                //System.out.println("Shutting down client thread...");
-
-                                //close the client threads socket to client
-                                cpt.get_cliSocket().close();
-                            }
-                            //else leave it to finish *non-persistent Http process
-                            //either way process will be ended and we can join it to main server thread
-                            cpt.join();
-                        }
-                    } catch (InterruptedException ie) {
-                        System.out.println("Error: a problem occured during server shutdown, could not join a client process thread");
-                        ie.printStackTrace();
-                        System.exit(1);
-                    } catch (IOException iie) {
-                        System.out.println("Error: a problem occured during server shutdown, could not close the client socket");
-                        iie.printStackTrace();
-                        System.exit(1);
-                    }
-                    
-
+                //periodic check for a shutdown request
+            } catch (IOException e) {
+                System.out.println("Error: could not establish a client connection request");
+            }
+        }
 
+        //stop listening so the port is released for a later server
+        //(no new connections are accepted from here on)
+        try {
+            srv_chan.close();
+        } catch (IOException e) {
+            System.out.println("Error: could not close the main server socket");
+        }
 
+        //begin shutdown, drain the open connections
+        //any connection will either be
+        //  a) awaiting a client GET request (idle), it is closed straight away
+        //  b) in the middle of serving a client GET request, it is left to finish the response and then closes
+        //     (no connection is kept open once shutdown is requested), or is forcibly closed at the drain deadline
+        long drain_deadline = System.currentTimeMillis() + config.drainTimeout;
+        try {
+            //event loops drain thier own connections
+            if (mode.equals(MODE_NIO)) {
+                for (WebServerReactor reactor : reactors) {
+                    reactor.drain(drain_deadline);
                 }
-            } catch (IOException e) {
-                System.out.println("Error: could not establish a client connection request");
+                for (WebServerReactor reactor : reactors) {
+                    reactor.join();
+                }
+                if (loaders != null) {
+                    loaders.shutdown();
+                    loaders.awaitTermination(config.drainTimeout, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            //connections still queued for a worker are turned away with 503
+            if (mode.equals(MODE_POOL)) {
+                worker_pool.shutdown();
+            }
+
+            connections.drain(drain_deadline);
+
+            if (mode.equals(MODE_POOL)) {
+                worker_pool.join();
+            }
+
+            if (timer_wheel != null) {
+                timer_wheel.stop();
+            }
+            if (file_index != null) {
+                file_index.stop();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Error: a problem occured during server shutdown, could not drain the client connections");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        //every connection has finished, let the access log writer catch up and stop
+        if (access_log != null) {
+            try {
+                access_log.close(5000);
+            } catch (InterruptedException e) {
+                System.out.println("Error: a problem occured during server shutdown, could not stop the access log");
             }
         }
 
@@ -185,6 +396,72 @@ public class WebServer extends Thread {
     }
 	
 
+    /**
+     * Gives access to the worker pool statistics in pool mode
+     * 
+     * @return the worker pool, null in other modes
+     */
+    public WebServerWorkerPool getWorkerPool() {
+        return worker_pool;
+    }
+
+    /**
+     * Gives access to the content cache statistics
+     * 
+     * @return the content cache, null if caching is disabled
+     */
+    public WebServerContentCache getContentCache() {
+        return content_cache;
+    }
+
+    /**
+     * Gives access to the file index statistics
+     * 
+     * @return the file index, null if it is disabled
+     */
+    public WebServerFileIndex getFileIndex() {
+        return file_index;
+    }
+
+    /**
+     * Gives access to the negative cache statistics
+     * 
+     * @return the negative cache, null if it is disabled
+     */
+    public WebServerNegativeCache getNegativeCache() {
+        return negative_cache;
+    }
+
+    /**
+     * Gives access to the access log statistics
+     * 
+     * @return the access log, null if it is disabled
+     */
+    public WebServerAccessLog getAccessLog() {
+        return access_log;
+    }
+
+
+    /**
+     * Gives access to the open connections in the threaded modes
+     * 
+     * @return the connection registry
+     */
+    public WebServerConnectionRegistry getConnections() {
+        return connections;
+    }
+
+
+    /**
+     * Gives access to the server metrics
+     * 
+     * @return the metrics, null if they are disabled
+     */
+    public WebServerMetrics getMetrics() {
+        return metrics;
+    }
+
+
     /**
      * Signals the web server to shutdown.
 	 *
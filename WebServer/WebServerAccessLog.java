@@ -0,0 +1,371 @@
+
+/**
+ * WebServerAccessLog Class
+ * Access log with one line per request, written to a file by a background thread
+ *
+ * Connections hand thier request records to a bounded lock-free ring buffer (many producers, one consumer)
+ * and go straight back to serving: nothing on the request path takes a lock, formats a date or touches the disk.
+ * The writer thread drains the ring in batches, formats the lines into one direct buffer and writes each batch
+ * to the log FileChannel in a single call. Once the file reaches the rotation size it is renamed to
+ * <path>.1 (older files shift up to <path>.<keep>, the oldest is deleted) and a new file is started.
+ * If the ring is full the record is dropped and counted rather than making the connection wait.
+ *
+ * Each line holds, separated by spaces:
+ *   time (UTC, milli-seconds)  client address:port  method  object-path  status  bytes sent  latency (milli-seconds)
+ * ie. "2024-03-10T03:22:36.123Z 127.0.0.1:51234 GET /index.html 200 759 0.214"
+ * Requests that could not be parsed are logged with "-" for the method and object-path.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class WebServerAccessLog extends Thread {
+
+    //time format of the lines, up to the seconds (the milli-seconds are appended)
+    private static final DateTimeFormatter LOG_TIME =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    //how long the writer sleeps when the ring is empty, bounds how late a line reaches the file
+    private static final long IDLE_WAIT_NANOS = 10*1000*1000L;
+
+    //size of the batch buffer the lines are formatted into
+    private static final int BATCH_BYTES = 64*1024;
+
+    //a request record, the slots of the ring are reused for the life of the log
+    private static class Record {
+        long time;
+        String client;
+        String method;
+        String target;
+        int status;
+        long bytes;
+        long latency_nanos;
+    }
+
+    //the ring: record slots and thier sequence numbers (a slot is free for the producer claiming position p
+    //when its sequence is p, and holds a record for the consumer at position p once its sequence is p + 1)
+    private final Record[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    //next position producers claim, next position the writer reads (only the writer moves it)
+    private final AtomicLong tail;
+    private long head;
+
+    //the log file, its current length, the rotation size and how many rotated files are kept
+    private final Path path;
+    private FileChannel log_chan;
+    private long file_bytes;
+    private final long rotate_bytes;
+    private final int keep_files;
+
+    //batch buffer and the formatted second it last wrote
+    private final ByteBuffer batch;
+    private long batch_second;
+    private byte[] batch_second_text;
+
+    //set once the writer should drain what is left and stop
+    private volatile boolean closing;
+
+    //counters
+    private final AtomicLong dropped;
+    private volatile long written;
+    private volatile long rotations;
+
+    /**
+     * Constructor for WebServerAccessLog, the log file is opened (and created if needed) right away
+     *
+     * @param file          path of the log file
+     * @param rotate_size   size in bytes the file is rotated at
+     * @param keep          number of rotated files kept
+     * @param capacity      records the ring holds (rounded up to a power of two)
+     * @throws IOException if the log file could not be opened
+     */
+    public WebServerAccessLog(String file, long rotate_size, int keep, int capacity) throws IOException {
+        super("WebServerAccessLog");
+        setDaemon(true);
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        slots = new Record[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Record();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        tail = new AtomicLong();
+        head = 0;
+
+        path = Paths.get(file);
+        rotate_bytes = Math.max(BATCH_BYTES, rotate_size);
+        keep_files = Math.max(0, keep);
+        openLog();
+
+        batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+        batch_second = -1;
+        closing = false;
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * Adds a request to the log (never blocks, the record is dropped if the writer has fallen too far behind)
+     *
+     * @param client        client address and port
+     * @param method        request method, null if the request could not be parsed
+     * @param target        request object-path, null if the request could not be parsed
+     * @param status        status code of the response
+     * @param bytes         bytes of the response sent
+     * @param latency_nanos time from the request being recieved to the response being sent
+     * @return false if the record was dropped
+     */
+    public boolean log(String client, String method, String target, int status, long bytes, long latency_nanos) {
+        long position = tail.get();
+        while (true) {
+            int i = (int) (position & mask);
+            long available = sequences.get(i) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Record r = slots[i];
+                    r.time = System.currentTimeMillis();
+                    r.client = client;
+                    r.method = method;
+                    r.target = target;
+                    r.status = status;
+                    r.bytes = bytes;
+                    r.latency_nanos = latency_nanos;
+                    //publishes the record to the writer
+                    sequences.lazySet(i, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                //ring full
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                //another producer claimed the position first
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Writes batches of records to the log file until the log is closed
+     */
+    public void run() {
+        while (true) {
+            boolean stopping = closing;
+            int drained = 0;
+            try {
+                drained = drain();
+            } catch (IOException e) {
+                System.out.println("Error: a problem occured writing the access log: " + e.getMessage());
+                //give up on the lines of this batch rather than spin on a broken file
+                batch.clear();
+            }
+            if (drained == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+            }
+        }
+        try {
+            log_chan.force(false);
+            log_chan.close();
+        } catch (IOException e) {
+            System.out.println("Error: a problem occured closing the access log");
+        }
+    }
+
+    /**
+     * Stops the writer once every record logged so far is in the file
+     *
+     * @param millis    longest time to wait for the writer to finish
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close(long millis) throws InterruptedException {
+        closing = true;
+        LockSupport.unpark(this);
+        join(millis);
+    }
+
+    //formats every published record into the batch buffer, writing it out whenever it fills, returns the records drained
+    private int drain() throws IOException {
+        int drained = 0;
+        int skipped = 0;
+        while (true) {
+            int i = (int) (head & mask);
+            if (sequences.get(i) != head + 1) {
+                break;
+            }
+            Record r = slots[i];
+            if (!format(r)) {
+                dropped.incrementAndGet();
+                skipped++;
+            }
+            r.client = null;
+            r.method = null;
+            r.target = null;
+            //frees the slot for the producer one lap ahead
+            sequences.lazySet(i, head + slots.length);
+            head++;
+            drained++;
+        }
+        flushBatch();
+        written += drained - skipped;
+        return drained;
+    }
+
+    //appends the line of a record to the batch buffer, false if it could not be made to fit one
+    private boolean format(Record r) throws IOException {
+        long second = r.time / 1000;
+        if (second != batch_second) {
+            batch_second = second;
+            batch_second_text = LOG_TIME.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.US_ASCII);
+        }
+        int max_line = batch_second_text.length + 64 + length(r.client) + length(r.method) + length(r.target);
+        if (batch.remaining() < max_line) {
+            flushBatch();
+        }
+        String target = r.target;
+        if (batch.remaining() < max_line) {
+            //longer than a whole batch, the target is cut short so the line still fits
+            int over = max_line - batch.remaining();
+            if (target == null || over >= target.length()) {
+                return false;
+            }
+            target = target.substring(0, target.length() - over);
+        }
+        batch.put(batch_second_text);
+        batch.put((byte) '.');
+        putThreeDigits(r.time % 1000);
+        batch.put((byte) 'Z');
+        batch.put((byte) ' ');
+        putText(r.client);
+        batch.put((byte) ' ');
+        putText(r.method);
+        batch.put((byte) ' ');
+        putText(target);
+        batch.put((byte) ' ');
+        putNumber(r.status);
+        batch.put((byte) ' ');
+        putNumber(r.bytes);
+        batch.put((byte) ' ');
+        long micros = Math.max(0, r.latency_nanos / 1000);
+        putNumber(micros / 1000);
+        batch.put((byte) '.');
+        putThreeDigits(micros % 1000);
+        batch.put((byte) '\n');
+        return true;
+    }
+
+    private static int length(String s) {
+        return (s == null) ? 1 : s.length();
+    }
+
+    //puts a US-ASCII string, "-" for null (control characters and spaces cannot split the line, they are replaced)
+    private void putText(String s) {
+        if (s == null) {
+            batch.put((byte) '-');
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            batch.put((c <= ' ' || c > '~') ? (byte) '?' : (byte) c);
+        }
+    }
+
+    private void putNumber(long v) {
+        if (v >= 10) {
+            putNumber(v / 10);
+        }
+        batch.put((byte) ('0' + (v % 10)));
+    }
+
+    //puts a number below 1000 as three digits
+    private void putThreeDigits(long v) {
+        batch.put((byte) ('0' + v / 100));
+        batch.put((byte) ('0' + (v / 10) % 10));
+        batch.put((byte) ('0' + v % 10));
+    }
+
+    //writes the batch buffer to the log file, rotating the file first if the batch would take it past the rotation size
+    private void flushBatch() throws IOException {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        if (file_bytes > 0 && file_bytes + batch.remaining() > rotate_bytes) {
+            rotate();
+        }
+        while (batch.hasRemaining()) {
+            file_bytes += log_chan.write(batch);
+        }
+        batch.clear();
+    }
+
+    //renames the log file to <path>.1, shifting older files up, and opens a new file
+    private void rotate() throws IOException {
+        log_chan.close();
+        if (keep_files == 0) {
+            Files.deleteIfExists(path);
+        } else {
+            Files.deleteIfExists(rotated(keep_files));
+            for (int i = keep_files - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        openLog();
+        rotations++;
+    }
+
+    private Path rotated(int i) {
+        return Paths.get(path.toString() + "." + i);
+    }
+
+    private void openLog() throws IOException {
+        log_chan = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        file_bytes = log_chan.size();
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //records dropped because the ring was full (or, rarely, because even cut short they were too long for a line)
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    //records written to the file (read after the writer has stopped)
+    public long getWritten() {
+        return written;
+    }
+
+    public long getRotations() {
+        return rotations;
+    }
+
+    public String toString() {
+        return String.format("path=%s written=%d dropped=%d rotations=%d", path, getWritten(), getDropped(), getRotations());
+    }
+}
@@ -0,0 +1,166 @@
+
+/**
+ * WebServerByteRanges Class
+ * The byte ranges a client asked for in its Range header, resolved against the length of the requested object
+ *
+ * A request with one satisfiable range is answered with a single 206 Partial Content body,
+ * one with several with a multipart/byteranges body (one part per range, in the order requested),
+ * and one with none satisfiable with 416 Range Not Satisfiable.
+ * Range headers that are malformed, use a unit other than bytes or list more than MAX_RANGES ranges are ignored
+ * and the whole object is sent, as Http allows.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class WebServerByteRanges {
+
+    //most ranges accepted in one Range header
+    public static final int MAX_RANGES = 16;
+
+    //boundary between the parts of multipart/byteranges bodies
+    private static final String BOUNDARY = "CPSC441_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private static final byte[] CLOSING = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    //first and last byte of each satisfiable range, and the object length
+    private final long[] starts;
+    private final long[] ends;
+    private int count;
+    private final long object_length;
+
+    private WebServerByteRanges(int max, long length) {
+        starts = new long[max];
+        ends = new long[max];
+        count = 0;
+        object_length = length;
+    }
+
+    /**
+     * Resolves a Range header against the length of the object
+     *
+     * @param range     the value of the Range header
+     * @param length    length of the requested object
+     * @return the satisfiable ranges (possibly none), or null if the header is to be ignored
+     */
+    public static WebServerByteRanges parse(String range, long length) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = range.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        WebServerByteRanges ranges = new WebServerByteRanges(specs.length, length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                long first;
+                long last;
+                if (dash == 0) {
+                    //suffix range: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = (suffix == 0) ? -1 : length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+                //ranges starting past the end of the object are left out
+                if (first < length && first <= last) {
+                    ranges.starts[ranges.count] = first;
+                    ranges.ends[ranges.count] = last;
+                    ranges.count++;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return true if at least one range can be sent
+     */
+    public boolean isSatisfiable() {
+        return count > 0;
+    }
+
+    /**
+     * @return true if the ranges are sent as a multipart/byteranges body
+     */
+    public boolean isMultipart() {
+        return count > 1;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    //offset just past the last byte of the range
+    public long getEnd(int i) {
+        return ends[i] + 1;
+    }
+
+    public long getObjectLength() {
+        return object_length;
+    }
+
+    /**
+     * Builds the headers in front of one part of a multipart/byteranges body
+     *
+     * @param i             index of the range
+     * @param content_type  the type of the object
+     * @return the boundary line and the part's Content-Type and Content-Range headers
+     */
+    public byte[] partHead(int i, String content_type) {
+        return (
+            "\r\n--" + BOUNDARY + "\r\n" +
+            "Content-Type: " + content_type + "\r\n" +
+            "Content-Range: bytes " + starts[i] + "-" + ends[i] + "/" + object_length + "\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the closing boundary line of a multipart/byteranges body
+     */
+    public byte[] closing() {
+        return CLOSING;
+    }
+
+    /**
+     * Works out the length of the multipart/byteranges body
+     *
+     * @param content_type  the type of the object
+     * @return the Content-Length of the body
+     */
+    public long multipartLength(String content_type) {
+        long length = CLOSING.length;
+        for (int i = 0; i < count; i++) {
+            length += partHead(i, content_type).length + (ends[i] + 1 - starts[i]);
+        }
+        return length;
+    }
+
+    /**
+     * @return the Content-Type of a multipart/byteranges body
+     */
+    public static String multipartType() {
+        return "multipart/byteranges; boundary=" + BOUNDARY;
+    }
+}
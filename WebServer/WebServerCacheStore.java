@@ -0,0 +1,64 @@
+
+/**
+ * WebServerCacheStore Interface
+ * Where the WebServerContentCache keeps the bodies of cached objects
+ *
+ *  WebServerHeapStore    - bodies are byte arrays on the Java heap
+ *  WebServerOffHeapStore - bodies live outside the Java heap (pooled direct buffers and memory-mapped files)
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public interface WebServerCacheStore {
+
+    /**
+     * Reads an object body into the store
+     *
+     * @param obj_chan  channel of the object file, positioned at its start
+     * @param length    length of the object
+     * @return the body (position 0, limit length), or null if the file ended before length bytes were read
+     * @throws IOException if the object could not be read
+     */
+    ByteBuffer load(FileChannel obj_chan, long length) throws IOException;
+
+    /**
+     * Puts a body built in memory (such as a compressed variant) into the store
+     *
+     * @param b         the body bytes (the store may keep the array itself, the caller must not change it afterwards)
+     * @param length    length of the body, from the start of b
+     * @return the body (position 0, limit length)
+     */
+    ByteBuffer copy(byte[] b, int length);
+
+    /**
+     * Gives back the memory of a body returned by load, once nothing reads from it any more
+     *
+     * @param body  the body as returned by load
+     */
+    void release(ByteBuffer body);
+
+    /**
+     * @return bytes of memory currently held for cached bodies
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Reads from the channel until the buffer is full
+     *
+     * @param chan  the channel to read
+     * @param buf   the buffer to fill up to its limit, left flipped (position 0) for reading
+     * @return false if the channel ended first
+     * @throws IOException if reading fails
+     */
+    static boolean readFully(FileChannel chan, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (chan.read(buf) == -1) {
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+}
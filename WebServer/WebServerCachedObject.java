@@ -0,0 +1,154 @@
+
+/**
+ * WebServerCachedObject Class
+ * An object held by the WebServerContentCache: its body and the prebuilt response headers describing it,
+ * along with the file metadata used to tell whether the cached copy is still current
+ *
+ * The body belongs to a WebServerCacheStore and may live off the heap. It is reference counted:
+ * the cache holds one reference while the object is cached and every response sending it holds another,
+ * the body goes back to the store once the last one is released (so an evicted body is never reused
+ * while a response is still being written from it).
+ */
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WebServerCachedObject {
+
+    //how long (in milli-seconds) a cached object is trusted before its file metadata is checked again
+    private static final long REVALIDATE_INTERVAL = 1000;
+
+    //the object file and its metadata when it was cached
+    private final File file;
+    private final long mtime;
+    private final long file_length;
+
+    //length of the body (the file length, or less for a compressed variant)
+    private final long length;
+
+    //entity tag and prebuilt validator headers (Last-Modified, ETag) answering conditional requests
+    private final String etag;
+    private final byte[] validators;
+
+    //type of the object, prebuilt object headers (validators, Content-Length, Content-Type), the object body and the store holding it
+    private final String content_type;
+    private final byte[] headers;
+    private final ByteBuffer body;
+    private final WebServerCacheStore store;
+
+    //references held on the body
+    private final AtomicInteger refs;
+
+    //last time the file metadata was found unchanged
+    private volatile long checked_at;
+
+    /**
+     * Constructor for WebServerCachedObject, the caller holds the first reference
+     *
+     * @param f     the object file
+     * @param m     modification time of the file the body was read at
+     * @param l     length of the file the body was read at
+     * @param e     the entity tag of the object
+     * @param v     the prebuilt validator headers
+     * @param t     the type of the object
+     * @param h     the prebuilt object headers
+     * @param b     the object body (position 0, limit its length)
+     * @param s     the store the body was loaded into
+     */
+    public WebServerCachedObject(File f, long m, long l, String e, byte[] v, String t, byte[] h, ByteBuffer b, WebServerCacheStore s) {
+        file = f;
+        mtime = m;
+        file_length = l;
+        etag = e;
+        validators = v;
+        content_type = t;
+        length = b.limit();
+        headers = h;
+        body = b;
+        store = s;
+        refs = new AtomicInteger(1);
+        checked_at = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks whether the cached copy still matches the file
+     * (the file is only looked at once per REVALIDATE_INTERVAL, in between the copy is trusted)
+     *
+     * @param now   the current time in milli-seconds
+     */
+    public boolean isCurrent(long now) {
+        if (now - checked_at < REVALIDATE_INTERVAL) {
+            return true;
+        }
+        if (file.lastModified() != mtime || file.length() != file_length) {
+            return false;
+        }
+        checked_at = now;
+        return true;
+    }
+
+    /**
+     * Takes another reference on the body
+     * (only called by the cache while the object is cached, so the count is never back at 0)
+     */
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Gives up a reference on the body, the body goes back to its store with the last one
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            store.release(body);
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //the object file the entry was read from
+    public File getFile() {
+        return file;
+    }
+
+    public long getLastModified() {
+        return mtime;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public byte[] getValidators() {
+        return validators;
+    }
+
+    public String getContentType() {
+        return content_type;
+    }
+
+    public byte[] getHeaders() {
+        return headers;
+    }
+
+    //a view of the body with its own position, so several responses can send it at once
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    public long getFileLength() {
+        return file_length;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    //memory the body takes in its store, which is more than its length for a pooled buffer (rounded up to its size class)
+    public long getMemoryBytes() {
+        return body.capacity();
+    }
+}
@@ -0,0 +1,177 @@
+
+/**
+ * WebServerChunkedOutputStream Class
+ * Writes a response body whose length is not known up front with the Http/1.1 chunked transfer coding
+ *
+ * Writes are gathered into one buffer of the chunk size and sent as a chunk when it fills (or on flush),
+ * so many small writes, such as the output of a compressor, go out as a few chunks of a reasonable size
+ * and the memory used stays at one chunk however long the body is.
+ * Each chunk, with its size line and closing CRLF, goes to the underlying stream in a single write.
+ * Finishing the body sends the last (empty) chunk followed by any trailer fields.
+ * The underlying client socket stream is never closed, the connection can carry further requests.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class WebServerChunkedOutputStream extends OutputStream {
+
+    //default amount of body gathered into one chunk
+    public static final int DEFAULT_CHUNK_SIZE = 8*1024;
+
+    //room in front of the chunk data for its size line (hex size and CRLF)
+    private static final int SIZE_LINE_ROOM = 10;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    //the client socket output stream
+    private final OutputStream out;
+
+    //size line room, chunk data from SIZE_LINE_ROOM, then room for the CRLF ending the chunk
+    private final byte[] buf;
+    private final int chunk_size;
+    private int count;
+
+    //trailer field lines sent after the last chunk
+    private StringBuilder trailers;
+
+    //set once the last chunk has been sent
+    private boolean finished;
+
+    //body bytes, chunks and bytes including the chunk framing and trailer sent so far
+    private long body_bytes;
+    private int chunks;
+    private long wire_bytes;
+
+    /**
+     * Constructor for WebServerChunkedOutputStream
+     *
+     * @param o     the client socket output stream (the response head must already be written to it)
+     * @param size  most body bytes gathered into one chunk
+     */
+    public WebServerChunkedOutputStream(OutputStream o, int size) {
+        out = o;
+        chunk_size = Math.max(1, size);
+        buf = new byte[SIZE_LINE_ROOM + chunk_size + 2];
+        count = 0;
+        finished = false;
+    }
+
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == chunk_size) {
+            writeChunk();
+        }
+        buf[SIZE_LINE_ROOM + count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == chunk_size) {
+                writeChunk();
+            }
+            int n = Math.min(len, chunk_size - count);
+            System.arraycopy(b, off, buf, SIZE_LINE_ROOM + count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends the bytes gathered so far as a chunk and flushes the client socket stream
+     * (only for bodies that must reach the client in pieces, otherwise chunks are sent as they fill)
+     */
+    public void flush() throws IOException {
+        if (!finished) {
+            writeChunk();
+        }
+        out.flush();
+    }
+
+    /**
+     * Adds a trailer field, sent after the last chunk
+     * (the field name should be announced in the Trailer header of the response head)
+     *
+     * @param name      the field name
+     * @param value     the field value
+     */
+    public void addTrailer(String name, String value) {
+        if (trailers == null) {
+            trailers = new StringBuilder();
+        }
+        trailers.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    /**
+     * Ends the body: sends the remaining bytes, the last chunk and the trailer fields
+     * (the client socket stream is flushed but left open)
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeChunk();
+        finished = true;
+        String last = "0\r\n" + ((trailers != null) ? trailers : "") + "\r\n";
+        byte[] last_bytes = last.getBytes(StandardCharsets.US_ASCII);
+        out.write(last_bytes);
+        wire_bytes += last_bytes.length;
+        out.flush();
+    }
+
+    /**
+     * Same as finish, the client socket stream stays open
+     */
+    public void close() throws IOException {
+        finish();
+    }
+
+    //sends the gathered bytes, if any, as one chunk in a single write
+    private void writeChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        //size line written backwards into the room in front of the data
+        int start = SIZE_LINE_ROOM;
+        buf[--start] = '\n';
+        buf[--start] = '\r';
+        int size = count;
+        do {
+            buf[--start] = HEX[size & 0xf];
+            size >>>= 4;
+        } while (size > 0);
+        buf[SIZE_LINE_ROOM + count] = '\r';
+        buf[SIZE_LINE_ROOM + count + 1] = '\n';
+        out.write(buf, start, SIZE_LINE_ROOM + count + 2 - start);
+        wire_bytes += SIZE_LINE_ROOM + count + 2 - start;
+        body_bytes += count;
+        chunks++;
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("chunked body already finished");
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //body bytes sent in chunks so far
+    public long getBodyBytes() {
+        return body_bytes;
+    }
+
+    public int getChunkCount() {
+        return chunks;
+    }
+
+    public long getWireBytes() {
+        return wire_bytes;
+    }
+}
@@ -2,6 +2,14 @@
 /**
  * WebServerClientProcess Class
  * Spawned from main WebServer thread to deal with each individual client connection accepted by server
+ * 
+ * The process runs on its own thread, a platform thread in thread mode or a virtual thread in virtual mode,
+ * or on one of the worker threads of the WebServerWorkerPool in pool mode.
+ * It only uses blocking socket and file calls and holds no monitors while blocked
+ * so a virtual thread running it unmounts from its carrier instead of pinning it.
+ * The one exception is a large body write: the channel is then put in non-blocking mode for the rest of the response
+ * and, whenever the client is not taking the body, the process waits on a selector for it to take more,
+ * so each byte taken counts as progress for the write timer and a stalled or too slow client can be reset.
  */
 
 import java.io.File;
@@ -10,79 +18,236 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 import java.util.logging.*;
 import java.net.*;
 
-public class WebServerClientProcess extends Thread {
+public class WebServerClientProcess implements Runnable {
+
+	// global logger object, configures in the driver class
+	private static final Logger logger = Logger.getLogger("WebServer");
 
     //reference to spwaning main WebServer thread
     private Thread serverParentThread;
 
+    //the thread this process runs on (when started on its own thread) and the signal that it has finished
+    private Thread process_thread;
+    private CountDownLatch finished;
+
     //client socket objects
     private Socket cli_sock = null;
     private OutputStream cli_sock_out = null;
     private InputStream cli_sock_in = null;
 
-    //the timeout value
+    //the client socket's channel, null if the socket has none (responses are then written to the output stream)
+    private SocketChannel cli_chan;
+
+    //response head held back to go out in the same (gathering) write as the first body bytes, null once it is written,
+    //the buffers of that write, and the stream body writers that are not given buffers (ie. the chunked encoder) write to
+    private ByteBuffer pending_head;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    //whether the client channel is in non-blocking mode for a large body write, and the selector (opened the first time
+    //a client falls behind) with the channel's key in it while the process waits for the client to take more of the body
+    private boolean write_nonblocking;
+    private volatile Selector write_selector;
+    private SelectionKey write_key;
+
+    private final OutputStream body_out = new OutputStream() {
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeBody(b, off, len);
+        }
+    };
+
+    //the timeout value (also the idle time allowed between requests on a persistent connection),
+    //the time allowed to recieve the rest of a request head once it has started (0 uses the timeout value),
+    //the time a response may go without any of it being sent (0 means infinity)
+    //and the bytes per second a response must average once past that time (0 means no minimum)
     private int timeout;
+    private int header_timeout;
+    private int write_timeout;
+    private int min_send_rate;
+
+    //timer wheel shared by every connection enforcing those timeouts (null when there are none) and the timer of this connection,
+    //whether it is timing a response write, when that write started and the response bytes sent when it was last armed or checked
+    private WebServerTimerWheel timer_wheel;
+    private WebServerTimerWheel.Timer timer;
+    private volatile boolean timing_write;
+    private long write_started;
+    private long timer_mark;
+
+    //set by the timer wheel when the connection ran out of time to recieve a request, stopped taking its response
+    //or took it slower than the minimum send rate
+    private volatile boolean read_timed_out;
+    private volatile boolean write_stalled;
+    private volatile boolean write_too_slow;
+
+    //largest single write or transfer of a body, so the write timer sees a slow client making progress
+    private static final int WRITE_CHUNK = 256*1024;
+
+    //longest single wait for a client to take more of its response (milli-seconds), a forced close wakes it sooner
+    private static final long WRITE_WAIT = 1000;
+
+    //persistent connection limit and number of requests served on the connection so far
+    private int max_requests;
+    private int requests_served;
+
+    //objects of at least this many bytes are sent with FileChannel.transferTo (sendfile) instead of the read buffer
+    private long sendfile_threshold;
+
+    //content cache shared with the rest of the server, null when disabled
+    private WebServerContentCache content_cache;
+
+    //metadata index of the document root shared with the rest of the server, null when disabled
+    private WebServerFileIndex file_index;
+
+    //paths recently found missing, shared with the rest of the server, null when disabled
+    private WebServerNegativeCache negative_cache;
+
+    //deflate level of objects compressed while they are sent, 0 if gzip encoding is disabled
+    private int gzip_level;
+
+    //access log shared with the rest of the server, null when disabled, and the client as it is logged (address:port)
+    private WebServerAccessLog access_log;
+    private String client_name;
+
+    //when the current request started arriving, whether it was parsed, the bytes of its response sent so far
+    //and whether it has been logged yet
+    private long req_started;
+    private boolean request_parsed;
+    private volatile long resp_bytes;
+    private boolean resp_logged;
+
+    //server metrics, null when the metrics endpoint is disabled, and when the first byte of the current response was sent (0 until then)
+    private WebServerMetrics metrics;
+    private long resp_first_byte;
 
     //boolean flags to manage Web Server Client Process behaviour and shutdown
     private boolean timeout_exceeded;
     private boolean badRequest;
     private boolean notFound;
-    private boolean processing_GET;
     private boolean error_occured;
 
+    //connection state (IDLE waiting for a request, BUSY serving one, CLOSED), changed by this process and by a draining registry
+    private static final int IDLE = 0;
+    private static final int BUSY = 1;
+    private static final int CLOSED = 2;
+    private final AtomicInteger state;
+
+    //registry the connection is listed in and its id there, null if it is not registered
+    private WebServerConnectionRegistry registry;
+    private long registry_id;
+
+    //worker pool running the process in pool mode, null otherwise
+    //(the worker is given back while the connection waits for its next request, the pool runs the process again once it arrives)
+    private WebServerWorkerPool pool;
+
     //file reader object
     private FileInputStream buf_fr = null;
 
     //read buffer
     byte[] read_buffer;
 
+    //buffer the response heads are built in
+    private WebServerResponseHead resp_head;
+
+    //request buffer, holding the bytes from req_start to req_end recieved but not yet served,
+    //and the parser finding the requests in it
+    private byte[] req_buffer;
+    private int req_start;
+    private int req_end;
+    private WebServerRequestParser request_parser;
+
     /**
      * Constructor for WebServerClientProcess thread class
      * 
      * @param pt    reference to spawning parent thread
      * @param cs    reference to client socket object created by parent thread
-     * @param t     timeout value for Http get requests that WebServerClientProcess will abide by
+     * @param config    server settings (timeout, persistent connection limit, sendfile threshold) that WebServerClientProcess will abide by
+     * @param cache     the server's content cache, null if caching is disabled
+     * @param log       the server's access log, null if it is disabled
+     * @param m         the server's metrics, null if the metrics endpoint is disabled
+     * @param w         the server's timer wheel, null if there are no timeouts
+     * @param index     the server's file index, null if it is disabled
+     * @param missing   the server's negative cache, null if it is disabled
      */
-    public WebServerClientProcess(Thread pt, Socket cs, int t) throws WebServerClientProcessException {
+    public WebServerClientProcess(Thread pt, Socket cs, WebServerConfig config, WebServerContentCache cache, WebServerAccessLog log, WebServerMetrics m, WebServerTimerWheel w, WebServerFileIndex index, WebServerNegativeCache missing) throws WebServerClientProcessException {
         //get reference to spawning server parent thread
         serverParentThread = pt;
 
         //get client socket created by spwaning server parent thread
         cli_sock = cs;
 
-        //get timeout value
-        timeout = t;
+        //get timeout values and the timer enforcing them
+        timeout = config.timeout;
+        header_timeout = config.headerTimeout;
+        write_timeout = config.writeTimeout;
+        min_send_rate = config.minSendRate;
+        timer_wheel = w;
+        timer = (timer_wheel != null) ? timer_wheel.newTimer(this::timerExpired) : null;
+
+        //get persistent connection limit
+        max_requests = Math.max(1, config.maxRequests);
+        requests_served = 0;
+
+        //get sendfile threshold
+        sendfile_threshold = config.sendfileThreshold;
+
+        //get content cache, file index and gzip level
+        content_cache = cache;
+        file_index = index;
+        negative_cache = missing;
+        gzip_level = config.gzipLevel;
+
+        //get access log
+        access_log = log;
+        client_name = cli_sock.getInetAddress().getHostAddress() + ":" + cli_sock.getPort();
+
+        //get metrics
+        metrics = m;
         
         //set thread flags
         timeout_exceeded = false;
+        read_timed_out = false;
+        write_stalled = false;
+        write_too_slow = false;
         badRequest = false;
         notFound = false;
-        processing_GET = false;
         error_occured = false;
+        state = new AtomicInteger(IDLE);
 
-        //initialize read buffer
-        read_buffer = new byte[32*1024];
+        finished = new CountDownLatch(1);
+
+        //request buffer starts small and grows up to the largest request head accepted
+        req_buffer = new byte[1024];
+        req_start = 0;
+        req_end = 0;
+        request_parser = new WebServerRequestParser();
+
+        //read buffer is only allocated once an object is served
+        //(idle connections then hold no more heap than thier socket, which matters most with virtual threads)
+        read_buffer = null;
+
+        resp_head = new WebServerResponseHead();
 
-        //set timeout on client socket object passed from main server thread
-        try {
-            cli_sock.setSoTimeout(timeout);
-        } catch (SocketException e) {
-            error_occured = true;
-            throw new WebServerClientProcessException("Error: client socket timeout could not be set");
-        }
-        
         //get client socket output stream
         try {
             cli_sock_out = cli_sock.getOutputStream();
@@ -91,6 +256,14 @@ public class WebServerClientProcess extends Thread {
             throw new WebServerClientProcessException("Error: could not get output stream for client socket");
         }
 
+        //responses are put together in as few writes as possible, so they are sent without waiting on Nagle's algorithm
+        cli_chan = cli_sock.getChannel();
+        try {
+            cli_sock.setTcpNoDelay(config.tcpNoDelay);
+        } catch (SocketException e) {
+            // Ok, the socket keeps its default
+        }
+
         //get client socket input stream
         try {
             cli_sock_in = cli_sock.getInputStream();
@@ -99,9 +272,13 @@ public class WebServerClientProcess extends Thread {
             throw new WebServerClientProcessException("Error: could not get input stream for client socket");
         }
 
+        //the connection counts as open from here until its socket is closed
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+
         //UNIT TESTING
-        System.out.println("Client Thread created for client @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort());
-        System.out.println();
+        logger.fine("Client Thread created for client @: " + client_name);
     }
     
     
@@ -109,20 +286,28 @@ public class WebServerClientProcess extends Thread {
 
 
     /**
-     * Waits for and reads the connected clients GET request
+     * Waits for and reads the connected clients next GET request and serves it
      * 
+     * @return true if the connection stays open for another request
      * @throws WebServerClientProcessException if an error occurs while attempting to read Client's GET request
      */
-    private void readClientGET() throws WebServerClientProcessException {
+    private boolean readClientGET() throws WebServerClientProcessException {
 
         //DEBUGGING
         //System.out.println("Waiting for client request...");
         
         //wait for and recieve client's Http GET request
-        String Http_Req = "";
-        String Http_Req_endDetect = "";
-        Boolean Http_Req_read = false;
-        int b;
+        //(requests are read in bulk and parsed in place, bytes following the end of one request are kept as the start of the next
+        // so pipelined requests are served in order from the same read)
+        int parsed = request_parser.parse(req_buffer, req_start, req_end);
+        req_started = System.nanoTime();
+        request_parsed = false;
+        resp_bytes = 0;
+        resp_logged = false;
+        resp_first_byte = 0;
+
+        //the wait for a request is timed by the connection's timer, with the shorter header timeout once the request has started
+        armReadTimer(req_end > req_start);
         try {
 
             //DEBUGGING
@@ -131,246 +316,755 @@ public class WebServerClientProcess extends Thread {
             System.out.println(cli_sock.getSoTimeout());*/
 
             //wait for client get request
-            //(blocking read call from client socket input stream that can potentially trigger timeout here)
+            //(blocking read call from client socket input stream, when the connection's timer expires it shuts the input down
+            // so the read returns end of stream with the read_timed_out flag set)
             //(only way out of this loop is either by timeout or a client GET request is recieved)
-            while ( !(Http_Req_read) && (b = cli_sock_in.read()) != -1) {
+            //(the same timeout bounds the idle time between requests on a persistent connection)
+            while (parsed == WebServerRequestParser.INCOMPLETE) {
+                if (!makeRequestBufferRoom()) {
+                    //request head does not fit in the largest request buffer
+                    clientBadRequest();
+                }
+                int n = cli_sock_in.read(req_buffer, req_end, req_buffer.length - req_end);
+                if (n == -1) {
+                    break;
+                }
                 //recieved bytes (presumably a client GET)
-                //set flag to tell main server process to leave this client process alone if server shutdown initiated
-                processing_GET = true;
-
-                Http_Req = Http_Req + (char)(b);
-
-                if (!(Http_Req_read)) {
-                    if ( (char)(b) == '\r' || (char)(b) == '\n' ) {
-                        Http_Req_endDetect = Http_Req_endDetect + (char)(b);
-                    } else {
-                        Http_Req_endDetect = "";
-                    }
-
-                    if (Http_Req_endDetect.equals("\r\n\r\n")) {
-                        Http_Req_read = true;
-                    }
+                //mark the connection busy so a draining registry leaves it to finish the request
+                //(if the registry closed it first the request is dropped)
+                if (!markBusy()) {
+                    throw new WebServerClientProcessException("");
+                }
+                if (req_end == req_start) {
+                    //first bytes of the request, its latency is measured from here and its head must arrive within the header timeout
+                    req_started = System.nanoTime();
+                    armReadTimer(true);
                 }
+                req_end += n;
+                parsed = request_parser.parse(req_buffer, req_start, req_end);
             }
         
         } catch (SocketException e) {
             //this exception will be thrown if WebServer Client process is waiting on Client GET and a shutdown is initiated
-            //(main Web Server thread will iterate through all WebServerClientProcess Threads and any currently not engaged in
-            //servicing a client GET request will have thier socket closed, triggering this exception)
+            //(the connection registry closes the socket of every connection not engaged in servicing a client GET request,
+            //triggering this exception)
             if (WebServer.shutdownRequested) {
                 throw new WebServerClientProcessException("");
             }
+            return false;
 
-        } catch (SocketTimeoutException e) { 
-            //time period to recieve client request exceeded send Status code 408 to client and terminate connection
-            clientTimeout();
-            
         } catch (IOException e) {
             error_occured = true;
             throw new WebServerClientProcessException("Error: a problem occured trying to read client Http Request");
         }
 
+        if (parsed == WebServerRequestParser.INCOMPLETE && read_timed_out) {
+            //an idle persistent connection is closed quietly once the timeout passes between requests
+            if (requests_served > 0 && req_end == req_start) {
+                return false;
+            }
+            //time period to recieve client request exceeded send Status code 408 to client and terminate connection
+            clientTimeout();
+        }
+        if (parsed == WebServerRequestParser.INCOMPLETE) {
+            //client closed the connection without sending another request
+            if (req_end == req_start) {
+                return false;
+            }
+            //client closed the connection part way through a request
+            clientBadRequest();
+        }
+        if (parsed != WebServerRequestParser.COMPLETE) {
+            //malformed request head, or one over the size or header count limits
+            clientBadRequest();
+        }
+        req_start = request_parser.getHeadEnd();
+
         //recieved a GET request from client
 
         //UNIT TESTING
-        System.out.println("Client submitted get request: ");
-        System.out.println("==============================");
-        System.out.println(Http_Req);
-        System.out.println();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client submitted get request:\n" + request_parser.getHead());
+        }
 
         //serve Http GET request
+        //(the connection is kept open unless the client asked to close it, it reached its request limit or the server is draining)
+        requests_served++;
+        request_parsed = true;
+        boolean keep_alive = request_parser.keepAliveRequested() && requests_served < max_requests && !WebServer.shutdownRequested;
+        armWriteTimer();
+        try {
+            serveClientGET(keep_alive);
+        } finally {
+            recordResponse();
+        }
+        request_parser.reset();
 
-        serveClientGET(Http_Req);
-        
+        //ready for the next request, the connection stays busy if it is already buffered
+        if (req_end == req_start) {
+            state.compareAndSet(BUSY, IDLE);
+        }
+        return keep_alive;
     }
 
 
 
     /**
-     * Parses and serves the recieved client Http GET request
+     * Makes room at the end of the request buffer for the next read,
+     * moving the partial request to the front of the buffer or growing the buffer
      * 
-     * @param http_req  the recieved client GET request string
+     * @return false if the partial request already fills the largest request buffer
      */
-    private void serveClientGET(String http_req) throws WebServerClientProcessException {
-
-        //split the GET request by its lines
-        String[] GET_lines = http_req.split("\r\n");
-
-        //extract GET header and split it into its elements
-        String GET_header = GET_lines[0];
+    private boolean makeRequestBufferRoom() {
+        if (req_end < req_buffer.length) {
+            return true;
+        }
+        int len = req_end - req_start;
+        if (len == req_buffer.length) {
+            if (req_buffer.length >= WebServerHttp.MAX_REQUEST_HEAD) {
+                return false;
+            }
+            req_buffer = Arrays.copyOf(req_buffer, Math.min(req_buffer.length * 2, WebServerHttp.MAX_REQUEST_HEAD));
+        }
+        System.arraycopy(req_buffer, req_start, req_buffer, 0, len);
+        req_start = 0;
+        req_end = len;
+        return true;
+    }
 
-        //DEBUGGING
-        /*System.out.println("HEADER LINES: ");
-        for (int i = 0; i < GET_lines.length; i++) {
-            System.out.println(GET_lines[i]);
-        }*/
 
-        String[] GET_header_elems = GET_header.split(" ");
 
-        //DEBUGGING
-        /*System.out.println("HEADER ELEMENTS: ");
-        for (int i = 0; i < GET_header_elems.length; i++) {
-            System.out.println(GET_header_elems[i]);
-        }*/
+    /**
+     * Serves the recieved client Http GET request (held by the request parser)
+     * 
+     * @param keep_alive    whether the connection stays open after the response
+     */
+    private void serveClientGET(boolean keep_alive) throws WebServerClientProcessException {
 
         //Check syntax of GET header
-        if (GET_header_elems.length != 3) {
-            clientBadRequest();
-        }
-        if (!GET_header_elems[0].equals("GET")) {
+        if (!WebServerHttp.isValidGET(request_parser)) {
             clientBadRequest();
         }
-        if (!GET_header_elems[2].equals("HTTP/1.1")) {
-            clientBadRequest();
+
+        //the metrics are served by the server itself
+        if (metrics != null && request_parser.getTarget().equals(metrics.getPath())) {
+            clientMetrics(keep_alive);
+            return;
         }
 
         //extract GET header object-path and build local path to requested object
-        String currWorkingDir = System.getProperty("user.dir"); 
-		String separator = System.getProperty("file.separator");
-        String req_obj_path = GET_header_elems[1].replace("/", separator);
-        String full_obj_path = null;
-        if (req_obj_path.equals(separator)){
-            full_obj_path = currWorkingDir + req_obj_path + "index.html";
-        } else {
-            full_obj_path = currWorkingDir + req_obj_path;
+        //(a file known to the file index is described by its entry, a path recently found missing is answered
+        //from the negative cache, otherwise it is looked up on disk)
+        File req_obj = WebServerHttp.resolveObject(request_parser.getTarget());
+        String full_obj_path = req_obj.getPath();
+        WebServerFileIndex.Entry obj_meta = (file_index != null) ? file_index.lookup(full_obj_path) : null;
+        boolean obj_exists = obj_meta != null || exists(req_obj);
+        if (obj_exists && serveCachedObject(req_obj, keep_alive)) {
+            //served from the content cache
+            return;
         }
-
-        File req_obj = new File(full_obj_path);
-        if (req_obj.exists()) {
+        if (obj_exists) {
             //serve the requested object to client
             
+            //text objects are compressed while they are sent to clients accepting gzip
+            long obj_mtime = (obj_meta != null) ? obj_meta.getLastModified() : req_obj.lastModified();
+            long obj_length = (obj_meta != null) ? obj_meta.getLength() : req_obj.length();
+            String obj_type = null;
+            try {
+                obj_type = (obj_meta != null) ? obj_meta.getContentType() : WebServerHttp.contentType(req_obj);
+            } catch (IOException e) {
+                error_occured = true;
+                throw new WebServerClientProcessException("Error: a problem occured trying to discern the file type of: " + full_obj_path);
+            }
+            boolean gzip = gzip_level > 0 && obj_length >= WebServerGzip.MIN_LENGTH
+                && WebServerGzip.isCompressible(obj_type) && WebServerHttp.acceptsGzip(request_parser);
+
+            //answer a conditional request for an unchanged object with 304, without opening it
+            String obj_etag = (obj_meta != null) ? obj_meta.getETag() : WebServerHttp.etag(obj_mtime, obj_length);
+            byte[] obj_validators;
+            if (gzip) {
+                obj_etag = WebServerGzip.variantETag(obj_etag);
+                obj_validators = WebServerHttp.validatorHeaders(obj_mtime, obj_etag);
+            } else {
+                obj_validators = (obj_meta != null) ? obj_meta.getValidators() : WebServerHttp.validatorHeaders(obj_mtime, obj_etag);
+            }
+            if (WebServerHttp.notModified(request_parser, obj_etag, obj_mtime)) {
+                clientNotModified(obj_validators, keep_alive);
+                return;
+            }
+
+            //find the byte ranges asked for, if any (a request for none that exist is answered with 416)
+            WebServerByteRanges ranges = WebServerHttp.requestedRanges(request_parser, obj_etag, obj_mtime, obj_length);
+            if (ranges != null && !ranges.isSatisfiable()) {
+                clientRangeNotSatisfiable(obj_length, keep_alive);
+                return;
+            }
+
             //DEBUGGING
-            System.out.println("Fetching object...");
+            logger.finer("Fetching object...");
 
             //create file reader (file input stream)
             try {
-                buf_fr = new FileInputStream(full_obj_path);
+                buf_fr = new FileInputStream((obj_meta != null) ? obj_meta.getFile() : req_obj);
             } catch (FileNotFoundException e) {
                 error_occured = true;
                 throw new WebServerClientProcessException("Error: an error occured while trying to read from the requested object file");
             }
 
-            //create server OK response string
-            Date currentDate = new Date();
-            SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss zzz");
-            String currentDate_formatted = dateFormatter.format(currentDate);
-            String serverName = "CPSC441_Assignment3_WebServer";
-            String lastModified = dateFormatter.format(req_obj.lastModified());
-            String contentLength = Long.toString(req_obj.length());
-            String contentType = null; 
-            try {
-                contentType = Files.probeContentType(req_obj.toPath());
-            } catch (IOException e) {
-                error_occured = true;
-                throw new WebServerClientProcessException("Error: a problem occured trying to discern the file type of: " + full_obj_path);
-            }
-            String ConnectionVal = "close";
-            String Http_resp_200 = 
-                "HTTP/1.1 200 Ok\r\n"+
-                "Server: " + serverName + "\r\n" +
-                "Date: " + currentDate_formatted + "\r\n"+
-                "Last-Modified: " + lastModified + "\r\n"+
-                "Content-Length: " + contentLength + "\r\n"+
-                "Content-Type: " + contentType + "\r\n"+
-                "Connection: " + ConnectionVal + "\r\n" + 
-                "\r\n";
-
-            //Convert server timeout response string into bytes to send out over client socket
-            byte[] OkResp_bytes = null; 
-            try {
-                OkResp_bytes = Http_resp_200.getBytes("US-ASCII");
-            } catch (UnsupportedEncodingException e) {
-                error_occured = true;
-                throw new WebServerClientProcessException("Error: could not convert Http Server Object not found response into byte");
-            }
-            try {
-                cli_sock_out.write(OkResp_bytes);
-                cli_sock_out.flush();
-            } catch (IOException e) {
-                error_occured = true;
-                throw new WebServerClientProcessException("Error: a problem occured trying to send Object not found response to client");
+            //create server OK response head (or Partial Content head if byte ranges were asked for)
+            WebServerResponseHead Http_resp_200 = null;
+            if (gzip) {
+                Http_resp_200 = WebServerHttp.okResponseHead(resp_head, WebServerHttp.streamedObjectHeaders(obj_type, WebServerGzip.ENCODING, obj_validators, "Server-Timing"), keep_alive);
+            } else if (ranges == null) {
+                byte[] obj_headers = (obj_meta != null) ? obj_meta.getHeaders() : WebServerHttp.objectHeaders(obj_type, null, obj_validators, obj_length);
+                Http_resp_200 = WebServerHttp.okResponseHead(resp_head, obj_headers, keep_alive);
+            } else {
+                Http_resp_200 = WebServerHttp.partialContentHead(resp_head, ranges, obj_type, obj_validators, keep_alive);
             }
 
-            System.out.println("Client requested object found, sending back Ok response: ");
-            System.out.println("===========================================================================");
-            System.out.println(Http_resp_200);
-            System.out.println();
+            //the response head goes out with the first bytes of the object
+            holdHead(Http_resp_200);
+
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Client requested object found, sending back Ok response:\n" + Http_resp_200);
+            }
             
-            //send requested object to client
-            //int b is number of bytes read from input file and written out to client
-            int b; 
+            //send requested object (or its requested ranges) to client
+            //(large objects go straight from the file to the socket channel, smaller ones through the read buffer)
+            //exactly the advertised Content-Length is sent, even if the file changes meanwhile
+            //(a compressed object is sent as a chunked body instead, its length is only known once it is sent)
             try {
-                // read from file reader into buffer then write from buffer to client socket output stream
-                while ( (b = buf_fr.read(read_buffer)) != -1) {
-                    cli_sock_out.write(read_buffer, 0, b);
-                    cli_sock_out.flush();
+                if (gzip) {
+                    sendObjectGzipChunked(obj_length);
+                } else if (ranges == null) {
+                    sendObjectRange(0, obj_length);
+                } else {
+                    sendRanges(ranges, obj_type, null);
                 }
+                endResponse();
             } catch (IOException e) {
                 error_occured = true;
                 throw new WebServerClientProcessException("Error: a problem occured trying to read from: " + full_obj_path);
+            } finally {
+                //close the file reader object however the response ended
+                //(cut short by the client, a write timeout, the minimum send rate or the drain deadline included)
+                try {
+                    buf_fr.close();
+                } catch (IOException e) {
+                    // Ok, nothing more is read from it
+                }
+                buf_fr = null;
             }
 
-            //close the file reader object
+            //DEBUGGING
+            logger.finer("Client request successfully served");
+
+        } else {
+            //send back 404 Object not found
+            clientObjNotFound(keep_alive);
+        }
+    }
+
+
+
+    //whether an object not in the file index exists, by the negative cache or on disk
+    private boolean exists(File req_obj) {
+        if (negative_cache == null) {
+            return req_obj.exists();
+        }
+        String path = req_obj.getPath();
+        if (negative_cache.isMissing(path)) {
+            return false;
+        }
+        long generation = negative_cache.getGeneration();
+        if (req_obj.exists()) {
+            return true;
+        }
+        negative_cache.add(path, generation);
+        return false;
+    }
+
+    /**
+     * Serves the requested object from the content cache, loading it into the cache on a miss
+     * 
+     * @param req_obj       the requested object file
+     * @param keep_alive    whether the connection stays open after the response
+     * @return false if the object is not cacheable (or caching is disabled) and must be served from the file
+     * @throws WebServerClientProcessException if an error occurs reading the object or sending it to the client (error flag set)
+     */
+    private boolean serveCachedObject(File req_obj, boolean keep_alive) throws WebServerClientProcessException {
+        if (content_cache == null) {
+            return false;
+        }
+
+        WebServerCachedObject cached;
+        try {
+            cached = content_cache.get(req_obj, WebServerHttp.acceptsGzip(request_parser));
+        } catch (IOException e) {
+            error_occured = true;
+            throw new WebServerClientProcessException("Error: a problem occured trying to read from: " + req_obj.getPath());
+        }
+        if (cached == null) {
+            return false;
+        }
+
+        //answer a conditional request for an unchanged object with 304
+        if (WebServerHttp.notModified(request_parser, cached.getETag(), cached.getLastModified())) {
             try {
-                buf_fr.close();
-            } catch (IOException e) {
-                error_occured = true;
-                throw new WebServerClientProcessException("Error: a problem occured trying to close buffered file reder object");
+                clientNotModified(cached.getValidators(), keep_alive);
+            } finally {
+                cached.release();
             }
+            return true;
+        }
 
-            //close the client socket
+        //answer a request for byte ranges that do not exist with 416
+        WebServerByteRanges ranges = WebServerHttp.requestedRanges(request_parser, cached.getETag(), cached.getLastModified(), cached.getLength());
+        if (ranges != null && !ranges.isSatisfiable()) {
             try {
-                cli_sock.close();
-            } catch (IOException e) {
-                error_occured = true;
-                throw new WebServerClientProcessException("Error: a problem occured trying to close client socket");
+                clientRangeNotSatisfiable(cached.getLength(), keep_alive);
+            } finally {
+                cached.release();
             }
+            return true;
+        }
 
-            //DEBUGGING
-            System.out.println("Client request successfully served");
-            System.out.println("Client Thread  @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort() + " shutting down");
-            System.out.println();
-
+        //send the prebuilt response head and the cached body (or the requested ranges of it)
+        //(the reference on the cached object keeps its body from being reused until it is sent)
+        WebServerResponseHead Http_resp_200;
+        if (ranges == null) {
+            Http_resp_200 = WebServerHttp.okResponseHead(resp_head, cached.getHeaders(), keep_alive);
         } else {
-            //send back 404 Object not found
-            clientObjNotFound();
+            Http_resp_200 = WebServerHttp.partialContentHead(resp_head, ranges, cached.getContentType(), cached.getValidators(), keep_alive);
+        }
+        try {
+            holdHead(Http_resp_200);
+            if (ranges == null) {
+                writeBody(cached.getBody());
+            } else {
+                sendRanges(ranges, cached.getContentType(), cached.getBody());
+            }
+            endResponse();
+        } catch (IOException e) {
+            error_occured = true;
+            throw new WebServerClientProcessException("Error: a problem occured trying to send the requested object to client");
+        } finally {
+            cached.release();
         }
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client requested object found in cache, sending back Ok response:\n" + Http_resp_200);
+        }
+        return true;
+    }
+
+    /**
+     * Holds a response head back to be written together with the first body bytes (by writeBody),
+     * or on its own by endResponse if the response has no body
+     * 
+     * @param h     the response head
+     */
+    private void holdHead(WebServerResponseHead h) {
+        pending_head = h.asByteBuffer();
     }
 
+    /**
+     * Writes the held back response head if it has not gone out yet, and flushes the client socket stream
+     * (the only flush of a response, the body writes go straight to the socket)
+     * 
+     * @throws IOException if writing to the client fails
+     */
+    private void endResponse() throws IOException {
+        blocking();
+        writeHead();
+        cli_sock_out.flush();
+    }
 
+    //writes the held back response head on its own
+    private void writeHead() throws IOException {
+        if (pending_head == null) {
+            return;
+        }
+        int length = pending_head.remaining();
+        cli_sock_out.write(pending_head.array(), pending_head.position(), length);
+        pending_head = null;
+        headSent(length);
+    }
 
     /**
-     * Handles the returning of an Http 404 response to client that has submitted a GET request for a file object that cannot be found 
+     * Writes body bytes to the client, in the same gathering write as the response head if it is still held back
+     * (an off-heap body is written straight from its direct or mapped buffer to the socket channel, not copied onto the heap)
+     * 
+     * @param body  the bytes to write, from its position to its limit
+     * @throws IOException if writing to the client fails
+     */
+    private void writeBody(ByteBuffer body) throws IOException {
+        if (cli_chan == null) {
+            writeHead();
+            if (body.hasArray()) {
+                cli_sock_out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+                resp_bytes += body.remaining();
+                body.position(body.limit());
+                return;
+            }
+            if (read_buffer == null) {
+                read_buffer = new byte[32*1024];
+            }
+            while (body.hasRemaining()) {
+                int b = Math.min(read_buffer.length, body.remaining());
+                body.get(read_buffer, 0, b);
+                cli_sock_out.write(read_buffer, 0, b);
+                resp_bytes += b;
+            }
+            return;
+        }
+
+        //large bodies are written without blocking (a chunk at a time while the channel is still blocking),
+        //so the write timer sees a slow client making progress
+        int limit = body.limit();
+        if (body.remaining() >= sendfile_threshold) {
+            nonBlocking();
+        }
+        try {
+            while (body.position() < limit || pending_head != null) {
+                body.limit(Math.min(limit, body.position() + WRITE_CHUNK));
+                long n;
+                if (pending_head == null) {
+                    n = cli_chan.write(body);
+                    resp_bytes += n;
+                } else {
+                    gather[0] = pending_head;
+                    gather[1] = body;
+                    int head_left = pending_head.remaining();
+                    n = cli_chan.write(gather);
+                    headSent((int) Math.min(n, head_left));
+                    resp_bytes += Math.max(0, n - head_left);
+                    if (!pending_head.hasRemaining()) {
+                        pending_head = null;
+                    }
+                }
+                if (n == 0 && write_nonblocking) {
+                    awaitWritable();
+                }
+            }
+        } finally {
+            body.limit(limit);
+            gather[0] = null;
+            gather[1] = null;
+        }
+    }
+
+    //writes body bytes from an array (see writeBody(ByteBuffer))
+    private void writeBody(byte[] b, int off, int len) throws IOException {
+        if (cli_chan == null) {
+            writeHead();
+            cli_sock_out.write(b, off, len);
+            resp_bytes += len;
+            return;
+        }
+        writeBody(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Sends the requested byte ranges of an object, a single range as is and several as the parts of a multipart/byteranges body
+     * 
+     * @param ranges        the satisfiable ranges
+     * @param obj_type      the type of the object
+     * @param cached_body   the body of the cached object, or null to send the ranges from the file reader
+     * @throws IOException if reading the object or writing to the client fails
+     */
+    private void sendRanges(WebServerByteRanges ranges, String obj_type, ByteBuffer cached_body) throws IOException {
+        for (int i = 0; i < ranges.getCount(); i++) {
+            if (ranges.isMultipart()) {
+                byte[] part_head = ranges.partHead(i, obj_type);
+                writeBody(part_head, 0, part_head.length);
+            }
+            if (cached_body == null) {
+                sendObjectRange(ranges.getStart(i), ranges.getEnd(i));
+            } else {
+                cached_body.limit((int) ranges.getEnd(i)).position((int) ranges.getStart(i));
+                writeBody(cached_body);
+            }
+        }
+        if (ranges.isMultipart()) {
+            writeBody(ranges.closing(), 0, ranges.closing().length);
+        }
+    }
+
+    /**
+     * Sends the requested object from the file reader to the client gzip compressed, as a chunked body
+     * (memory stays bounded by the read buffer, the compressor and one chunk, whatever the object length)
+     * The time spent compressing is sent in a Server-Timing trailer.
+     * 
+     * @param obj_length    length of the object, as found before the response head was sent
+     * @throws IOException if reading the object or writing to the client fails, or the object is shorter than expected
+     */
+    private void sendObjectGzipChunked(long obj_length) throws IOException {
+        if (read_buffer == null) {
+            read_buffer = new byte[32*1024];
+        }
+        long started = System.nanoTime();
+        WebServerChunkedOutputStream chunked = new WebServerChunkedOutputStream(body_out, WebServerChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+        GZIPOutputStream gz = WebServerGzip.outputStream(chunked, gzip_level);
+        long head_bytes = resp_bytes;
+        long remaining = obj_length;
+        int b;
+        while (remaining > 0 && (b = buf_fr.read(read_buffer, 0, (int) Math.min(read_buffer.length, remaining))) != -1) {
+            gz.write(read_buffer, 0, b);
+            remaining -= b;
+            resp_bytes = head_bytes + chunked.getWireBytes();
+        }
+        if (remaining > 0) {
+            throw new IOException("object shorter than its length when the response began");
+        }
+        gz.finish();
+        chunked.addTrailer("Server-Timing", "gzip;dur=" + ((System.nanoTime() - started) / 1000) / 1000.0);
+        //closing the gzip stream ends its deflater and the chunked body (the last chunk and the trailer)
+        gz.close();
+        resp_bytes = head_bytes + chunked.getWireBytes();
+    }
+
+    /**
+     * Sends part of the requested object from the file reader to the client
+     * (large parts go straight from the file to the socket channel, smaller ones through the read buffer)
+     * 
+     * @param from  offset of the first byte to send
+     * @param to    offset just past the last byte to send
+     * @throws IOException if reading the object or writing to the client fails, or the object is shorter than advertised
+     */
+    private void sendObjectRange(long from, long to) throws IOException {
+        long sent = from;
+        if (to - from >= sendfile_threshold && cli_chan != null) {
+            if (pending_head != null) {
+                //transferTo can not take the response head along, it goes out with a first buffered chunk
+                sent = Math.min(to, from + 32*1024);
+                sendObjectBuffered(from, sent);
+            }
+            sent = sendObjectZeroCopy(sent, to);
+        }
+        sendObjectBuffered(sent, to);
+    }
+
+    /**
+     * Sends part of the requested object from the file reader to the client socket channel with FileChannel.transferTo,
+     * which the OS can carry out without copying the bytes through the JVM (sendfile)
+     * 
+     * @param from  offset of the first byte to send
+     * @param to    offset just past the last byte to send
+     * @return the offset reached, less than to if the transfer stopped making progress
+     * @throws IOException if reading the object or writing to the client fails
+     */
+    private long sendObjectZeroCopy(long from, long to) throws IOException {
+        FileChannel obj_chan = buf_fr.getChannel();
+        long position = from;
+        boolean writable = false;
+        nonBlocking();
+        while (position < to) {
+            long n = obj_chan.transferTo(position, Math.min(to - position, WRITE_CHUNK), cli_chan);
+            if (n <= 0) {
+                if (writable || position >= obj_chan.size()) {
+                    //file shrank or the channel refused the transfer, let the buffered copy finish the object
+                    break;
+                }
+                //socket send buffer is full, wait for the client to take more
+                writable = awaitWritable();
+                continue;
+            }
+            writable = false;
+            position += n;
+            resp_bytes += n;
+        }
+        return position;
+    }
+
+    /**
+     * Puts the client channel in non-blocking mode for the rest of the response (see endResponse) ahead of a large body write,
+     * so the write returns with whatever part of it the client took rather than blocking until the client took all of it
+     * 
+     * @throws IOException if the mode of the channel can not be changed
+     */
+    private void nonBlocking() throws IOException {
+        if (!write_nonblocking) {
+            cli_chan.configureBlocking(false);
+            write_nonblocking = true;
+        }
+    }
+
+    /**
+     * Puts the client channel back in blocking mode once the response is written, the socket streams (which the
+     * next request is read from) can only be used in blocking mode and with the channel out of the selector
+     * 
+     * @throws IOException if the mode of the channel can not be changed
+     */
+    private void blocking() throws IOException {
+        if (!write_nonblocking) {
+            return;
+        }
+        if (write_key != null) {
+            //a cancelled key only leaves the selector with its next selection
+            write_key.cancel();
+            write_key = null;
+            write_selector.selectNow();
+        }
+        cli_chan.configureBlocking(true);
+        write_nonblocking = false;
+    }
+
+    /**
+     * Waits for the client to take more of the response when the socket send buffer is full
+     * (the thread waits here rather than in a write, a stalled or too slow client is reset by the write timer
+     * and forceClose wakes the wait)
+     * 
+     * @return true if the channel was found writable, false if the wait ended without that
+     * @throws IOException if the selector fails or the connection was closed meanwhile
+     */
+    private boolean awaitWritable() throws IOException {
+        if (write_selector == null) {
+            write_selector = Selector.open();
+        }
+        if (write_key == null) {
+            write_key = cli_chan.register(write_selector, SelectionKey.OP_WRITE);
+        }
+        if (state.get() == CLOSED) {
+            throw new IOException("connection closed while waiting for the client to take its response");
+        }
+        int ready = write_selector.select(WRITE_WAIT);
+        write_selector.selectedKeys().clear();
+        return ready > 0;
+    }
+
+    /**
+     * Sends part of the requested object from the file reader to the client socket output stream through the read buffer
+     * 
+     * @param from  offset in the object to start from (bytes already sent)
+     * @param to    offset just past the last byte to send
+     * @throws IOException if reading the object or writing to the client fails, or the object is shorter than advertised
+     */
+    private void sendObjectBuffered(long from, long to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        if (read_buffer == null) {
+            read_buffer = new byte[32*1024];
+        }
+        buf_fr.getChannel().position(from);
+        long remaining = to - from;
+        //int b is number of bytes read from input file and written out to client
+        int b;
+        // read from file reader into buffer then write from buffer to client socket output stream
+        while (remaining > 0 && (b = buf_fr.read(read_buffer, 0, (int) Math.min(read_buffer.length, remaining))) != -1) {
+            writeBody(read_buffer, 0, b);
+            remaining -= b;
+        }
+        if (remaining > 0) {
+            throw new IOException("object shorter than its advertised length");
+        }
+    }
+
+
+
+    /**
+     * Handles the returning of an Http 416 response to a client that asked only for byte ranges beyond the end of the object
      *
-     * @throws WebServerClientProcessException if an error occurs sending the 408 response back to client (error flag set)
-     *                                         *purposfully throws this exception at the end of execution (notFound flag set)
-     */
-    private void clientObjNotFound() throws WebServerClientProcessException {
-        //create server Bad Request response string
-        Date currentDate = new Date();
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss zzz");
-        String currentDate_formatted = dateFormatter.format(currentDate);
-        String serverName = "CPSC441_Assignment3_WebServer";
-        String ConnectionVal = "close";
-        String Http_resp_404 = 
-            "HTTP/1.1 404 Not Found\r\n"+
-            "Server: " + serverName + "\r\n" +
-            "Date: " + currentDate_formatted + "\r\n"+
-            "Connection: " + ConnectionVal + "\r\n" + 
-            "\r\n";
-
-        //Convert server timeout response string into bytes to send out over client socket
-        byte[] objNtFoundResp_bytes = null; 
+     * @param obj_length    length of the object
+     * @param keep_alive    whether the connection stays open after the response
+     * @throws WebServerClientProcessException if an error occurs sending the 416 response back to client (error flag set)
+     */
+    private void clientRangeNotSatisfiable(long obj_length, boolean keep_alive) throws WebServerClientProcessException {
+        //create server Range Not Satisfiable response
+        WebServerResponseHead Http_resp_416 = WebServerHttp.rangeNotSatisfiableResponse(resp_head, obj_length, keep_alive);
+
+        //send out server Range Not Satisfiable response over client socket
+        try {
+            Http_resp_416.writeTo(cli_sock_out);
+            headSent(Http_resp_416.length());
+            cli_sock_out.flush();
+        } catch (IOException e) {
+            error_occured = true;
+            throw new WebServerClientProcessException("Error: a problem occured trying to send Range Not Satisfiable response to client");
+        }
+
+        //DEBUGGING
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client requested byte ranges that do not exist, sending back range not satisfiable response:\n" + Http_resp_416);
+        }
+    }
+
+
+
+    /**
+     * Handles the returning of an Http 304 response to a client whose copy of the requested object is current
+     *
+     * @param validators    the validator headers (Last-Modified, ETag) of the object
+     * @param keep_alive    whether the connection stays open after the response
+     * @throws WebServerClientProcessException if an error occurs sending the 304 response back to client (error flag set)
+     */
+    private void clientNotModified(byte[] validators, boolean keep_alive) throws WebServerClientProcessException {
+        //create server Not Modified response
+        WebServerResponseHead Http_resp_304 = WebServerHttp.notModifiedResponse(resp_head, validators, keep_alive);
+
+        //send out server Not Modified response over client socket
+        try {
+            Http_resp_304.writeTo(cli_sock_out);
+            headSent(Http_resp_304.length());
+            cli_sock_out.flush();
+        } catch (IOException e) {
+            error_occured = true;
+            throw new WebServerClientProcessException("Error: a problem occured trying to send Not Modified response to client");
+        }
+
+        //DEBUGGING
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client copy of requested object is current, sending back not modified response:\n" + Http_resp_304);
+        }
+    }
+
+
+
+    /**
+     * Handles the returning of an Http 200 response holding the server metrics to a client that requested the metrics path
+     *
+     * @param keep_alive    whether the connection stays open after the response
+     * @throws WebServerClientProcessException if an error occurs sending the metrics back to client (error flag set)
+     */
+    private void clientMetrics(boolean keep_alive) throws WebServerClientProcessException {
+        //render the metrics and create server OK response head
+        byte[] text = metrics.render().getBytes(StandardCharsets.US_ASCII);
+        WebServerResponseHead Http_resp_200 = WebServerHttp.okResponseHead(resp_head, WebServerHttp.generatedHeaders(WebServerMetrics.CONTENT_TYPE, text.length), keep_alive);
+
+        //send out server OK response and the metrics over client socket
         try {
-            objNtFoundResp_bytes = Http_resp_404.getBytes("US-ASCII");
-        } catch (UnsupportedEncodingException e) {
+            holdHead(Http_resp_200);
+            writeBody(text, 0, text.length);
+            endResponse();
+        } catch (IOException e) {
             error_occured = true;
-            throw new WebServerClientProcessException("Error: could not convert Http Server Object not found response into byte");
+            throw new WebServerClientProcessException("Error: a problem occured trying to send the metrics to client");
+        }
+
+        //DEBUGGING
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client requested the metrics, sending back Ok response:\n" + Http_resp_200);
         }
+    }
+
 
-        //send out server timeout response bytes over client socket
+
+    /**
+     * Handles the returning of an Http 404 response to client that has submitted a GET request for a file object that cannot be found 
+     *
+     * @param keep_alive    whether the connection stays open after the response
+     * @throws WebServerClientProcessException if an error occurs sending the 404 response back to client (error flag set)
+     *                                         *purposfully throws this exception at the end of execution if the connection is closing (notFound flag set)
+     */
+    private void clientObjNotFound(boolean keep_alive) throws WebServerClientProcessException {
+        //create server Object not found response
+        WebServerResponseHead Http_resp_404 = WebServerHttp.statusResponse(resp_head, WebServerHttp.RESPONSE_404, keep_alive);
+
+        //send out server timeout response over client socket
         try {
-            cli_sock_out.write(objNtFoundResp_bytes);
+            Http_resp_404.writeTo(cli_sock_out);
+            headSent(Http_resp_404.length());
             cli_sock_out.flush();
         } catch (IOException e) {
             error_occured = true;
@@ -378,10 +1072,14 @@ public class WebServerClientProcess extends Thread {
         }
 
         //DEBUGGING
-        System.out.println("Client requested object not found, sending back object not found response: ");
-        System.out.println("===========================================================================");
-        System.out.println(Http_resp_404);
-        System.out.println();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client requested object not found, sending back object not found response:\n" + Http_resp_404);
+        }
+
+        //a persistent connection goes on to the next request
+        if (keep_alive) {
+            return;
+        }
 
         //begin stopping client process thread
         notFound = true;
@@ -398,31 +1096,13 @@ public class WebServerClientProcess extends Thread {
      */
     private void clientBadRequest() throws WebServerClientProcessException {
 
-        //create server Bad Request response string
-        Date currentDate = new Date();
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss zzz");
-        String currentDate_formatted = dateFormatter.format(currentDate);
-        String serverName = "CPSC441_Assignment3_WebServer";
-        String ConnectionVal = "close";
-        String Http_resp_400 = 
-            "HTTP/1.1 400 Bad Request\r\n"+
-            "Server: " + serverName + "\r\n" +
-            "Date: " + currentDate_formatted + "\r\n"+
-            "Connection: " + ConnectionVal + "\r\n" + 
-            "\r\n";
-
-        //Convert server timeout response string into bytes to send out over client socket
-        byte[] badReqResp_bytes = null; 
-        try {
-            badReqResp_bytes = Http_resp_400.getBytes("US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            error_occured = true;
-            throw new WebServerClientProcessException("Error: could not convert Http Server Bad Request response into byte");
-        }
+        //create server Bad Request response
+        WebServerResponseHead Http_resp_400 = WebServerHttp.statusResponse(resp_head, WebServerHttp.RESPONSE_400, false);
 
-        //send out server timeout response bytes over client socket
+        //send out server timeout response over client socket
         try {
-            cli_sock_out.write(badReqResp_bytes);
+            Http_resp_400.writeTo(cli_sock_out);
+            headSent(Http_resp_400.length());
             cli_sock_out.flush();
         } catch (IOException e) {
             error_occured = true;
@@ -430,10 +1110,11 @@ public class WebServerClientProcess extends Thread {
         }
 
         //DEBUGGING
-        System.out.println("Client has sent bad request, sending back bad request response: ");
-        System.out.println("================================================================");
-        System.out.println(Http_resp_400);
-        System.out.println();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client has sent bad request, sending back bad request response:\n" + Http_resp_400);
+        }
+
+        recordResponse();
 
         //begin stopping client process thread
         badRequest = true;
@@ -451,31 +1132,13 @@ public class WebServerClientProcess extends Thread {
      */
     private void clientTimeout() throws WebServerClientProcessException {
 
-        //create server Timeout response string
-        Date currentDate = new Date();
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss zzz");
-        String currentDate_formatted = dateFormatter.format(currentDate);
-        String serverName = "CPSC441_Assignment3_WebServer";
-        String ConnectionVal = "close";
-        String Http_resp_408 = 
-            "HTTP/1.1 408 Request Timeout\r\n"+
-            "Server: " + serverName + "\r\n" +
-            "Date: " + currentDate_formatted + "\r\n"+
-            "Connection: " + ConnectionVal + "\r\n" + 
-            "\r\n";
-
-        //Convert server timeout response string into bytes to send out over client socket
-        byte[] timeOutResp_bytes = null; 
-        try {
-            timeOutResp_bytes = Http_resp_408.getBytes("US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            error_occured = true;
-            throw new WebServerClientProcessException("Error: could not convert Http Server Timeout response into byte");
-        }
+        //create server Timeout response
+        WebServerResponseHead Http_resp_408 = WebServerHttp.statusResponse(resp_head, WebServerHttp.RESPONSE_408, false);
 
-        //send out server timeout response bytes over client socket
+        //send out server timeout response over client socket
         try {
-            cli_sock_out.write(timeOutResp_bytes);
+            Http_resp_408.writeTo(cli_sock_out);
+            headSent(Http_resp_408.length());
             cli_sock_out.flush();
         } catch (IOException e) {
             error_occured = true;
@@ -483,10 +1146,11 @@ public class WebServerClientProcess extends Thread {
         }
 
         //DEBUGGING
-        System.out.println("Client has exceeded timeout limit, sending back timeout response: ");
-        System.out.println("==================================================================");
-        System.out.println(Http_resp_408);
-        System.out.println();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Client has exceeded timeout limit, sending back timeout response:\n" + Http_resp_408);
+        }
+
+        recordResponse();
 
         //begin stopping client process thread
         timeout_exceeded = true;
@@ -510,14 +1174,298 @@ public class WebServerClientProcess extends Thread {
 
 
 
-    //BASIC ACCESSOR FUNCTIONS
+    /**
+     * Counts a response head written to the client, the first one written for a request marks its time to first byte
+     *
+     * @param length    bytes of the head
+     */
+    private void headSent(int length) {
+        resp_bytes += length;
+        if (resp_first_byte == 0) {
+            resp_first_byte = System.nanoTime();
+        }
+    }
+
+    /**
+     * Adds the current request to the access log and the metrics, once, with the status of the last response head built
+     * and the bytes sent (requests that were never parsed are logged without method and object-path)
+     */
+    private void recordResponse() {
+        if (resp_logged) {
+            return;
+        }
+        resp_logged = true;
+        long now = System.nanoTime();
+        if (access_log != null) {
+            String method = request_parsed ? request_parser.getMethod() : null;
+            String target = request_parsed ? request_parser.getTarget() : null;
+            access_log.log(client_name, method, target, resp_head.getStatus(), resp_bytes, now - req_started);
+        }
+        if (metrics != null) {
+            metrics.response(resp_head.getStatus(), resp_bytes, (resp_first_byte > 0) ? resp_first_byte - req_started : -1, now - req_started);
+        }
+    }
+
+
+
+    /**
+     * Starts the process on a new thread
+     * 
+     * @param threads   the factory creating the thread (platform or virtual) the process runs on
+     */
+    public void start(ThreadFactory threads) {
+        process_thread = threads.newThread(this);
+        process_thread.start();
+    }
+
+    /**
+     * Waits for the process to finish, whichever thread it runs on
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        finished.await();
+    }
+
+
+
+    /**
+     * Handles the returning of an Http 503 response to a client that the server is too busy to serve and closes the connection
+     * (called by the main WebServer thread or the worker pool in place of running the process, so it reports errors instead of throwing)
+     *
+     * @param retry_after   seconds the client is told to wait before retrying
+     */
+    public void clientServiceUnavailable(int retry_after) {
+
+        //create server Service Unavailable response
+        WebServerResponseHead Http_resp_503 = WebServerHttp.serviceUnavailableResponse(resp_head, retry_after);
+
+        //send out server Service Unavailable response bytes over client socket and close it
+        //(the response is far smaller than the socket send buffer so this does not block the caller)
+        //in pool mode the output is shut down instead and the pool drains the request the client sent before closing,
+        //closing with unread bytes would reset the connection and the client could lose the response
+        req_started = System.nanoTime();
+        if (timer != null) {
+            timer_wheel.cancel(timer);
+        }
+        try {
+            Http_resp_503.writeTo(cli_sock_out);
+            headSent(Http_resp_503.length());
+            cli_sock_out.flush();
+            if (pool != null && cli_chan != null) {
+                cli_sock.shutdownOutput();
+                pool.drainRefused(cli_chan);
+            } else {
+                cli_sock.close();
+            }
+        } catch (IOException e) {
+            error_occured = true;
+            System.out.println("Error: a problem occured trying to send Service Unavailable response to client");
+            closeSocket();
+        }
+
+        //DEBUGGING
+        //System.out.println("Server overloaded, sent back service unavailable response");
+        recordResponse();
+        if (metrics != null) {
+            metrics.connectionRejected();
+            metrics.connectionClosed();
+        }
+        unregister();
+
+        finished.countDown();
+    }
+
+
+
+
+
+
+
+    /**
+     * Arms the connection's timer for the wait for a request
+     * 
+     * @param started   whether bytes of the request have been recieved (the header timeout then applies)
+     */
+    private void armReadTimer(boolean started) {
+        if (timer == null) {
+            return;
+        }
+        //cancelled before the timer changes over, so an expiry of the previous deadline can not see the new one
+        timer_wheel.cancel(timer);
+        timing_write = false;
+        int t = (started && header_timeout > 0) ? header_timeout : timeout;
+        if (t > 0) {
+            timer_wheel.arm(timer, t);
+        } else {
+            timer_wheel.cancel(timer);
+        }
+    }
+
+    /**
+     * Arms the connection's timer for writing the response
+     */
+    private void armWriteTimer() {
+        if (timer == null) {
+            return;
+        }
+        //(as for the read timer)
+        timer_wheel.cancel(timer);
+        timing_write = true;
+        write_started = System.currentTimeMillis();
+        timer_mark = resp_bytes;
+        if (write_timeout > 0) {
+            timer_wheel.arm(timer, write_timeout);
+        } else {
+            timer_wheel.cancel(timer);
+        }
+    }
+
+    /**
+     * Run by the timer wheel when the connection's timer expires (on the wheel's thread, so it only flags and closes)
+     * a connection waiting too long for a request has its input shut down, so its blocked read returns and it answers 408
+     * or closes quietly, a response that sent nothing since the timer was armed is reset, one still making progress is given more time
+     * unless it fell below the minimum send rate
+     */
+    private void timerExpired() {
+        if (timing_write) {
+            long now = System.currentTimeMillis();
+            long sent = resp_bytes;
+            long slow_deadline = slowDeadline(sent);
+            if (now >= slow_deadline) {
+                write_too_slow = true;
+                forceClose();
+                return;
+            }
+            if (sent != timer_mark) {
+                timer_mark = sent;
+                timer_wheel.arm(timer, Math.min(write_timeout, slow_deadline - now));
+                return;
+            }
+            write_stalled = true;
+            forceClose();
+        } else {
+            read_timed_out = true;
+            try {
+                cli_sock.shutdownInput();
+            } catch (IOException e) {
+                // Ok, already closed
+            }
+        }
+    }
+
+    /**
+     * Gives the time by which a response must have sent more than it has to keep up the minimum send rate
+     * (the write timeout, and a second more for each min_send_rate bytes sent)
+     * 
+     * @param sent  the response bytes sent so far
+     * @return the deadline in System.currentTimeMillis() time, Long.MAX_VALUE if there is no minimum rate
+     */
+    private long slowDeadline(long sent) {
+        if (min_send_rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return write_started + write_timeout + sent * 1000 / min_send_rate;
+    }
+
+    /**
+     * Marks the connection busy once request bytes arrive (it may already be busy with pipelined requests)
+     * 
+     * @return false if a draining registry has already closed the connection
+     */
+    private boolean markBusy() {
+        return state.compareAndSet(IDLE, BUSY) || state.get() == BUSY;
+    }
+
+    /**
+     * Closes the connection if it is waiting for a request (called by a draining registry)
+     * the process's blocked read then fails and it shuts down
+     * 
+     * @return true if the connection was idle and is now closed
+     */
+    public boolean closeIfIdle() {
+        if (!state.compareAndSet(IDLE, CLOSED)) {
+            return false;
+        }
+        closeSocket();
+        return true;
+    }
 
-    //used by the main WebServer thread during shutdown to check if the Client process thread is currently serving a client GET 
-    public boolean isProcessingGET() {
-        return processing_GET;
+    /**
+     * Closes the connection whatever it is doing (called by a draining registry once its deadline passes),
+     * a response in progress is cut short and the connection reset so the bytes still in the socket send buffer are dropped
+     */
+    public void forceClose() {
+        state.set(CLOSED);
+        try {
+            //shutting the output down first also wakes a thread blocked in a zero-copy transfer, which closing alone does not
+            cli_sock.setSoLinger(true, 0);
+            cli_sock.shutdownOutput();
+        } catch (IOException e) {
+            // Ok, closed normally
+        }
+        closeSocket();
+
+        //a process waiting for the client to take its response wakes up to find the connection closed
+        Selector s = write_selector;
+        if (s != null) {
+            s.wakeup();
+        }
     }
 
-    //used by the main WebServer thread during shutdown to get access to the Client process thread's client socket so that it can close it
+    //closes the client socket on behalf of another thread
+    private void closeSocket() {
+        try {
+            cli_sock.close();
+        } catch (IOException e) {
+            System.out.println("Error: a problem occured trying to close client socket");
+        }
+    }
+
+    /**
+     * Called by the registry the connection is listed in, the connection removes itself from it once closed
+     * 
+     * @param r     the registry
+     * @param id    the id the connection is registered under
+     */
+    void registered(WebServerConnectionRegistry r, long id) {
+        registry = r;
+        registry_id = id;
+    }
+
+    /**
+     * Called by the worker pool the process is submitted to, the connection is parked there until its first request
+     * and between requests (the timeout bounds the wait for the first request from here)
+     *
+     * @param p     the worker pool
+     */
+    void pooled(WebServerWorkerPool p) {
+        pool = p;
+        armReadTimer(false);
+    }
+
+    /**
+     * Closes a connection parked by the worker pool without it being run again
+     * (called by the pool when the server shuts down or the connection could not be watched, the connection is idle)
+     */
+    public void closeParked() {
+        state.set(CLOSED);
+        finish();
+    }
+
+    //takes the connection out of its registry
+    private void unregister() {
+        state.set(CLOSED);
+        if (registry != null) {
+            registry.remove(registry_id);
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //used to get access to the Client process thread's client socket
     public Socket get_cliSocket() {
         return this.cli_sock;
     }
@@ -526,8 +1474,24 @@ public class WebServerClientProcess extends Thread {
 
 
     public void run() {
+        boolean parked = false;
         try {
-            readClientGET();
+            //serve requests until the client or the server closes the connection
+            //(in pool mode the connection gives its worker back once nothing more is buffered, rather than wait on it for the next request)
+            while (readClientGET()) {
+                //DEBUGGING
+                //System.out.println("Keeping connection open for the next request");
+                if (pool != null && cli_chan != null && req_end == req_start) {
+                    armReadTimer(false);
+                    parked = true;
+                    break;
+                }
+            }
+
+            //connection closed normally
+            if (!parked) {
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
+            }
         } catch (WebServerClientProcessException e) {
             //WebServerClientProcessException only thrown within the execution of the WebServerClientProcess if 
             //   a) shutdown requested (main WebServer thread shutdown the client socket)
@@ -536,36 +1500,73 @@ public class WebServerClientProcess extends Thread {
             //an error or timeout flag should have been set before the exception was thrown
             if (WebServer.shutdownRequested) {
                 //shutdown requested, let WebServerClientProcess thread die
-                System.out.println("Main WebServer thread has initiated shutdown");
+                logger.fine("Main WebServer thread has initiated shutdown");
                 //UNIT TESTING
-                System.out.println("Client Thread  @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort() + " shutting down");
-                System.out.println();
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
             } else if (timeout_exceeded) {
                 //client exceeded timeout, let WebServerClientProcess thread die
-                System.out.println("Client has timed out");
+                logger.fine("Client has timed out");
                 //UNIT TESTING
-                System.out.println("Client Thread  @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort() + " shutting down");
-                System.out.println();
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
             } else if (badRequest) {
                 //client sent bad request, let WebServerClientProcess thread die
-                System.out.println("Client sent bad request");
+                logger.fine("Client sent bad request");
                 //UNIT TESTING
-                System.out.println("Client Thread  @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort() + " shutting down");
-                System.out.println();
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
             } else if (notFound) {
                 //client requested object not found, let WebServerClientProcess thread die
-                System.out.println("Client requested object not found");
+                logger.fine("Client requested object not found");
+                //UNIT TESTING
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
+            } else if (write_stalled) {
+                //client stopped reading the response, its connection was reset
+                logger.fine("Client stopped taking its response for longer than the write timeout");
+                //UNIT TESTING
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
+            } else if (write_too_slow) {
+                //client took its response slower than the minimum send rate, its connection was reset
+                logger.fine("Client took its response slower than the minimum send rate");
                 //UNIT TESTING
-                System.out.println("Client Thread  @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort() + " shutting down");
-                System.out.println();
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
             } else if (error_occured) {
                 //error occured during execution, print error message and let WebServerClientProcess thread die
-                System.out.println(e.getMessage());
-                e.printStackTrace();
-                System.out.println();
+                logger.log(Level.WARNING, e.getMessage(), e);
                 //UNIT TESTING
-                System.out.println("Client Thread  @: " + cli_sock.getInetAddress() + " on port: " + cli_sock.getPort() + " shutting down");
+                logger.fine("Client Thread  @: " + client_name + " shutting down");
             }
+        } finally {
+            if (!parked) {
+                finish();
+            }
+        }
+
+        //the pool picks the connection up again when its next request arrives (the timeout still bounds the wait)
+        if (parked) {
+            pool.park(this);
+        }
+    }
+
+    //stops timing, closes the client socket and signals the process has finished
+    private void finish() {
+        if (timer != null) {
+            timer_wheel.cancel(timer);
+        }
+        try {
+            cli_sock.close();
+        } catch (IOException e) {
+            System.out.println("Error: a problem occured trying to close client socket");
+        }
+        if (write_selector != null) {
+            try {
+                write_selector.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+        if (metrics != null) {
+            metrics.connectionClosed();
         }
+        unregister();
+        finished.countDown();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+
+/**
+ * WebServerClock Class
+ * Shared clock providing the value of the Date header sent in every response
+ *
+ * The formatted date only changes once a second, so it is formatted once per second (by whichever
+ * connection first needs it in that second) and every other response reuses the same bytes.
+ * Dates are in the Http IMF-fixdate format, ie. "Sun, 06 Nov 1994 08:49:37 GMT".
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+public class WebServerClock {
+
+    //Http date format (DateTimeFormatter is immutable, unlike SimpleDateFormat it can be shared between threads)
+    public static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    //a second and its formatted date
+    private static class Tick {
+        final long second;
+        final byte[] date;
+
+        Tick(long s) {
+            second = s;
+            date = format(s * 1000).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    //the current second (replaced whole, so readers always see a matching second and date)
+    private static volatile Tick current = new Tick(System.currentTimeMillis() / 1000);
+
+    /**
+     * Gives the Date header value for the current second
+     *
+     * @return the US-ASCII bytes of the date (shared, must not be modified)
+     */
+    public static byte[] httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        Tick t = current;
+        if (t.second != second) {
+            t = new Tick(second);
+            current = t;
+        }
+        return t.date;
+    }
+
+    /**
+     * Formats a time as an Http date
+     *
+     * @param millis    the time in milli-seconds since the epoch
+     * @return the formatted date
+     */
+    public static String format(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+}
@@ -0,0 +1,97 @@
+
+/**
+ * WebServerConfig Class
+ * Settings of a WebServer instance, filled in from the command line by ServerDriver
+ * (every field starts out at its default)
+ */
+
+import java.io.File;
+
+public class WebServerConfig {
+
+    //idle connection timeout in milli-seconds, 0 means infinity
+    public int timeout = 0;
+
+    //server mode: WebServer.MODE_THREAD, MODE_VIRTUAL, MODE_POOL or MODE_NIO
+    public String mode = WebServer.MODE_THREAD;
+
+    //most requests served on one persistent connection before it is closed (1 disables persistent connections)
+    public int maxRequests = 100;
+
+    //objects of at least this many bytes are sent zero-copy with FileChannel.transferTo in the threaded modes
+    public long sendfileThreshold = 64*1024;
+
+    //byte budget of the in-memory content cache (0 disables it) and the largest object it holds
+    public long cacheBytes = 64L*1024*1024;
+    public long cacheMaxEntry = 1024*1024;
+
+    //where cached bodies are kept: "heap", or "offheap" (pooled direct buffers, objects above cacheMapThreshold memory-mapped)
+    public String cacheStore = "heap";
+    public long cacheMapThreshold = 256*1024;
+
+    //offheap store: most bytes of released direct buffers kept for reuse, on top of the cache budget
+    //(they are reported with the store's memory, not the cache's)
+    public long cachePoolBytes = 8L*1024*1024;
+
+    //deflate level (1-9) of the gzip variants the content cache makes of text objects, 0 disables gzip encoding
+    public int gzipLevel = 6;
+
+    //number of event loops connections are spread across in nio mode
+    public int reactors = Runtime.getRuntime().availableProcessors();
+
+    //nio mode: threads reading objects and loading them into the content cache (and compressing them) for the event loops,
+    //which must not wait on the disk themselves
+    public int loaders = 4;
+
+    //pool mode: worker threads, connections allowed to wait for a worker, and how many of those may come from one client ip
+    public int workers = 64;
+    public int queueDepth = 256;
+    public int clientQueueDepth = 64;
+
+    //seconds a client turned away with 503 is told to wait before retrying
+    public int retryAfter = 1;
+
+    //access log file ("off" disables it), the size it is rotated at, rotated files kept
+    //and the requests its ring buffer holds before new ones are dropped
+    public String accessLog = System.getProperty("java.io.tmpdir") + File.separator + "webserver-access.log";
+    public long accessLogRotate = 16L*1024*1024;
+    public int accessLogKeep = 4;
+    public int accessLogRing = 16*1024;
+
+    //milli-seconds allowed to recieve the rest of a request head once its first bytes arrived (0 uses the timeout),
+    //and milli-seconds a response may go without any of it being taken by the client before the connection is reset (0 means infinity)
+    //(so a client trickling its request or not reading its response can not hold a connection indefinitely)
+    public int headerTimeout = 10000;
+    public int writeTimeout = 30000;
+
+    //bytes per second a response must average to keep its connection, on top of the write timeout
+    //(a response is reset once it took longer than the write timeout plus a second per minSendRate bytes it sent,
+    //so a client taking its response a trickle at a time can not hold a connection indefinitely either; 0 disables it)
+    public int minSendRate = 1024;
+
+    //most files of the document root kept in the file index (0 disables the index, every file is then looked up on disk)
+    public int indexEntries = 100000;
+
+    //most missing object paths kept in the negative cache, answered with 404 without looking on disk (0 disables it)
+    public int negativeEntries = 4096;
+
+    //whether TCP_NODELAY is set on client connections (responses are already put together in as few writes as possible,
+    //Nagle's algorithm would only hold back the last segment of each response until the client acknowledges the previous ones)
+    public boolean tcpNoDelay = true;
+
+    //request path the server metrics are served at ("off" disables the metrics)
+    public String metricsPath = "off";
+
+    //milli-seconds responses in progress on shutdown are given to finish before thier connections are forcibly closed
+    //(idle connections are closed straight away)
+    public int drainTimeout = 5000;
+
+    /**
+     * Builds the default configuration with the given idle connection timeout
+     *
+     * @param timeout   idle connection timeout in milli-seconds, 0 means infinity
+     */
+    public WebServerConfig(int timeout) {
+        this.timeout = timeout;
+    }
+}
@@ -0,0 +1,153 @@
+
+/**
+ * WebServerConnectionRegistry Class
+ * Keeps track of the open connections of the threaded modes (thread, virtual and pool)
+ *
+ * Each accepted connection is registered under an id before it is started and removes itself once its socket
+ * is closed, so the registry only ever holds the connections currently open (and any lookup is a hash lookup).
+ * On shutdown the registry drains them: idle connections (waiting for a request) are closed at once,
+ * connections in the middle of a response are given until a deadline to finish it and are closed after that.
+ * In nio mode each event loop keeps its own connections with its selector and drains them itself.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebServerConnectionRegistry {
+
+    //milli-seconds given to forcibly closed connections to notice it and remove themselves
+    private static final long FORCED_CLOSE_GRACE = 1000;
+
+    //open connections by id
+    private final ConcurrentHashMap<Long, WebServerClientProcess> connections;
+    private final AtomicLong next_id;
+
+    //set once a drain has started, connections removing themselves then signal the draining thread
+    private volatile boolean draining;
+    private final ReentrantLock lock;
+    private final Condition removed;
+
+    /**
+     * Default no-arg constructor, an empty registry
+     */
+    public WebServerConnectionRegistry() {
+        connections = new ConcurrentHashMap<Long, WebServerClientProcess>();
+        next_id = new AtomicLong();
+        draining = false;
+        lock = new ReentrantLock();
+        removed = lock.newCondition();
+    }
+
+    /**
+     * Registers an accepted connection (before it is started, so it can not finish before it is registered)
+     *
+     * @param process   the connection's client process
+     * @return the id the connection is registered under
+     */
+    public long register(WebServerClientProcess process) {
+        long id = next_id.incrementAndGet();
+        connections.put(id, process);
+        process.registered(this, id);
+        return id;
+    }
+
+    /**
+     * Removes a connection once it is closed
+     *
+     * @param id    the id the connection was registered under
+     */
+    public void remove(long id) {
+        if (connections.remove(id) != null && draining) {
+            lock.lock();
+            try {
+                removed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Looks up an open connection
+     *
+     * @param id    the id the connection was registered under
+     * @return the connection's client process, null if it is closed
+     */
+    public WebServerClientProcess get(long id) {
+        return connections.get(id);
+    }
+
+    /**
+     * Drains the registry: closes every idle connection straight away, waits up to the deadline for the connections
+     * serving a response to finish it (they close themselves afterwards as the server is shutting down, and any that
+     * go idle in the meantime are closed too), then forcibly closes whatever is left
+     * (the accept loop must have stopped registering connections before this is called)
+     *
+     * @param deadline  System.currentTimeMillis() by which in-flight responses must be done
+     * @return the number of connections forcibly closed at the deadline
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drain(long deadline) throws InterruptedException {
+        draining = true;
+
+        //idle connections are closed at once, busy ones are checked again whenever a connection is removed
+        //(a busy connection that goes idle after its response would otherwise wait on its read timeout)
+        closeIdle();
+        lock.lock();
+        try {
+            long now;
+            while (!connections.isEmpty() && (now = System.currentTimeMillis()) < deadline) {
+                removed.await(Math.min(deadline - now, 50), TimeUnit.MILLISECONDS);
+                closeIdle();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        //deadline passed, close the rest part way through thier response
+        int forced = 0;
+        for (WebServerClientProcess process : connections.values()) {
+            process.forceClose();
+            forced++;
+        }
+        if (forced > 0) {
+            System.out.println("Forcibly closed " + forced + " connection(s) still serving a response after the drain deadline");
+        }
+
+        //give the threads of the closed connections a moment to notice and wind down
+        lock.lock();
+        try {
+            long until = System.currentTimeMillis() + FORCED_CLOSE_GRACE;
+            long now;
+            while (!connections.isEmpty() && (now = System.currentTimeMillis()) < until) {
+                removed.await(until - now, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return forced;
+    }
+
+    //closes the connections waiting for a request
+    private void closeIdle() {
+        for (WebServerClientProcess process : connections.values()) {
+            process.closeIfIdle();
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //connections currently open
+    public int size() {
+        return connections.size();
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+}
@@ -0,0 +1,508 @@
+
+/**
+ * WebServerContentCache Class
+ * Size-bounded in-memory cache of the objects served by the WebServer, keyed by resolved object path
+ *
+ * Each entry holds an object body and its prebuilt response headers so a hit is served
+ * without touching the disk. Entries are evicted least recently used first once the
+ * memory the cached bodies take in the store (a pooled buffer counting at its full size) exceeds the byte budget, and are dropped when thier file's modification
+ * time or length changes (checked at most once a second per entry).
+ * Where the bodies are kept (on the heap or off it) is up to the WebServerCacheStore the cache is given.
+ *
+ * For clients accepting gzip, text objects are also served from a gzip variant cached next to the
+ * object (see WebServerGzip): the precompressed .gz sibling of the file when there is an up to date one,
+ * otherwise the cached body compressed once. A variant is dropped along with the version of the object it was made from.
+ *
+ * Loads are single-flight: the first request to miss an entry loads it (or makes its gzip variant) and the requests
+ * missing the same entry meanwhile wait for that load and share its result, instead of each reading the file
+ * (or compressing it) again, so a popular object changing or being evicted causes one read rather than a burst of them.
+ *
+ * get may block, on the disk or on another request's load, so event loop threads (which must never block) use peek,
+ * which only ever answers from what is already cached, and leave loads to threads that may wait.
+ *
+ * Given the server's WebServerFileIndex, the cache checks entries of the files it knows against thier index entry
+ * (kept up to date by the index's watcher) instead of the file itself, so those hits make no filesystem calls at all.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebServerContentCache {
+
+    //prefix of the keys gzip variants are cached under (no object path starts with it)
+    private static final String GZIP_KEY = "gzip:";
+
+    //a load of an entry (or gzip variant) not in the cache
+    private interface Loader {
+        WebServerCachedObject load() throws IOException;
+    }
+
+    /**
+     * Flight Class
+     * A load in progress and the requests waiting for it
+     */
+    private static final class Flight {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition landed = lock.newCondition();
+
+        //guarded by lock
+        private boolean done;
+        private int waiters;
+        private WebServerCachedObject entry;
+        private IOException failure;
+
+        //waits for the load to land, false if it had already landed before the request could join it
+        boolean join() {
+            lock.lock();
+            try {
+                if (done) {
+                    return false;
+                }
+                waiters++;
+                while (!done) {
+                    landed.awaitUninterruptibly();
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //lands the load, taking a reference on its entry for each waiting request (the loader still holds its own)
+        void land(WebServerCachedObject e, IOException f) {
+            lock.lock();
+            try {
+                entry = e;
+                failure = f;
+                done = true;
+                if (entry != null) {
+                    for (int i = 0; i < waiters; i++) {
+                        entry.retain();
+                    }
+                }
+                landed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //byte budget for all cached bodies and the largest single body cached
+    private final long max_bytes;
+    private final long max_entry_bytes;
+
+    //cached objects in least to most recently used order, and the memory thier bodies take in the store
+    private final LinkedHashMap<String, WebServerCachedObject> entries;
+    private long used_bytes;
+
+    //where the bodies are kept
+    private final WebServerCacheStore store;
+
+    //deflate level of compressed variants, 0 if gzip variants are not made
+    private final int gzip_level;
+
+    //metadata index of the document root entries are checked against, null if there is none
+    private final WebServerFileIndex file_index;
+
+    //guards entries and used_bytes (a lock rather than a monitor, so it is also safe from virtual threads)
+    private final ReentrantLock lock;
+
+    //loads in progress by key
+    private final ConcurrentHashMap<String, Flight> flights;
+
+    //counters
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong invalidations;
+    private final AtomicLong bypasses;
+    private final AtomicLong compressions;
+    private final AtomicLong siblings;
+    private final AtomicLong coalesced;
+
+    /**
+     * Constructor for WebServerContentCache
+     *
+     * @param budget        byte budget for all cached bodies
+     * @param entry_limit   largest body cached, bigger objects are always served from disk
+     * @param gzip          deflate level of gzip variants (1-9), 0 to never serve gzip
+     * @param body_store    where the bodies are kept
+     * @param index         the server's file index, null if it is disabled
+     */
+    public WebServerContentCache(long budget, long entry_limit, int gzip, WebServerCacheStore body_store, WebServerFileIndex index) {
+        store = body_store;
+        gzip_level = gzip;
+        file_index = index;
+        max_bytes = budget;
+        max_entry_bytes = Math.min(entry_limit, budget);
+        entries = new LinkedHashMap<String, WebServerCachedObject>(256, 0.75f, true);
+        used_bytes = 0;
+        lock = new ReentrantLock();
+        flights = new ConcurrentHashMap<String, Flight>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        invalidations = new AtomicLong();
+        bypasses = new AtomicLong();
+        compressions = new AtomicLong();
+        siblings = new AtomicLong();
+        coalesced = new AtomicLong();
+    }
+
+    /**
+     * Looks up the cached copy of an object, loading it into the cache on a miss
+     * (the caller holds a reference on the returned object and must release it once the response is sent)
+     *
+     * @param req_obj   the requested object file
+     * @return the cached object, or null if the object does not exist, is not a regular file
+     *         or is too large to cache (the caller then serves it from disk)
+     * @throws IOException if the object could not be read
+     */
+    public WebServerCachedObject get(File req_obj) throws IOException {
+        String key = req_obj.getPath();
+        WebServerCachedObject entry = lookup(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        WebServerFileIndex.Entry meta = (file_index != null) ? file_index.lookup(key) : null;
+        if ((meta != null) ? meta.getLength() > max_entry_bytes : !req_obj.isFile() || req_obj.length() > max_entry_bytes) {
+            bypasses.incrementAndGet();
+            return null;
+        }
+        return loadOnce(key, () -> load(key, req_obj));
+    }
+
+    /**
+     * Looks up the cached copy of an object in the encoding negotiated with the client
+     * (the caller holds a reference on the returned object and must release it once the response is sent)
+     *
+     * @param req_obj   the requested object file
+     * @param gzip      whether the client accepts gzip, as found by WebServerHttp.acceptsGzip
+     * @return the gzip variant if the client accepts it and the object is worth compressing, otherwise
+     *         the object as get(req_obj) returns it
+     * @throws IOException if the object could not be read or compressed
+     */
+    public WebServerCachedObject get(File req_obj, boolean gzip) throws IOException {
+        WebServerCachedObject entry = get(req_obj);
+        if (entry == null || !variantWanted(entry, gzip)) {
+            return entry;
+        }
+
+        String key = GZIP_KEY + req_obj.getPath();
+        WebServerCachedObject variant = lookup(key);
+        if (variant != null && variant.getLastModified() != entry.getLastModified()) {
+            //made from an older version of the object than the one just checked
+            invalidations.incrementAndGet();
+            remove(key, variant);
+            variant.release();
+            variant = null;
+        }
+        try {
+            if (variant != null) {
+                hits.incrementAndGet();
+                return variant;
+            }
+            return loadOnce(key, () -> loadVariant(key, req_obj, entry));
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Looks up the cached copy of an object in the encoding negotiated with the client, without loading it
+     * or waiting for a load of it in progress (for threads that must not block, a miss is left to get on another thread)
+     * (the caller holds a reference on the returned object and must release it once the response is sent)
+     *
+     * @param req_obj   the requested object file
+     * @param gzip      whether the client accepts gzip, as found by WebServerHttp.acceptsGzip
+     * @return the object as get(req_obj, gzip) would return it, or null if that is not cached (yet)
+     */
+    public WebServerCachedObject peek(File req_obj, boolean gzip) {
+        WebServerCachedObject entry = lookup(req_obj.getPath());
+        if (entry == null) {
+            return null;
+        }
+        if (!variantWanted(entry, gzip)) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        WebServerCachedObject variant = lookup(GZIP_KEY + req_obj.getPath());
+        if (variant != null && variant.getLastModified() != entry.getLastModified()) {
+            //made from an older version of the object, get drops it
+            variant.release();
+            variant = null;
+        }
+        entry.release();
+        if (variant != null) {
+            hits.incrementAndGet();
+        }
+        return variant;
+    }
+
+    //whether a request is served the gzip variant of a cached object rather than the object itself
+    private boolean variantWanted(WebServerCachedObject entry, boolean gzip) {
+        return gzip && gzip_level > 0
+            && entry.getLength() >= WebServerGzip.MIN_LENGTH && WebServerGzip.isCompressible(entry.getContentType());
+    }
+
+    //takes a reference on a cached entry, dropping it instead if its file changed since it was cached
+    private WebServerCachedObject lookup(String key) {
+        WebServerCachedObject entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry != null) {
+                entry.retain();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry != null && !isCurrent(entry)) {
+            invalidations.incrementAndGet();
+            remove(key, entry);
+            entry.release();
+            entry = null;
+        }
+        return entry;
+    }
+
+    //runs a load unless one for the same key is already in progress, in which case its result is waited for and shared
+    //(a load that lands before a request could join it has cached its entry, so the cache is looked in again)
+    private WebServerCachedObject loadOnce(String key, Loader loader) throws IOException {
+        while (true) {
+            Flight flight = new Flight();
+            Flight current = flights.putIfAbsent(key, flight);
+            if (current == null) {
+                misses.incrementAndGet();
+                WebServerCachedObject entry = null;
+                IOException failure = null;
+                try {
+                    entry = loader.load();
+                    return entry;
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    //landed before it leaves the map, so a request arriving in between finds it landed and looks in
+                    //the cache again rather than installing a flight of its own and loading the object a second time
+                    flight.land(entry, failure);
+                    flights.remove(key, flight);
+                }
+            }
+
+            if (current.join()) {
+                coalesced.incrementAndGet();
+                if (current.failure != null) {
+                    throw new IOException("a shared load failed", current.failure);
+                }
+                //null when the object turned out not to be cacheable, it is then served from disk
+                return current.entry;
+            }
+            WebServerCachedObject entry = lookup(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+    }
+
+    //whether a cached entry is still the current version of its file, by the file index if it knows the file
+    //(an entry cached with a weak entity tag, as the file had only just been modified, is reloaded for a strong one
+    // once the file has gone unchanged for a second, as the file index upgrades its own)
+    private boolean isCurrent(WebServerCachedObject entry) {
+        if (entry.getETag().startsWith("W/") && System.currentTimeMillis() - entry.getLastModified() >= 1000) {
+            return false;
+        }
+        WebServerFileIndex.Entry meta = (file_index != null) ? file_index.lookup(entry.getFile().getPath()) : null;
+        if (meta != null) {
+            return meta.getLastModified() == entry.getLastModified() && meta.getLength() == entry.getFileLength();
+        }
+        return entry.isCurrent(System.currentTimeMillis());
+    }
+
+    //reads an object and its headers into a new entry, caching it unless the file changed while it was read
+    private WebServerCachedObject load(String key, File req_obj) throws IOException {
+        long mtime = req_obj.lastModified();
+        ByteBuffer body;
+        try (FileChannel obj_chan = FileChannel.open(req_obj.toPath(), StandardOpenOption.READ)) {
+            long length = obj_chan.size();
+            if (length > max_entry_bytes) {
+                return null;
+            }
+            body = store.load(obj_chan, length);
+        }
+        if (body == null) {
+            //file shrank while it was read
+            return null;
+        }
+        String etag = WebServerHttp.etag(mtime, body.limit());
+        byte[] validators = WebServerHttp.validatorHeaders(mtime, etag);
+        String content_type = WebServerHttp.contentType(req_obj);
+        byte[] headers = WebServerHttp.objectHeaders(content_type, null, validators, body.limit());
+        WebServerCachedObject entry = new WebServerCachedObject(req_obj, mtime, body.limit(), etag, validators, content_type, headers, body, store);
+        if (req_obj.lastModified() != mtime) {
+            return entry;
+        }
+        insert(key, entry);
+        return entry;
+    }
+
+    //makes the gzip variant of a cached object, from its .gz sibling or by compressing its body, and caches it
+    private WebServerCachedObject loadVariant(String key, File req_obj, WebServerCachedObject entry) throws IOException {
+        long mtime = entry.getLastModified();
+        ByteBuffer body = null;
+        File sibling = WebServerGzip.sibling(req_obj, mtime);
+        if (sibling != null) {
+            try (FileChannel gz_chan = FileChannel.open(sibling.toPath(), StandardOpenOption.READ)) {
+                long length = gz_chan.size();
+                if (length <= max_entry_bytes) {
+                    body = store.load(gz_chan, length);
+                }
+            }
+        }
+        if (body != null) {
+            siblings.incrementAndGet();
+        } else {
+            byte[] compressed = WebServerGzip.compress(entry.getBody(), gzip_level);
+            body = store.copy(compressed, compressed.length);
+            compressions.incrementAndGet();
+        }
+
+        String etag = WebServerGzip.variantETag(entry.getETag());
+        byte[] validators = WebServerHttp.validatorHeaders(mtime, etag);
+        byte[] headers = WebServerHttp.objectHeaders(entry.getContentType(), WebServerGzip.ENCODING, validators, body.limit());
+        WebServerCachedObject variant = new WebServerCachedObject(req_obj, mtime, entry.getFileLength(), etag, validators, entry.getContentType(), headers, body, store);
+        if (req_obj.lastModified() != mtime) {
+            return variant;
+        }
+        insert(key, variant);
+        return variant;
+    }
+
+    //caches an entry, replacing any previous one under the key, then evicts down to the byte budget
+    private void insert(String key, WebServerCachedObject entry) {
+        lock.lock();
+        try {
+            //the cache holds its own reference besides the caller's
+            entry.retain();
+            WebServerCachedObject previous = entries.put(key, entry);
+            if (previous != null) {
+                used_bytes -= previous.getMemoryBytes();
+                previous.release();
+            }
+            used_bytes += entry.getMemoryBytes();
+
+            //evict least recently used entries until the bodies fit the budget again
+            Iterator<Map.Entry<String, WebServerCachedObject>> lru = entries.entrySet().iterator();
+            while (used_bytes > max_bytes && lru.hasNext()) {
+                WebServerCachedObject victim = lru.next().getValue();
+                lru.remove();
+                used_bytes -= victim.getMemoryBytes();
+                victim.release();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //drops an entry, unless another request already replaced it
+    private void remove(String key, WebServerCachedObject entry) {
+        lock.lock();
+        try {
+            if (entries.remove(key, entry)) {
+                used_bytes -= entry.getMemoryBytes();
+                entry.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS (cache statistics)
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    //requests for objects that were not cacheable (missing, not a file or too large)
+    public long getBypasses() {
+        return bypasses.get();
+    }
+
+    //gzip variants made by compressing a cached body, and made from a precompressed .gz sibling
+    public long getCompressions() {
+        return compressions.get();
+    }
+
+    public long getSiblings() {
+        return siblings.get();
+    }
+
+    //requests that waited for another request's load of the same entry instead of loading it themselves
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    //memory taken by cached bodies (as charged against the budget) and number of cached objects
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return used_bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //largest body cached, bigger objects are always served from disk
+    public long getMaxEntryBytes() {
+        return max_entry_bytes;
+    }
+
+    //the store holding the bodies, with its own memory statistics
+    public WebServerCacheStore getStore() {
+        return store;
+    }
+
+    public String toString() {
+        return String.format("entries=%d bytes=%d/%d hits=%d misses=%d coalesced=%d evictions=%d invalidations=%d bypasses=%d compressions=%d siblings=%d %s",
+            getEntryCount(), getUsedBytes(), max_bytes, getHits(), getMisses(), getCoalesced(), getEvictions(), getInvalidations(), getBypasses(),
+            getCompressions(), getSiblings(), store);
+    }
+}
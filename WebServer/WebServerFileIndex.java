@@ -0,0 +1,396 @@
+
+/**
+ * WebServerFileIndex Class
+ * Concurrent index of the metadata of the files under the document root, keyed by resolved object path
+ *
+ * Each regular file is indexed with its canonical path, length, modification time, content type (from the extension table
+ * of WebServerHttp), entity tag and prebuilt validator and object headers, so serving a known file needs no exists(),
+ * length(), lastModified() or content type lookups on the request path.
+ * The index is built by walking the document root at startup and then kept up to date by a thread following the
+ * WatchService events of every indexed directory (a lost event overflow rebuilds it).
+ * Listeners (ie. the negative cache) are told of every file and directory created under the document root.
+ * It holds at most a fixed number of files: in a larger tree the walk stops there and the files left out, like any file
+ * the index does not know, are looked up on disk as before. A directory that can not be watched is left out the same way
+ * (with everything under it), as its files could change without the index hearing of it.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WebServerFileIndex implements Runnable {
+
+    /**
+     * Entry Class
+     * The metadata of one indexed file (immutable, replaced whole when the file changes)
+     */
+    public static final class Entry {
+        private final File file;
+        private final long length;
+        private final long mtime;
+        private final String content_type;
+        private final String etag;
+        private final byte[] validators;
+        private final byte[] headers;
+
+        Entry(File f, long l, long m, String t) {
+            file = f;
+            length = l;
+            mtime = m;
+            content_type = t;
+            etag = WebServerHttp.etag(mtime, length);
+            validators = WebServerHttp.validatorHeaders(mtime, etag);
+            headers = WebServerHttp.objectHeaders(content_type, null, validators, length);
+        }
+
+        //the canonical file
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return mtime;
+        }
+
+        //the MIME type sent as Content-Type (null if it could not be discerned)
+        public String getContentType() {
+            return content_type;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        //the Last-Modified and ETag header lines
+        public byte[] getValidators() {
+            return validators;
+        }
+
+        //the object headers of a 200 Ok response with the whole file as its body
+        public byte[] getHeaders() {
+            return headers;
+        }
+
+        //whether the entity tag was made weak because the file had only just been modified
+        boolean isWeak() {
+            return etag.startsWith("W/");
+        }
+    }
+
+    /**
+     * Listener Interface
+     * Told of the files and directories created under the document root, on the index's watcher thread
+     */
+    public interface Listener {
+        /**
+         * @param p             the created file or directory, the document root itself after a rebuild
+         * @param directory     whether it is a directory (thier files have been indexed by the time this is called)
+         */
+        void created(Path p, boolean directory);
+    }
+
+    //the document root as given (keys are built on it, like WebServerHttp.resolveObject builds paths) and its canonical path
+    private final Path root;
+    private final Path canonical_root;
+
+    //most files indexed
+    private final int max_entries;
+
+    //indexed files by resolved object path
+    private final ConcurrentHashMap<String, Entry> entries;
+
+    //the directories being watched by thier watch keys, whether the walk left files out
+    //and whether it left out directories it could not watch
+    private WatchService watcher;
+    private final ConcurrentHashMap<WatchKey, Path> watched_dirs;
+    private volatile boolean truncated;
+    private volatile boolean unwatched;
+
+    //thread following the watch events, and the listeners it tells of created files
+    private Thread updater;
+    private final CopyOnWriteArrayList<Listener> listeners;
+
+    //counters
+    private final AtomicLong updates;
+    private final AtomicLong rebuilds;
+
+    /**
+     * Constructor for WebServerFileIndex, walks the document root to build the index
+     *
+     * @param root_dir      the document root, as WebServerHttp.resolveObject resolves object paths against it
+     * @param max_files     most files indexed
+     * @throws IOException if the document root could not be walked or watched
+     */
+    public WebServerFileIndex(String root_dir, int max_files) throws IOException {
+        root = Paths.get(root_dir);
+        canonical_root = root.toRealPath();
+        max_entries = Math.max(1, max_files);
+        entries = new ConcurrentHashMap<String, Entry>();
+        watched_dirs = new ConcurrentHashMap<WatchKey, Path>();
+        listeners = new CopyOnWriteArrayList<Listener>();
+        truncated = false;
+        unwatched = false;
+        updates = new AtomicLong();
+        rebuilds = new AtomicLong();
+        watcher = FileSystems.getDefault().newWatchService();
+        index(root);
+    }
+
+    /**
+     * Looks up the metadata of a file
+     *
+     * @param obj_path  the resolved object path, as WebServerHttp.resolveObject returns it
+     * @return the file's metadata, null if the index does not know the file (it may still exist)
+     */
+    public Entry lookup(String obj_path) {
+        Entry e = entries.get(obj_path);
+        if (e != null && e.isWeak() && System.currentTimeMillis() - e.mtime >= 1000) {
+            //the file has gone unchanged long enough for a strong entity tag
+            Entry strong = new Entry(e.file, e.length, e.mtime, e.content_type);
+            entries.replace(obj_path, e, strong);
+            e = strong;
+        }
+        return e;
+    }
+
+    /**
+     * Adds a listener to be told of created files
+     *
+     * @param l     the listener
+     */
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    //tells the listeners of a created file or directory
+    private void created(Path p, boolean directory) {
+        for (Listener l : listeners) {
+            l.created(p, directory);
+        }
+    }
+
+    //indexes the files of a directory tree and watches its directories, until the index is full
+    private void index(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (entries.size() >= max_entries) {
+                    truncated = true;
+                    return FileVisitResult.TERMINATE;
+                }
+                WatchKey key;
+                try {
+                    key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    //(eg. out of inotify watches) the subtree is left to the disk lookup, the rest is still indexed
+                    System.out.println("Error: could not watch " + d + ", its files are not indexed: " + e.getMessage());
+                    unwatched = true;
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watched_dirs.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (entries.size() >= max_entries && !entries.containsKey(f.toString())) {
+                    truncated = true;
+                    return FileVisitResult.TERMINATE;
+                }
+                put(f, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path f, IOException e) {
+                //unreadable or vanished while walked, left to the disk lookup
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    //indexes one regular file (an extension missing from the table is probed here once, rather than on every request)
+    private void put(Path f, BasicFileAttributes attrs) {
+        File canonical = canonical_root.resolve(root.relativize(f)).toFile();
+        String type;
+        try {
+            type = WebServerHttp.contentType(canonical);
+        } catch (IOException e) {
+            type = null;
+        }
+        entries.put(f.toString(), new Entry(canonical, attrs.size(), attrs.lastModifiedTime().toMillis(), type));
+    }
+
+    //brings the index up to date with a path a watch event was recieved for
+    private void update(Path p, boolean created) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            //gone again already
+            remove(p);
+            return;
+        }
+        if (attrs.isDirectory()) {
+            //a directory is modified whenever its files are, only a new (or moved in) one needs indexing
+            if (!created) {
+                return;
+            }
+            try {
+                index(p);
+            } catch (IOException e) {
+                System.out.println("Error: could not index new directory " + p);
+            }
+        } else if (attrs.isRegularFile()) {
+            if (entries.size() < max_entries || entries.containsKey(p.toString())) {
+                put(p, attrs);
+            } else {
+                truncated = true;
+            }
+        } else {
+            remove(p);
+        }
+        if (created) {
+            created(p, attrs.isDirectory());
+        }
+    }
+
+    //drops a deleted file, or every file under a deleted directory
+    private void remove(Path p) {
+        String key = p.toString();
+        if (entries.remove(key) != null) {
+            return;
+        }
+        String prefix = key + File.separator;
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    //indexes the document root again from scratch, after watch events were lost
+    private void rebuild() {
+        rebuilds.incrementAndGet();
+        for (WatchKey key : watched_dirs.keySet()) {
+            key.cancel();
+        }
+        watched_dirs.clear();
+        entries.clear();
+        truncated = false;
+        unwatched = false;
+        try {
+            index(root);
+        } catch (IOException e) {
+            System.out.println("Error: could not rebuild the file index of " + root);
+        }
+        created(root, true);
+    }
+
+    /**
+     * Starts the thread keeping the index up to date
+     */
+    public void start() {
+        updater = new Thread(this, "WebServerFileIndex");
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    /**
+     * Stops the thread keeping the index up to date
+     *
+     * @throws InterruptedException if interrupted while waiting for the thread to stop
+     */
+    public void stop() throws InterruptedException {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+        if (updater != null) {
+            updater.join();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watched_dirs.get(key);
+            boolean rebuilt = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                updates.incrementAndGet();
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    rebuild();
+                    rebuilt = true;
+                    break;
+                }
+                Path p = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    remove(p);
+                } else {
+                    update(p, event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                }
+            }
+            if (rebuilt) {
+                //the rebuild cancelled this key and watches the directory under a new one
+                continue;
+            }
+            if (!key.reset() && dir != null) {
+                //the directory itself is gone
+                watched_dirs.remove(key);
+                remove(dir);
+            }
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //files indexed
+    public int size() {
+        return entries.size();
+    }
+
+    //whether files were left out because the index is full
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    //whether every directory under the document root is indexed and watched
+    public boolean isComplete() {
+        return !truncated && !unwatched;
+    }
+
+    public String toString() {
+        return "entries=" + entries.size() + "/" + max_entries + " directories=" + watched_dirs.size()
+            + " truncated=" + truncated + " unwatched=" + unwatched + " updates=" + updates.get() + " rebuilds=" + rebuilds.get();
+    }
+}
@@ -0,0 +1,111 @@
+
+/**
+ * WebServerGzip Class
+ * Gzip content encoding of text objects: which types are worth compressing, compressing a body,
+ * and finding a precompressed sibling (index.html.gz next to index.html) to send instead
+ *
+ * Compressed variants are held by the WebServerContentCache next to the object they were made from,
+ * so each version of a file is compressed at most once however often it is requested.
+ * Objects the cache does not hold are compressed while they are sent, as a chunked body.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+public class WebServerGzip {
+
+    //objects shorter than this are not compressed (the gzip header and trailer eat most of the saving)
+    public static final int MIN_LENGTH = 256;
+
+    //content encoding name sent in Content-Encoding
+    public static final String ENCODING = "gzip";
+
+    /**
+     * Checks whether objects of a type are worth compressing
+     * (text, scripts and markup are, images, video and archives are already compressed)
+     *
+     * @param content_type  the type of the object, as found by WebServerHttp.contentType (may be null)
+     */
+    public static boolean isCompressible(String content_type) {
+        if (content_type == null) {
+            return false;
+        }
+        return content_type.startsWith("text/")
+            || content_type.equals("application/javascript")
+            || content_type.equals("application/json")
+            || content_type.equals("application/xml")
+            || content_type.equals("application/xhtml+xml")
+            || content_type.equals("image/svg+xml");
+    }
+
+    /**
+     * Compresses an object body
+     *
+     * @param body      the body to compress, from its position to its limit (the buffer itself is not moved)
+     * @param level     the deflate level, 1 (fastest) to 9 (smallest)
+     * @return the gzip stream
+     * @throws IOException if compression fails
+     */
+    public static byte[] compress(ByteBuffer body, int level) throws IOException {
+        ByteBuffer src = body.duplicate();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, src.remaining() / 3));
+        byte[] chunk = new byte[Math.min(src.remaining(), 16*1024)];
+        try (GZIPOutputStream gz = new LevelGZIPOutputStream(out, level)) {
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                gz.write(chunk, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Opens a gzip stream compressing onto another stream
+     *
+     * @param out       the stream the compressed bytes are written to (closed along with the gzip stream)
+     * @param level     the deflate level, 1 (fastest) to 9 (smallest)
+     * @return the gzip stream
+     * @throws IOException if writing the gzip header fails
+     */
+    public static GZIPOutputStream outputStream(OutputStream out, int level) throws IOException {
+        return new LevelGZIPOutputStream(out, level);
+    }
+
+    /**
+     * Finds the precompressed sibling of an object file
+     *
+     * @param req_obj   the requested object file
+     * @param mtime     modification time of the object file
+     * @return the .gz file next to the object, or null if there is none or it is older than the object
+     */
+    public static File sibling(File req_obj, long mtime) {
+        File gz = new File(req_obj.getPath() + ".gz");
+        if (gz.isFile() && gz.lastModified() >= mtime) {
+            return gz;
+        }
+        return null;
+    }
+
+    /**
+     * Builds the entity tag of the gzip variant of an object (it must differ from the tag of the unencoded object)
+     *
+     * @param etag  the quoted entity tag of the object, as built by WebServerHttp.etag
+     * @return the entity tag with a -gz suffix inside the quotes
+     */
+    public static String variantETag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gz\"";
+    }
+
+    //GZIPOutputStream at a chosen deflate level (the level is only reachable through the protected deflater)
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 16*1024);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+
+/**
+ * WebServerHeapStore Class
+ * Keeps cached object bodies as byte arrays on the Java heap
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WebServerHeapStore implements WebServerCacheStore {
+
+    //bytes held by bodies that have not been released
+    private final AtomicLong allocated_bytes = new AtomicLong();
+
+    public ByteBuffer load(FileChannel obj_chan, long length) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate((int) length);
+        if (!WebServerCacheStore.readFully(obj_chan, body)) {
+            return null;
+        }
+        allocated_bytes.addAndGet(length);
+        return body;
+    }
+
+    public ByteBuffer copy(byte[] b, int length) {
+        //the array is already on the heap, keep it
+        allocated_bytes.addAndGet(b.length);
+        return ByteBuffer.wrap(b, 0, length);
+    }
+
+    public void release(ByteBuffer body) {
+        allocated_bytes.addAndGet(-body.capacity());
+    }
+
+    public long getAllocatedBytes() {
+        return allocated_bytes.get();
+    }
+
+    public String toString() {
+        return String.format("store=heap heap_bytes=%d", getAllocatedBytes());
+    }
+}
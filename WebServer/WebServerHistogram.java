@@ -0,0 +1,154 @@
+
+/**
+ * WebServerHistogram Class
+ * Log-linear histogram of durations (in micro-seconds) recorded from many threads at once
+ *
+ * Every power of two is split into SUB_BUCKETS linear buckets, so each bucket is at most 1/SUB_BUCKETS
+ * of its value wide (values below SUB_BUCKETS get a bucket each): quantiles are accurate to about 6%
+ * from a micro-second up to hours, in a few hundred counters.
+ * Recording is one atomic increment on a stripe of counters picked by the recording thread,
+ * so threads on different stripes never contend for the same cache line. Reading merges the stripes.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class WebServerHistogram {
+
+    //linear buckets per power of two (a power of two itself)
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    //largest value recorded in its own bucket (2^36 micro-seconds, about 19 hours), larger ones go in the last
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    //each stripe holds the bucket counts, then the count and the sum of the values
+    //(stripes are spaced apart so neighbouring stripes do not share a cache line)
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int STRIPE_LENGTH = BUCKETS + 2 + 16;
+
+    private final AtomicLongArray counts;
+    private final int stripe_mask;
+
+    /**
+     * Constructor for WebServerHistogram
+     *
+     * @param stripes   number of counter stripes (rounded up to a power of two), about the number of recording threads
+     */
+    public WebServerHistogram(int stripes) {
+        int n = 1;
+        while (n < stripes && n < 64) {
+            n <<= 1;
+        }
+        stripe_mask = n - 1;
+        counts = new AtomicLongArray(n * STRIPE_LENGTH);
+    }
+
+    /**
+     * Records a value
+     *
+     * @param micros    the duration in micro-seconds (negative values are recorded as 0)
+     */
+    public void record(long micros) {
+        long v = Math.max(0, micros);
+        int base = (int) (Thread.currentThread().getId() & stripe_mask) * STRIPE_LENGTH;
+        counts.incrementAndGet(base + bucket(v));
+        counts.incrementAndGet(base + COUNT);
+        counts.addAndGet(base + SUM, v);
+    }
+
+    //index of the bucket holding a value
+    private static int bucket(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //largest value held by a bucket
+    private static long bucketHigh(int b) {
+        if (b < SUB_BUCKETS) {
+            return b;
+        }
+        int exponent = b / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = b % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Takes a copy of the histogram (merging the stripes), values recorded meanwhile may or may not be included
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        for (int s = 0; s <= stripe_mask; s++) {
+            int base = s * STRIPE_LENGTH;
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] += counts.get(base + b);
+            }
+            count += counts.get(base + COUNT);
+            sum += counts.get(base + SUM);
+        }
+        return new Snapshot(buckets, count, sum);
+    }
+
+    /**
+     * Snapshot Class
+     * A copy of the histogram counts that quantiles are read from
+     */
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] b, long c, long s) {
+            buckets = b;
+            count = c;
+            sum = s;
+        }
+
+        /**
+         * Finds a quantile
+         *
+         * @param q     the quantile, ie. 0.99
+         * @return the largest value of the bucket the quantile falls in (in micro-seconds), 0 if nothing was recorded
+         */
+        public long quantile(double q) {
+            //counts read stripe by stripe may be slightly off the total, rank against what the buckets hold
+            long total = 0;
+            for (long b : buckets) {
+                total += b;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    return bucketHigh(b);
+                }
+            }
+            return bucketHigh(buckets.length - 1);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        //sum of the recorded values in micro-seconds
+        public long getSum() {
+            return sum;
+        }
+    }
+}
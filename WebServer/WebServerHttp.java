@@ -0,0 +1,489 @@
+
+/**
+ * WebServerHttp Class
+ * Request parsing and response building logic shared by every connection handler of the WebServer
+ * (the thread per connection WebServerClientProcess and the event-loop WebServerNioConnection)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class WebServerHttp {
+
+    //name the server reports in the Server header of every response
+    public static final String SERVER_NAME = "CPSC441_Assignment3_WebServer";
+
+    //status lines of the responses the server can send
+    public static final String STATUS_200 = "200 Ok";
+    public static final String STATUS_206 = "206 Partial Content";
+    public static final String STATUS_304 = "304 Not Modified";
+    public static final String STATUS_400 = "400 Bad Request";
+    public static final String STATUS_404 = "404 Not Found";
+    public static final String STATUS_408 = "408 Request Timeout";
+    public static final String STATUS_416 = "416 Range Not Satisfiable";
+    public static final String STATUS_503 = "503 Service Unavailable";
+
+    //prebuilt response pieces, a response is put together from these, the current date and the object headers
+    //(the body-less responses each have a template: status line, Server header and the Date header name)
+    public static final byte[] RESPONSE_400 = template(STATUS_400);
+    public static final byte[] RESPONSE_404 = template(STATUS_404);
+    public static final byte[] RESPONSE_408 = template(STATUS_408);
+    private static final byte[] HEAD_200 = template(STATUS_200);
+    private static final byte[] HEAD_206 = template(STATUS_206);
+    private static final byte[] HEAD_304 = template(STATUS_304);
+    private static final byte[] HEAD_416 = template(STATUS_416);
+    private static final byte[] HEAD_503 = template(STATUS_503);
+    private static final byte[] CRLF = toBytes("\r\n");
+    private static final byte[] EMPTY_BODY = toBytes("\r\nContent-Length: 0\r\n");
+    private static final byte[] CONTENT_LENGTH = toBytes("Content-Length: ");
+    private static final byte[] CONTENT_TYPE = toBytes("Content-Type: ");
+    private static final byte[] CONTENT_RANGE = toBytes("Content-Range: bytes ");
+    private static final byte[] RETRY_AFTER = toBytes("\r\nRetry-After: ");
+    private static final byte[] CONNECTION_KEEP_ALIVE = toBytes("Connection: keep-alive\r\n\r\n");
+    private static final byte[] CONNECTION_CLOSE = toBytes("Connection: close\r\n\r\n");
+
+    //terminator of the Http request head
+    public static final String HEAD_TERMINATOR = "\r\n\r\n";
+
+    //largest request head accepted from a client before it is answered with 400
+    public static final int MAX_REQUEST_HEAD = 8*1024;
+
+    //MIME types of the common file name extensions (lower case), the same types Files.probeContentType gives them
+    //(looked up in memory, other extensions still go to probeContentType)
+    private static final HashMap<String, String> CONTENT_TYPES = new HashMap<String, String>();
+    static {
+        String[] types = {
+            "html", "text/html", "htm", "text/html", "txt", "text/plain", "css", "text/css", "csv", "text/csv",
+            "md", "text/markdown", "js", "text/javascript", "mjs", "text/javascript", "json", "application/json",
+            "xml", "application/xml", "pdf", "application/pdf", "zip", "application/zip", "gz", "application/gzip",
+            "wasm", "application/wasm", "bin", "application/octet-stream", "jpg", "image/jpeg", "jpeg", "image/jpeg",
+            "png", "image/png", "gif", "image/gif", "svg", "image/svg+xml", "webp", "image/webp",
+            "ico", "image/vnd.microsoft.icon", "mp4", "video/mp4", "woff2", "font/woff2"
+        };
+        for (int i = 0; i < types.length; i += 2) {
+            CONTENT_TYPES.put(types[i], types[i + 1]);
+        }
+    }
+
+
+
+    /**
+     * Checks the request line of a parsed client Http request
+     *
+     * @param request   the parser holding the recieved client request
+     * @return true if the request is a GET for Http/1.1
+     */
+    public static boolean isValidGET(WebServerRequestParser request) {
+        return request.isMethod("GET") && request.isVersion("HTTP/1.1");
+    }
+
+    /**
+     * Builds the local file for the object-path of a GET request
+     *
+     * @param obj_path  the object-path element of the GET header
+     * @return the requested object file (which may not exist)
+     */
+    public static File resolveObject(String obj_path) {
+        //extract GET header object-path and build local path to requested object
+        String currWorkingDir = System.getProperty("user.dir");
+        String separator = System.getProperty("file.separator");
+        String req_obj_path = obj_path.replace("/", separator);
+        String full_obj_path = null;
+        if (req_obj_path.equals(separator)){
+            full_obj_path = currWorkingDir + req_obj_path + "index.html";
+        } else {
+            full_obj_path = currWorkingDir + req_obj_path;
+        }
+        return new File(full_obj_path);
+    }
+
+    /**
+     * Builds the head of the 200 Ok response around the prebuilt headers describing the object
+     *
+     * @param head              the connection's response head buffer, the head is built in it
+     * @param object_headers    the object headers, as built by objectHeaders
+     * @param keep_alive        whether the connection stays open after the response
+     * @return the response head
+     */
+    public static WebServerResponseHead okResponseHead(WebServerResponseHead head, byte[] object_headers, boolean keep_alive) {
+        head.reset();
+        head.append(HEAD_200);
+        head.append(WebServerClock.httpDate());
+        head.append(CRLF);
+        head.append(object_headers);
+        head.append(keep_alive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return head;
+    }
+
+    /**
+     * Builds the headers of a 200 Ok response that only depend on the object
+     * (they stay valid, and can be cached, until the object changes)
+     *
+     * @param content_type      the type of the object, as found by contentType
+     * @param content_encoding  the encoding of the body sent (gzip), or null if it is sent as is
+     * @param validators        the validator headers of the object, as built by validatorHeaders
+     * @param obj_length        the length of the body sent as Content-Length
+     * @return the Last-Modified, ETag, Accept-Ranges, Content-Length, Content-Type and (for types
+     *         served compressed to clients that accept it) Content-Encoding and Vary header lines
+     */
+    public static byte[] objectHeaders(String content_type, String content_encoding, byte[] validators, long obj_length) {
+        String contentLength = Long.toString(obj_length);
+        byte[] rest = toBytes(
+            "Accept-Ranges: bytes\r\n"+
+            "Content-Length: " + contentLength + "\r\n"+
+            "Content-Type: " + content_type + "\r\n"+
+            ((content_encoding != null) ? "Content-Encoding: " + content_encoding + "\r\n" : "")+
+            (WebServerGzip.isCompressible(content_type) ? "Vary: Accept-Encoding\r\n" : ""));
+        byte[] headers = Arrays.copyOf(validators, validators.length + rest.length);
+        System.arraycopy(rest, 0, headers, validators.length, rest.length);
+        return headers;
+    }
+
+    /**
+     * Builds the headers of a 200 Ok response whose body is streamed with the chunked transfer coding
+     * (its length is not known when the head is sent, so there is no Content-Length and no Accept-Ranges)
+     *
+     * @param content_type      the type of the object, as found by contentType
+     * @param content_encoding  the encoding of the body sent (gzip), or null if it is sent as is
+     * @param validators        the validator headers of the object, as built by validatorHeaders
+     * @param trailer           the names of the trailer fields sent after the body, or null if none
+     * @return the Last-Modified, ETag, Transfer-Encoding, Content-Type, and as needed Content-Encoding,
+     *         Vary and Trailer header lines
+     */
+    public static byte[] streamedObjectHeaders(String content_type, String content_encoding, byte[] validators, String trailer) {
+        byte[] rest = toBytes(
+            "Transfer-Encoding: chunked\r\n"+
+            "Content-Type: " + content_type + "\r\n"+
+            ((content_encoding != null) ? "Content-Encoding: " + content_encoding + "\r\n" : "")+
+            (WebServerGzip.isCompressible(content_type) ? "Vary: Accept-Encoding\r\n" : "")+
+            ((trailer != null) ? "Trailer: " + trailer + "\r\n" : ""));
+        byte[] headers = Arrays.copyOf(validators, validators.length + rest.length);
+        System.arraycopy(rest, 0, headers, validators.length, rest.length);
+        return headers;
+    }
+
+    /**
+     * Builds the headers of a 200 Ok response whose body is generated by the server rather than read from an object
+     * (it is different every time, so there are no validators and it must not be cached)
+     *
+     * @param content_type  the type of the body
+     * @param length        the length of the body sent as Content-Length
+     * @return the Content-Length, Content-Type and Cache-Control header lines
+     */
+    public static byte[] generatedHeaders(String content_type, long length) {
+        return toBytes(
+            "Content-Length: " + length + "\r\n"+
+            "Content-Type: " + content_type + "\r\n"+
+            "Cache-Control: no-store\r\n");
+    }
+
+    /**
+     * Negotiates the content encoding of the response from the client's Accept-Encoding header
+     * (requests for byte ranges are always served from the unencoded object, so ranges keep meaning the same bytes)
+     *
+     * @param request   the parser holding the recieved client request
+     * @return true if the client accepts gzip (explicitly, or through * without gzip being refused)
+     */
+    public static boolean acceptsGzip(WebServerRequestParser request) {
+        if (request.findHeader("Range") >= 0) {
+            return false;
+        }
+        String accept_encoding = request.getHeaderValue("Accept-Encoding");
+        if (accept_encoding == null) {
+            return false;
+        }
+
+        int gzip = -1;
+        int any = -1;
+        for (String coding : accept_encoding.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = ((semicolon < 0) ? coding : coding.substring(0, semicolon)).trim().toLowerCase();
+            //a coding is accepted unless its quality value is 0
+            int accepted = 1;
+            if (semicolon >= 0) {
+                String param = coding.substring(semicolon + 1).trim().toLowerCase();
+                if (param.startsWith("q=") && param.substring(2).trim().matches("0(\\.0*)?")) {
+                    accepted = 0;
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (name.equals("*")) {
+                any = accepted;
+            }
+        }
+        return (gzip >= 0) ? gzip == 1 : any == 1;
+    }
+
+    /**
+     * Discerns the type of an object file, from the extension table or else Files.probeContentType
+     *
+     * @param req_obj   the requested object file
+     * @return the MIME type sent as Content-Type
+     * @throws IOException if the file type of the object could not be discerned
+     */
+    public static String contentType(File req_obj) throws IOException {
+        String type = contentType(req_obj.getName());
+        return (type != null) ? type : Files.probeContentType(req_obj.toPath());
+    }
+
+    /**
+     * Looks up the type of an object in the extension table
+     *
+     * @param name  the object file name
+     * @return the MIME type sent as Content-Type, null if the extension is not in the table
+     */
+    public static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String ext = name.substring(dot + 1);
+        String type = CONTENT_TYPES.get(ext);
+        return (type != null) ? type : CONTENT_TYPES.get(ext.toLowerCase());
+    }
+
+    /**
+     * Builds the validator headers of an object, sent with both 200 Ok and 304 Not Modified responses
+     *
+     * @param mtime     modification time of the object file
+     * @param etag      the entity tag of the object, as built by etag
+     * @return the Last-Modified and ETag header lines
+     */
+    public static byte[] validatorHeaders(long mtime, String etag) {
+        return toBytes(
+            "Last-Modified: " + WebServerClock.format(mtime) + "\r\n"+
+            "ETag: " + etag + "\r\n");
+    }
+
+    /**
+     * Builds the entity tag of an object from its modification time and length
+     * (the tag is weak if the file was modified within the last second, since another change in the
+     * same second could keep the same modification time and the tag would no longer tell the versions apart)
+     *
+     * @param mtime     modification time of the object file
+     * @param length    length of the object
+     * @return the quoted entity tag
+     */
+    public static String etag(long mtime, long length) {
+        String tag = "\"" + Long.toHexString(mtime) + "-" + Long.toHexString(length) + "\"";
+        return (System.currentTimeMillis() - mtime < 1000) ? "W/" + tag : tag;
+    }
+
+    /**
+     * Evaluates the conditional headers of a GET request against the current object
+     * (If-None-Match takes precedence, If-Modified-Since is only looked at when there is no If-None-Match)
+     *
+     * @param request   the parser holding the recieved client request
+     * @param etag      the entity tag of the object
+     * @param mtime     modification time of the object file
+     * @return true if the client's copy is current and the object is answered with 304 Not Modified
+     */
+    public static boolean notModified(WebServerRequestParser request, String etag, long mtime) {
+        String if_none_match = request.getHeaderValue("If-None-Match");
+        if (if_none_match != null) {
+            return etagListMatches(if_none_match, etag);
+        }
+
+        String if_modified_since = request.getHeaderValue("If-Modified-Since");
+        if (if_modified_since != null) {
+            try {
+                long since = ZonedDateTime.parse(if_modified_since, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                //Http dates have a resolution of one second
+                return mtime / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                //invalid dates are ignored
+                return false;
+            }
+        }
+        return false;
+    }
+
+    //checks an If-None-Match list for the entity tag ("*" or a weakly equal tag)
+    private static boolean etagListMatches(String list, String etag) {
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : list.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the 304 Not Modified response sent when the client's copy of the object is current
+     *
+     * @param head          the connection's response head buffer, the response is built in it
+     * @param validators    the validator headers of the object, as built by validatorHeaders
+     * @param keep_alive    whether the connection stays open after the response
+     * @return the response (it has no body)
+     */
+    public static WebServerResponseHead notModifiedResponse(WebServerResponseHead head, byte[] validators, boolean keep_alive) {
+        head.reset();
+        head.append(HEAD_304);
+        head.append(WebServerClock.httpDate());
+        head.append(CRLF);
+        head.append(validators);
+        head.append(keep_alive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return head;
+    }
+
+    /**
+     * Finds the byte ranges of the object the client asked for
+     * (a Range header is ignored if the request has an If-Range validator that no longer matches the object,
+     *  If-Range entity tags are compared strongly and dates must equal the Last-Modified date)
+     *
+     * @param request   the parser holding the recieved client request
+     * @param etag      the entity tag of the object
+     * @param mtime     modification time of the object file
+     * @param length    length of the object
+     * @return the requested ranges, or null if the whole object is to be sent
+     */
+    public static WebServerByteRanges requestedRanges(WebServerRequestParser request, String etag, long mtime, long length) {
+        if (request.findHeader("Range") < 0) {
+            return null;
+        }
+        String if_range = request.getHeaderValue("If-Range");
+        if (if_range != null) {
+            if (if_range.startsWith("\"") || if_range.startsWith("W/")) {
+                if (etag.startsWith("W/") || !if_range.equals(etag)) {
+                    return null;
+                }
+            } else if (!if_range.equals(WebServerClock.format(mtime))) {
+                return null;
+            }
+        }
+        return WebServerByteRanges.parse(request.getHeaderValue("Range"), length);
+    }
+
+    /**
+     * Builds the head of the 206 Partial Content response for satisfiable byte ranges of an object
+     * (a single range is sent as is, several as a multipart/byteranges body)
+     *
+     * @param head          the connection's response head buffer, the head is built in it
+     * @param ranges        the satisfiable ranges
+     * @param content_type  the type of the object
+     * @param validators    the validator headers of the object
+     * @param keep_alive    whether the connection stays open after the response
+     * @return the response head
+     */
+    public static WebServerResponseHead partialContentHead(WebServerResponseHead head, WebServerByteRanges ranges, String content_type, byte[] validators, boolean keep_alive) {
+        head.reset();
+        head.append(HEAD_206);
+        head.append(WebServerClock.httpDate());
+        head.append(CRLF);
+        head.append(validators);
+        if (ranges.isMultipart()) {
+            head.append(CONTENT_LENGTH);
+            head.append(ranges.multipartLength(content_type));
+            head.append(CRLF);
+            head.append(CONTENT_TYPE);
+            head.append(WebServerByteRanges.multipartType());
+        } else {
+            head.append(CONTENT_RANGE);
+            head.append(ranges.getStart(0));
+            head.append('-');
+            head.append(ranges.getEnd(0) - 1);
+            head.append('/');
+            head.append(ranges.getObjectLength());
+            head.append(CRLF);
+            head.append(CONTENT_LENGTH);
+            head.append(ranges.getEnd(0) - ranges.getStart(0));
+            head.append(CRLF);
+            head.append(CONTENT_TYPE);
+            head.append(content_type);
+        }
+        head.append(CRLF);
+        head.append(keep_alive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return head;
+    }
+
+    /**
+     * Builds the 416 response sent when none of the requested byte ranges overlap the object
+     *
+     * @param head          the connection's response head buffer, the response is built in it
+     * @param obj_length    length of the object
+     * @param keep_alive    whether the connection stays open after the response
+     * @return the response
+     */
+    public static WebServerResponseHead rangeNotSatisfiableResponse(WebServerResponseHead head, long obj_length, boolean keep_alive) {
+        head.reset();
+        head.append(HEAD_416);
+        head.append(WebServerClock.httpDate());
+        head.append(CRLF);
+        head.append(CONTENT_RANGE);
+        head.append('*');
+        head.append('/');
+        head.append(obj_length);
+        head.append(EMPTY_BODY);
+        head.append(keep_alive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return head;
+    }
+
+    /**
+     * Builds a body-less response (400, 404, 408)
+     *
+     * @param head          the connection's response head buffer, the response is built in it
+     * @param template      the template of the response, ie. RESPONSE_404
+     * @param keep_alive    whether the connection stays open after the response
+     * @return the response
+     */
+    public static WebServerResponseHead statusResponse(WebServerResponseHead head, byte[] template, boolean keep_alive) {
+        head.reset();
+        head.append(template);
+        head.append(WebServerClock.httpDate());
+        head.append(EMPTY_BODY);
+        head.append(keep_alive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return head;
+    }
+
+    /**
+     * Builds the 503 response sent to clients shed because the server is overloaded
+     *
+     * @param head          the connection's response head buffer, the response is built in it
+     * @param retry_after   seconds the client should wait before retrying
+     * @return the response
+     */
+    public static WebServerResponseHead serviceUnavailableResponse(WebServerResponseHead head, int retry_after) {
+        head.reset();
+        head.append(HEAD_503);
+        head.append(WebServerClock.httpDate());
+        head.append(RETRY_AFTER);
+        head.append(retry_after);
+        head.append(EMPTY_BODY);
+        head.append(CONNECTION_CLOSE);
+        return head;
+    }
+
+    //builds the fixed start of a response with the given status, up to the Date header value
+    private static byte[] template(String status) {
+        return toBytes(
+            "HTTP/1.1 " + status + "\r\n"+
+            "Server: " + SERVER_NAME + "\r\n" +
+            "Date: ");
+    }
+
+    /**
+     * Converts a response string into the bytes sent out over the client socket
+     *
+     * @param http_resp the response string
+     * @return the US-ASCII bytes of the response
+     */
+    public static byte[] toBytes(String http_resp) {
+        return http_resp.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,208 @@
+
+/**
+ * WebServerMetrics Class
+ * Counters, gauges and latency histograms of a WebServer, served as text at the metrics path
+ *
+ * Connections record into striped counters (LongAdder, and WebServerHistogram for latencies) so recording
+ * never takes a lock and threads rarely touch the same cache line; the stripes are only summed when the
+ * metrics are read. Gauges of the content cache, worker pool and access log are read from them at that time.
+ * The text follows the Prometheus exposition format (version 0.0.4), latencies are summaries in seconds
+ * with the 0.5, 0.9, 0.99 and 0.999 quantiles.
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class WebServerMetrics {
+
+    //content type of the metrics text
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    //request path the metrics are served at
+    private final String path;
+
+    //connections accepted, turned away with 503, and open right now
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder active;
+
+    //responses by status code (adders are created the first time a code is sent)
+    private final AtomicReferenceArray<LongAdder> statuses;
+
+    //response bytes sent, head and body
+    private final LongAdder bytes_sent;
+
+    //time from the request being recieved to the first response byte being sent, and to the last
+    private final WebServerHistogram first_byte;
+    private final WebServerHistogram total;
+
+    //read for gauges, each may be null
+    private final String mode;
+    private final WebServerContentCache content_cache;
+    private final WebServerWorkerPool worker_pool;
+    private final WebServerAccessLog access_log;
+
+    private final long started;
+
+    /**
+     * Constructor for WebServerMetrics
+     *
+     * @param path  the request path the metrics are served at
+     * @param m     the server mode
+     * @param c     the content cache, null if disabled
+     * @param p     the worker pool, null outside pool mode
+     * @param l     the access log, null if disabled
+     */
+    public WebServerMetrics(String path, String m, WebServerContentCache c, WebServerWorkerPool p, WebServerAccessLog l) {
+        this.path = path;
+        accepted = new LongAdder();
+        rejected = new LongAdder();
+        active = new LongAdder();
+        statuses = new AtomicReferenceArray<LongAdder>(600);
+        bytes_sent = new LongAdder();
+        int stripes = Runtime.getRuntime().availableProcessors() * 2;
+        first_byte = new WebServerHistogram(stripes);
+        total = new WebServerHistogram(stripes);
+        mode = m;
+        content_cache = c;
+        worker_pool = p;
+        access_log = l;
+        started = System.currentTimeMillis();
+    }
+
+    //request path the metrics are served at
+    public String getPath() {
+        return path;
+    }
+
+    //a connection was accepted
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    //a connection was turned away with 503 Service Unavailable
+    public void connectionRejected() {
+        rejected.increment();
+    }
+
+    //a connection started being served
+    public void connectionOpened() {
+        active.increment();
+    }
+
+    //a connection that was being served closed
+    public void connectionClosed() {
+        active.decrement();
+    }
+
+    /**
+     * Records a response
+     *
+     * @param status            status code of the response
+     * @param bytes             bytes of the response sent
+     * @param first_byte_nanos  time from the request being recieved to the first response byte being sent, negative if nothing was sent
+     * @param total_nanos       time from the request being recieved to the last response byte being sent
+     */
+    public void response(int status, long bytes, long first_byte_nanos, long total_nanos) {
+        if (status >= 100 && status < statuses.length()) {
+            LongAdder count = statuses.get(status);
+            if (count == null) {
+                statuses.compareAndSet(status, null, new LongAdder());
+                count = statuses.get(status);
+            }
+            count.increment();
+        }
+        bytes_sent.add(bytes);
+        if (first_byte_nanos >= 0) {
+            first_byte.record(first_byte_nanos / 1000);
+        }
+        total.record(total_nanos / 1000);
+    }
+
+    /**
+     * Renders the metrics as text
+     *
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "webserver_info", "Server mode", "{mode=\"" + mode + "\"}", 1);
+        gauge(out, "webserver_uptime_seconds", "Seconds since the server started", "", (System.currentTimeMillis() - started) / 1000.0);
+
+        counter(out, "webserver_connections_accepted_total", "Connections accepted", accepted.sum());
+        counter(out, "webserver_connections_rejected_total", "Connections turned away with 503", rejected.sum());
+        gauge(out, "webserver_connections_active", "Connections being served", "", active.sum());
+
+        header(out, "webserver_responses_total", "Responses sent by status code", "counter");
+        for (int status = 0; status < statuses.length(); status++) {
+            LongAdder count = statuses.get(status);
+            if (count != null) {
+                sample(out, "webserver_responses_total", "{code=\"" + status + "\"}", count.sum());
+            }
+        }
+        counter(out, "webserver_sent_bytes_total", "Response bytes sent, head and body", bytes_sent.sum());
+
+        summary(out, "webserver_time_to_first_byte_seconds", "Time from the request being recieved to the first response byte being sent", first_byte.snapshot());
+        summary(out, "webserver_request_duration_seconds", "Time from the request being recieved to the last response byte being sent", total.snapshot());
+
+        if (content_cache != null) {
+            long hits = content_cache.getHits();
+            long misses = content_cache.getMisses();
+            counter(out, "webserver_cache_hits_total", "Content cache hits", hits);
+            counter(out, "webserver_cache_misses_total", "Content cache misses", misses);
+            counter(out, "webserver_cache_coalesced_total", "Content cache misses that waited for another request's load", content_cache.getCoalesced());
+            counter(out, "webserver_cache_evictions_total", "Content cache evictions", content_cache.getEvictions());
+            gauge(out, "webserver_cache_hit_ratio", "Content cache hits over lookups", "", (hits + misses > 0) ? (double) hits / (hits + misses) : 0);
+            gauge(out, "webserver_cache_bytes", "Bytes held by the content cache", "", content_cache.getUsedBytes());
+            gauge(out, "webserver_cache_store_bytes", "Memory held by the content cache store, cached bodies and pooled buffers", "", content_cache.getStore().getAllocatedBytes());
+            gauge(out, "webserver_cache_entries", "Objects held by the content cache", "", content_cache.getEntryCount());
+        }
+        if (worker_pool != null) {
+            gauge(out, "webserver_worker_queue_depth", "Connections waiting for a worker", "", worker_pool.getQueueDepth());
+            gauge(out, "webserver_worker_queue_depth_max", "Most connections that have waited for a worker at once", "", worker_pool.getMaxQueueDepth());
+            gauge(out, "webserver_worker_parked_connections", "Idle connections waiting for thier first or next request without a worker", "", worker_pool.getParkedCount());
+            gauge(out, "webserver_worker_queue_wait_seconds_avg", "Average time a connection waited for a worker", "", worker_pool.getAverageQueueWaitMillis() / 1000.0);
+        }
+        if (access_log != null) {
+            counter(out, "webserver_access_log_dropped_total", "Access log records dropped because the ring was full or they were too long for a line", access_log.getDropped());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        sample(out, name, "", value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String labels, double value) {
+        header(out, name, help, "gauge");
+        sample(out, name, labels, value);
+    }
+
+    //a histogram as a summary in seconds
+    private static void summary(StringBuilder out, String name, String help, WebServerHistogram.Snapshot s) {
+        header(out, name, help, "summary");
+        for (double q : QUANTILES) {
+            sample(out, name, "{quantile=\"" + q + "\"}", s.quantile(q) / 1e6);
+        }
+        sample(out, name + "_sum", "", s.getSum() / 1e6);
+        sample(out, name + "_count", "", s.getCount());
+    }
+}
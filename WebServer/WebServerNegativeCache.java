@@ -0,0 +1,275 @@
+
+/**
+ * WebServerNegativeCache Class
+ * Bounded cache of the object paths recently found not to exist, so repeated requests for them are answered
+ * with 404 without looking for the file on disk again
+ *
+ * The paths are kept in least to most recently used order up to a fixed number, the oldest being dropped first.
+ * In front of them sits a counting Bloom filter of the same paths: a request for an existing object (nearly every
+ * request) is let through by the filter alone, without taking the lock guarding the paths, and a path is only looked
+ * up in them when the filter says it may be there. The filter counts rather than sets bits so paths can be taken
+ * out of it again when they are dropped.
+ *
+ * Given the server's WebServerFileIndex, the cache is told of every file and directory created under the document
+ * root and drops the paths they cover, so a cached path stays missing until something is created there.
+ * Without an index (or when the index could not watch the whole tree) a cached path is looked for on disk again
+ * once it has been cached for a second.
+ * Only canonical paths are cached. A path with "." or ".." segments is always looked for on disk: the index reports
+ * creations under thier canonical path, so it would never drop such a path (and normalizing it is no answer either,
+ * /x/../a.html is missing while there is no directory x, even once a.html exists).
+ */
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebServerNegativeCache {
+
+    //milli-seconds a path is trusted to be missing when creations are not being watched
+    private static final long REVALIDATE_INTERVAL = 1000;
+
+    //filter counters per cached path (rounded up to a power of two) and counters set per path
+    private static final int COUNTERS_PER_ENTRY = 8;
+    private static final int HASHES = 3;
+
+    //a counter that reaches this stays there (it can no longer tell how many paths share it)
+    private static final byte SATURATED = Byte.MAX_VALUE;
+
+    //most paths cached
+    private final int max_entries;
+
+    //missing paths in least to most recently used order, with the time each was found missing
+    private final LinkedHashMap<String, Long> entries;
+
+    //the counting Bloom filter (read without the lock, a stale read only sends a request on to the disk)
+    private final byte[] counters;
+    private final int counter_mask;
+
+    //file index telling the cache of created files, null if there is none
+    private final WebServerFileIndex file_index;
+
+    //bumped by every invalidation, a path found missing before one is not cached after it
+    private volatile long generation;
+
+    //guards entries, counters and generation changes
+    private final ReentrantLock lock;
+
+    //counters
+    private final AtomicLong hits;
+    private final AtomicLong inserts;
+    private final AtomicLong evictions;
+    private final AtomicLong invalidations;
+    private final AtomicLong false_positives;
+
+    /**
+     * Constructor for WebServerNegativeCache
+     *
+     * @param max_paths     most missing paths cached
+     * @param index         the server's file index the cache follows creations through, null if there is none
+     */
+    public WebServerNegativeCache(int max_paths, WebServerFileIndex index) {
+        max_entries = Math.max(1, max_paths);
+        entries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+        int n = 64;
+        while (n < max_entries * COUNTERS_PER_ENTRY) {
+            n <<= 1;
+        }
+        counters = new byte[n];
+        counter_mask = n - 1;
+        generation = 0;
+        lock = new ReentrantLock();
+        hits = new AtomicLong();
+        inserts = new AtomicLong();
+        evictions = new AtomicLong();
+        invalidations = new AtomicLong();
+        false_positives = new AtomicLong();
+        file_index = index;
+        if (file_index != null) {
+            file_index.addListener(this::created);
+        }
+    }
+
+    /**
+     * Checks whether an object path is cached as missing
+     *
+     * @param obj_path  the resolved object path, as WebServerHttp.resolveObject returns it
+     * @return true if the object is known not to exist (answer 404), false if it must be looked for on disk
+     */
+    public boolean isMissing(String obj_path) {
+        int h = obj_path.hashCode();
+        if (!mightContain(h)) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            Long found_at = entries.get(obj_path);
+            if (found_at == null) {
+                false_positives.incrementAndGet();
+                return false;
+            }
+            if (!isWatched() && System.currentTimeMillis() - found_at >= REVALIDATE_INTERVAL) {
+                //may have been created since, look again
+                entries.remove(obj_path);
+                decrement(h);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives the current generation, to be taken before looking for an object on disk and passed to add
+     *
+     * @return the generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches an object path found not to exist, evicting the least recently used path if the cache is full
+     *
+     * @param obj_path      the resolved object path
+     * @param generation    getGeneration() from before the object was looked for (if something was created since,
+     *                      the path is not cached as it may have been created after it was looked for)
+     */
+    public void add(String obj_path, long generation) {
+        if (!isCanonical(obj_path)) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (generation != this.generation) {
+                return;
+            }
+            int h = obj_path.hashCode();
+            if (entries.put(obj_path, System.currentTimeMillis()) != null) {
+                return;
+            }
+            increment(h);
+            inserts.incrementAndGet();
+
+            if (entries.size() > max_entries) {
+                Iterator<String> lru = entries.keySet().iterator();
+                decrement(lru.next().hashCode());
+                lru.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the cached paths covered by a file or directory created under the document root
+     * (called by the file index's watcher)
+     *
+     * @param p           the created file or directory, the document root itself if the whole tree may have changed
+     * @param directory   whether it is a directory (the paths under it are dropped too)
+     */
+    public void created(Path p, boolean directory) {
+        String key = p.toString();
+        String prefix = key + File.separator;
+        lock.lock();
+        try {
+            generation++;
+            if (entries.remove(key) != null) {
+                decrement(key.hashCode());
+                invalidations.incrementAndGet();
+            }
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (directory && it.hasNext()) {
+                String path = it.next().getKey();
+                if (path.startsWith(prefix)) {
+                    it.remove();
+                    decrement(path.hashCode());
+                    invalidations.incrementAndGet();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //whether a resolved object path has no "." or ".." segments
+    //(resolved paths have no repeated separators, java.io.File removes them)
+    private static boolean isCanonical(String obj_path) {
+        String s = File.separator;
+        return !(obj_path.contains(s + "." + s) || obj_path.contains(s + ".." + s)
+            || obj_path.endsWith(s + ".") || obj_path.endsWith(s + ".."));
+    }
+
+    //whether creations anywhere under the document root are being watched
+    private boolean isWatched() {
+        return file_index != null && file_index.isComplete();
+    }
+
+    //the counters of a path are picked by double hashing its hash code
+    private int counterIndex(int h, int i) {
+        int h1 = h * 0x9E3779B9;
+        int h2 = Integer.rotateLeft(h, 16) * 0x85EBCA6B | 1;
+        return (h1 + i * h2) & counter_mask;
+    }
+
+    private boolean mightContain(int h) {
+        for (int i = 0; i < HASHES; i++) {
+            if (counters[counterIndex(h, i)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //(the lock is held)
+    private void increment(int h) {
+        for (int i = 0; i < HASHES; i++) {
+            int c = counterIndex(h, i);
+            if (counters[c] != SATURATED) {
+                counters[c]++;
+            }
+        }
+    }
+
+    //(the lock is held)
+    private void decrement(int h) {
+        for (int i = 0; i < HASHES; i++) {
+            int c = counterIndex(h, i);
+            if (counters[c] != SATURATED && counters[c] > 0) {
+                counters[c]--;
+            }
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS (cache statistics)
+
+    //paths cached
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //requests answered from the cache
+    public long getHits() {
+        return hits.get();
+    }
+
+    public String toString() {
+        return "entries=" + size() + "/" + max_entries + " hits=" + hits.get() + " inserts=" + inserts.get()
+            + " evictions=" + evictions.get() + " invalidations=" + invalidations.get()
+            + " false_positives=" + false_positives.get() + " watched=" + isWatched();
+    }
+}
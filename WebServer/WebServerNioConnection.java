@@ -0,0 +1,841 @@
+
+/**
+ * WebServerNioConnection Class
+ * Non-blocking state machine for a single client connection owned by a WebServerReactor
+ *
+ * The connection moves through the same steps as WebServerClientProcess
+ * (read the client GET, serve the object or an error response, then wait for the next request or close)
+ * but every step only does the work the channel is ready for and then returns to the reactor.
+ * Bytes read past the end of one request are kept as the start of the next, so pipelined requests
+ * are served one after the other, in order, from the same read.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.logging.*;
+
+public class WebServerNioConnection {
+
+	// global logger object, configures in the driver class
+	private static final Logger logger = Logger.getLogger("WebServer");
+
+    //connection states
+    public static final int READING_REQUEST = 0;
+    public static final int WRITING_RESPONSE = 1;
+    public static final int CLOSED = 2;
+    public static final int LOADING = 3;
+
+    //work a connection hands to a loader thread, and what it does with the result back on its event loop
+    private interface Load<T> {
+        T load() throws IOException;
+    }
+    private interface Resume<T> {
+        void resume(T result) throws IOException;
+    }
+
+    //client channel and the selection key registering it with its reactor
+    private SocketChannel cli_chan;
+    private SelectionKey key;
+
+    //current state of the connection
+    private int state;
+
+    //the timeout value, the time allowed to recieve the rest of a request head once it has started (0 uses the timeout value),
+    //the time a response may go without any of it being sent (0 means infinity)
+    //and the bytes per second a response must average once past that time (0 means no minimum)
+    private int timeout;
+    private int header_timeout;
+    private int write_timeout;
+    private int min_send_rate;
+
+    //timer wheel of the connection's reactor and the timer of this connection,
+    //with when the current response started and the response bytes sent when it was last armed or checked while it is written
+    private WebServerTimerWheel timer_wheel;
+    private WebServerTimerWheel.Timer timer;
+    private long write_started;
+    private long timer_mark;
+
+    //persistent connection limit, requests served so far and whether the connection stays open after the current response
+    private int max_requests;
+    private int requests_served;
+    private boolean keep_alive;
+
+    //objects smaller than this are read into memory and sent with thier head, larger ones are sent with transferTo
+    private long sendfile_threshold;
+
+    //request bytes recieved so far, the parser finding the request in them
+    //and where the current request head ends (any bytes after it belong to the next request)
+    private ByteBuffer req_buffer;
+    private WebServerRequestParser request_parser;
+    private int head_end;
+
+    //set once the client has closed its side of the connection
+    private boolean input_closed;
+
+    //content cache shared with the rest of the server, null when disabled
+    private WebServerContentCache content_cache;
+
+    //metadata index of the document root shared with the rest of the server, null when disabled
+    private WebServerFileIndex file_index;
+
+    //paths recently found missing, shared with the rest of the server, null when disabled
+    private WebServerNegativeCache negative_cache;
+
+    //threads objects are read and the content cache is filled on (the event loop never touches the disk for a body)
+    //and the connection's event loop, which picks the request up again once they are done
+    private Executor loaders;
+    private Executor loop;
+
+    //access log shared with the rest of the server, null when disabled, and the client as it is logged (address:port)
+    private WebServerAccessLog access_log;
+    private String client_name;
+
+    //when the current request started arriving, whether it was parsed, the bytes of its response sent so far
+    //and whether it has been logged yet
+    private long req_started;
+    private boolean request_parsed;
+    private long resp_bytes;
+    private boolean resp_logged;
+
+    //server metrics, null when the metrics endpoint is disabled, and when the first byte of the current response was sent (0 until then)
+    private WebServerMetrics metrics;
+    private long resp_first_byte;
+
+    //buffer the response heads are built in
+    private WebServerResponseHead head;
+
+    //response head still to be written and the requested object body (null when there is no body)
+    //the body comes either from the object file or, for a cached object, from memory
+    private ByteBuffer resp_head;
+    private WebServerCachedObject resp_cached;
+    private ByteBuffer resp_cached_body;
+
+    //the buffers of a gathering write of the response head (or a part head) and an in-memory body
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private FileChannel resp_body;
+    private long body_position;
+    private long body_length;
+
+    //for a multipart/byteranges response: the ranges, the type of the object and the part being written
+    //(-1 while the response head is written, getCount() while the closing boundary is)
+    private WebServerByteRanges resp_ranges;
+    private String resp_type;
+    private int resp_part;
+
+    /**
+     * Constructor for WebServerNioConnection
+     *
+     * @param cc        client channel accepted by the server, already in non-blocking mode
+     * @param config    server settings (timeouts and persistent connection limit) the connection will abide by
+     * @param cache     the server's content cache, null if caching is disabled
+     * @param log       the server's access log, null if it is disabled
+     * @param m         the server's metrics, null if the metrics endpoint is disabled
+     * @param w         the timer wheel of the connection's reactor
+     * @param index     the server's file index, null if it is disabled
+     * @param missing   the server's negative cache, null if it is disabled
+     * @param l         the threads reading objects and filling the content cache
+     * @param r         the connection's reactor, running the work handed back to it
+     */
+    public WebServerNioConnection(SocketChannel cc, WebServerConfig config, WebServerContentCache cache, WebServerAccessLog log, WebServerMetrics m, WebServerTimerWheel w, WebServerFileIndex index, WebServerNegativeCache missing, Executor l, Executor r) {
+        cli_chan = cc;
+        content_cache = cache;
+        loaders = l;
+        loop = r;
+        file_index = index;
+        negative_cache = missing;
+        access_log = log;
+        metrics = m;
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        client_name = clientName();
+        timeout = config.timeout;
+        header_timeout = config.headerTimeout;
+        write_timeout = config.writeTimeout;
+        min_send_rate = config.minSendRate;
+        timer_wheel = w;
+        timer = timer_wheel.newTimer(this::timerExpired);
+        max_requests = Math.max(1, config.maxRequests);
+        sendfile_threshold = config.sendfileThreshold;
+        requests_served = 0;
+        req_buffer = ByteBuffer.allocate(WebServerHttp.MAX_REQUEST_HEAD);
+        head_end = 0;
+        request_parser = new WebServerRequestParser();
+        head = new WebServerResponseHead();
+        input_closed = false;
+        awaitRequest();
+    }
+
+    //resets the connection to wait for its next request, keeping any bytes already recieved for it
+    //(the timeout bounds both the wait for the first request and the idle time between requests,
+    // the header timeout the rest of a request once it has started)
+    private void awaitRequest() {
+        state = READING_REQUEST;
+        req_buffer.limit(req_buffer.position());
+        req_buffer.position(head_end);
+        req_buffer.compact();
+        head_end = 0;
+        request_parser.reset();
+        //a pipelined request already recieved starts now, otherwise when its first bytes arrive
+        req_started = System.nanoTime();
+        armTimer(req_buffer.position() > 0 ? ((header_timeout > 0) ? header_timeout : timeout) : timeout);
+        if (key != null) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Attaches the selection key the connection was registered under
+     *
+     * @param k     the selection key of the client channel
+     */
+    public void setKey(SelectionKey k) {
+        key = k;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+
+
+    /**
+     * Advances the connection with whatever operations its channel is ready for
+     */
+    public void handleReady() {
+        try {
+            if (state == READING_REQUEST && key.isReadable()) {
+                readClientGET();
+            }
+            if (state == WRITING_RESPONSE && key.isWritable()) {
+                writeResponse();
+            }
+            serveBufferedRequests();
+        } catch (IOException e) {
+            logger.fine("Error: a problem occured on client connection " + remoteAddress() + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Reads whatever request bytes are available
+     */
+    private void readClientGET() throws IOException {
+        boolean empty = req_buffer.position() == 0;
+        int n = cli_chan.read(req_buffer);
+        if (empty && n > 0) {
+            req_started = System.nanoTime();
+            if (header_timeout > 0) {
+                armTimer(header_timeout);
+            }
+        }
+        if (n == -1) {
+            //client closed its side, requests it sent before closing are still served
+            input_closed = true;
+        }
+    }
+
+    /**
+     * Serves every complete request in the request buffer, in order, for as long as
+     * each response can be written out without waiting on the channel
+     */
+    private void serveBufferedRequests() throws IOException {
+        int parsed = WebServerRequestParser.INCOMPLETE;
+        while (state == READING_REQUEST
+                && (parsed = request_parser.parse(req_buffer.array(), 0, req_buffer.position())) == WebServerRequestParser.COMPLETE) {
+            head_end = request_parser.getHeadEnd();
+            requests_served++;
+            request_parsed = true;
+            keep_alive = !input_closed && request_parser.keepAliveRequested() && requests_served < max_requests && !WebServer.shutdownRequested;
+            serveClientGET();
+        }
+
+        if (state != READING_REQUEST) {
+            return;
+        }
+        if (parsed != WebServerRequestParser.INCOMPLETE || !req_buffer.hasRemaining()) {
+            //malformed request head, or one over the size or header count limits, refuse it
+            request_parsed = false;
+            keep_alive = false;
+            beginResponse(WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_400, false), null, 0);
+        } else if (input_closed && req_buffer.position() > 0) {
+            //client closed its side part way through a request, refuse it as the threaded modes do
+            request_parsed = false;
+            keep_alive = false;
+            beginResponse(WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_400, false), null, 0);
+        } else if (input_closed) {
+            //client closed its side with no complete request left
+            close();
+        }
+    }
+
+    /**
+     * Checks the recieved client GET request (held by the request parser) and starts sending the response
+     */
+    private void serveClientGET() throws IOException {
+        if (!WebServerHttp.isValidGET(request_parser)) {
+            keep_alive = false;
+            beginResponse(WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_400, false), null, 0);
+            return;
+        }
+
+        //the metrics are served by the server itself
+        if (metrics != null && request_parser.getTarget().equals(metrics.getPath())) {
+            byte[] text = metrics.render().getBytes(StandardCharsets.US_ASCII);
+            beginResponse(WebServerHttp.okResponseHead(head, WebServerHttp.generatedHeaders(WebServerMetrics.CONTENT_TYPE, text.length), keep_alive),
+                null, ByteBuffer.wrap(text), null, 0, 0);
+            return;
+        }
+
+        //a file known to the file index is described by its entry, a path recently found missing is answered
+        //from the negative cache, otherwise it is looked up on disk
+        File req_obj = WebServerHttp.resolveObject(request_parser.getTarget());
+        WebServerFileIndex.Entry obj_meta = (file_index != null) ? file_index.lookup(req_obj.getPath()) : null;
+        if (obj_meta == null && !exists(req_obj)) {
+            beginResponse(WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_404, keep_alive), null, 0);
+            return;
+        }
+
+        //small objects are served from the content cache, a miss is loaded into it on a loader thread and the request
+        //carries on once it is there (the event loop never waits on the disk or on another request's load of the same object)
+        long obj_length = (obj_meta != null) ? obj_meta.getLength() : req_obj.length();
+        if (content_cache != null) {
+            boolean gzip = WebServerHttp.acceptsGzip(request_parser);
+            WebServerCachedObject cached = content_cache.peek(req_obj, gzip);
+            if (cached != null) {
+                serveCachedObject(cached);
+                return;
+            }
+            if (obj_length <= content_cache.getMaxEntryBytes()) {
+                //(served from disk after all if the object turned out not to be cacheable)
+                offload(() -> content_cache.get(req_obj, gzip), loaded -> {
+                    if (loaded != null) {
+                        serveCachedObject(loaded);
+                    } else {
+                        serveObject(req_obj, obj_meta);
+                    }
+                });
+                return;
+            }
+        }
+        serveObject(req_obj, obj_meta);
+    }
+
+    /**
+     * Starts sending a cached object, or the requested ranges of it
+     *
+     * @param cached    the cached object (the connection takes over the caller's reference)
+     */
+    private void serveCachedObject(WebServerCachedObject cached) throws IOException {
+        if (WebServerHttp.notModified(request_parser, cached.getETag(), cached.getLastModified())) {
+            //client's copy is current
+            try {
+                beginResponse(WebServerHttp.notModifiedResponse(head, cached.getValidators(), keep_alive), null, 0);
+            } finally {
+                cached.release();
+            }
+            return;
+        }
+        WebServerByteRanges ranges = WebServerHttp.requestedRanges(request_parser, cached.getETag(), cached.getLastModified(), cached.getLength());
+        if (ranges == null) {
+            beginResponse(WebServerHttp.okResponseHead(head, cached.getHeaders(), keep_alive), cached, null, 0, 0);
+        } else if (!ranges.isSatisfiable()) {
+            try {
+                beginResponse(WebServerHttp.rangeNotSatisfiableResponse(head, cached.getLength(), keep_alive), null, 0);
+            } finally {
+                cached.release();
+            }
+        } else {
+            beginRangesResponse(ranges, cached.getContentType(), cached.getValidators(), cached, null);
+        }
+    }
+
+    /**
+     * Starts sending an object (or the requested ranges of it) from its file
+     *
+     * @param req_obj   the requested object file
+     * @param obj_meta  the object's file index entry, null if the index does not know it
+     */
+    private void serveObject(File req_obj, WebServerFileIndex.Entry obj_meta) throws IOException {
+        long obj_mtime = (obj_meta != null) ? obj_meta.getLastModified() : req_obj.lastModified();
+        long obj_length = (obj_meta != null) ? obj_meta.getLength() : req_obj.length();
+        String obj_etag = (obj_meta != null) ? obj_meta.getETag() : WebServerHttp.etag(obj_mtime, obj_length);
+        byte[] obj_validators = (obj_meta != null) ? obj_meta.getValidators() : WebServerHttp.validatorHeaders(obj_mtime, obj_etag);
+        if (WebServerHttp.notModified(request_parser, obj_etag, obj_mtime)) {
+            //client's copy is current, the object is not opened
+            beginResponse(WebServerHttp.notModifiedResponse(head, obj_validators, keep_alive), null, 0);
+            return;
+        }
+
+        String obj_type = (obj_meta != null) ? obj_meta.getContentType() : WebServerHttp.contentType(req_obj);
+        WebServerByteRanges ranges = WebServerHttp.requestedRanges(request_parser, obj_etag, obj_mtime, obj_length);
+        if (ranges != null && !ranges.isSatisfiable()) {
+            //none of the requested ranges exist, the object is not opened
+            beginResponse(WebServerHttp.rangeNotSatisfiableResponse(head, obj_length, keep_alive), null, 0);
+            return;
+        }
+
+        FileChannel body = FileChannel.open(((obj_meta != null) ? obj_meta.getFile() : req_obj).toPath(), StandardOpenOption.READ);
+        if (ranges == null) {
+            byte[] obj_headers = (obj_meta != null) ? obj_meta.getHeaders() : WebServerHttp.objectHeaders(obj_type, null, obj_validators, obj_length);
+            if (obj_length < sendfile_threshold) {
+                //a small object is read into memory on a loader thread, so it goes out in the same write as the head
+                offload(() -> readObject(body, obj_length),
+                    obj_body -> beginResponse(WebServerHttp.okResponseHead(head, obj_headers, keep_alive), null, obj_body, null, 0, 0));
+                return;
+            }
+            beginResponse(WebServerHttp.okResponseHead(head, obj_headers, keep_alive), body, obj_length);
+        } else {
+            beginRangesResponse(ranges, obj_type, obj_validators, null, body);
+        }
+    }
+
+    /**
+     * Hands work that would block the event loop to a loader thread, the connection neither reads nor writes until
+     * its result comes back on the event loop, where the request carries on and any pipelined requests after it are served
+     *
+     * @param load      the work done on the loader thread
+     * @param resume    what is done with its result on the event loop
+     */
+    private <T> void offload(Load<T> load, Resume<T> resume) {
+        state = LOADING;
+        key.interestOps(0);
+        timer_wheel.cancel(timer);
+        loaders.execute(() -> {
+            T result = null;
+            IOException failure = null;
+            try {
+                result = load.load();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            T loaded = result;
+            IOException failed = failure;
+            loop.execute(() -> resumeLoad(loaded, failed, resume));
+        });
+    }
+
+    //picks a request up again on the event loop once its loader thread is done
+    //(a connection closed in the meantime only lets go of the result)
+    private <T> void resumeLoad(T result, IOException failure, Resume<T> resume) {
+        if (state != LOADING) {
+            if (result instanceof WebServerCachedObject) {
+                ((WebServerCachedObject) result).release();
+            }
+            return;
+        }
+        state = READING_REQUEST;
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            resume.resume(result);
+            serveBufferedRequests();
+        } catch (IOException e) {
+            logger.fine("Error: a problem occured on client connection " + remoteAddress() + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    //reads a whole (small) object into memory and closes its channel (on a loader thread)
+    private static ByteBuffer readObject(FileChannel body, long obj_length) throws IOException {
+        ByteBuffer obj_body = ByteBuffer.allocate((int) obj_length);
+        try {
+            int n;
+            do {
+                n = body.read(obj_body);
+            } while (n > 0 && obj_body.hasRemaining());
+        } finally {
+            body.close();
+        }
+        if (obj_body.hasRemaining()) {
+            throw new IOException("object shorter than its length when the response began");
+        }
+        obj_body.flip();
+        return obj_body;
+    }
+
+    //whether an object not in the file index exists, by the negative cache or on disk
+    private boolean exists(File req_obj) {
+        if (negative_cache == null) {
+            return req_obj.exists();
+        }
+        String path = req_obj.getPath();
+        if (negative_cache.isMissing(path)) {
+            return false;
+        }
+        long generation = negative_cache.getGeneration();
+        if (req_obj.exists()) {
+            return true;
+        }
+        negative_cache.add(path, generation);
+        return false;
+    }
+
+    /**
+     * Switches the connection into writing a 206 response with the requested byte ranges of the object
+     * (a single range is sent as a slice of the body, several as the parts of a multipart/byteranges body)
+     *
+     * @param ranges        the satisfiable ranges
+     * @param obj_type      the type of the object
+     * @param validators    the object's validator headers
+     * @param cached        the cached object to send the ranges from (the connection takes over the caller's reference), null if none
+     * @param body          the channel of the object to send the ranges from, null if cached
+     */
+    private void beginRangesResponse(WebServerByteRanges ranges, String obj_type, byte[] validators, WebServerCachedObject cached, FileChannel body) throws IOException {
+        WebServerResponseHead h = WebServerHttp.partialContentHead(head, ranges, obj_type, validators, keep_alive);
+        if (ranges.isMultipart()) {
+            //the parts are queued up after the head is written
+            resp_ranges = ranges;
+            resp_type = obj_type;
+            beginResponse(h, cached, body, 0, 0);
+        } else {
+            beginResponse(h, cached, body, ranges.getStart(0), ranges.getEnd(0));
+        }
+    }
+
+    /**
+     * Switches the connection into writing the given response
+     *
+     * @param h     the response head (or the whole response if it has no body)
+     * @param body  the channel of the object to send after the head, null if none
+     * @param len   number of body bytes to send
+     */
+    private void beginResponse(WebServerResponseHead h, FileChannel body, long len) throws IOException {
+        beginResponse(h, null, body, 0, len);
+    }
+
+    /**
+     * Switches the connection into writing the given response
+     *
+     * @param h         the response head (or the whole response if it has no body)
+     * @param cached    a cached object to send after the head (the connection takes over the caller's reference), null if none
+     * @param body      the channel of the object to send after the head, null if none
+     * @param from      offset of the first body byte to send from the channel
+     * @param to        offset just past the last body byte to send from the channel
+     *                  (for a cached object 0 and 0 send its whole body, unless the parts of a multipart body follow)
+     */
+    private void beginResponse(WebServerResponseHead h, WebServerCachedObject cached, FileChannel body, long from, long to) throws IOException {
+        ByteBuffer cached_body = null;
+        if (cached != null) {
+            cached_body = cached.getBody();
+            if (to > 0 || resp_ranges != null) {
+                cached_body.limit((int) to).position((int) from);
+            }
+        }
+        beginResponse(h, cached, cached_body, body, from, to);
+    }
+
+    /**
+     * Switches the connection into writing the given response
+     *
+     * @param h             the response head (or the whole response if it has no body)
+     * @param cached        the cached object the in-memory body belongs to (the connection takes over the caller's reference), null if none
+     * @param memory_body   a body in memory to send after the head (a cached object's or one generated by the server), null if none
+     * @param body          the channel of the object to send after the head, null if none
+     * @param from          offset of the first body byte to send from the channel
+     * @param to            offset just past the last body byte to send from the channel
+     */
+    private void beginResponse(WebServerResponseHead h, WebServerCachedObject cached, ByteBuffer memory_body, FileChannel body, long from, long to) throws IOException {
+        resp_head = h.asByteBuffer();
+        resp_cached = cached;
+        resp_cached_body = memory_body;
+        resp_body = body;
+        body_position = from;
+        body_length = to;
+        resp_part = -1;
+        resp_bytes = 0;
+        resp_logged = false;
+        resp_first_byte = 0;
+        state = WRITING_RESPONSE;
+        key.interestOps(SelectionKey.OP_WRITE);
+        write_started = System.currentTimeMillis();
+        timer_mark = 0;
+        armTimer(write_timeout);
+
+        //most responses fit in the socket send buffer, try writing right away instead of waiting a select round
+        writeResponse();
+    }
+
+    /**
+     * Writes as much of the pending response as the channel accepts without blocking
+     */
+    private void writeResponse() throws IOException {
+        while (true) {
+            if (resp_head.hasRemaining()) {
+                //an in-memory body goes out in the same write as its head
+                if (resp_cached_body != null && resp_cached_body.hasRemaining()) {
+                    gather[0] = resp_head;
+                    gather[1] = resp_cached_body;
+                    resp_bytes += cli_chan.write(gather);
+                    gather[0] = null;
+                    gather[1] = null;
+                } else {
+                    resp_bytes += cli_chan.write(resp_head);
+                }
+                if (resp_first_byte == 0 && resp_bytes > 0) {
+                    resp_first_byte = System.nanoTime();
+                }
+                if (resp_head.hasRemaining()) {
+                    return;
+                }
+            }
+
+            if (resp_cached_body != null && resp_cached_body.hasRemaining()) {
+                resp_bytes += cli_chan.write(resp_cached_body);
+                if (resp_cached_body.hasRemaining()) {
+                    return;
+                }
+            }
+
+            while (resp_body != null && body_position < body_length) {
+                long sent = resp_body.transferTo(body_position, body_length - body_position, cli_chan);
+                if (sent == 0) {
+                    //socket send buffer is full, wait for the next OP_WRITE
+                    return;
+                }
+                body_position += sent;
+                resp_bytes += sent;
+            }
+
+            //a multipart/byteranges body goes on with its next part (or its closing boundary)
+            if (resp_ranges == null || !nextPart()) {
+                break;
+            }
+        }
+
+        //response fully sent, wait for the next request on a persistent connection or close it
+        recordResponse();
+        resp_cached_body = null;
+        if (resp_cached != null) {
+            resp_cached.release();
+            resp_cached = null;
+        }
+        if (resp_body != null) {
+            resp_body.close();
+            resp_body = null;
+        }
+        resp_ranges = null;
+        if (keep_alive) {
+            awaitRequest();
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Moves a multipart/byteranges response on to its next part: the part's head followed by its range of the object,
+     * and after the last part the closing boundary
+     *
+     * @return false once the closing boundary has been written
+     */
+    private boolean nextPart() {
+        resp_part++;
+        if (resp_part > resp_ranges.getCount()) {
+            return false;
+        }
+        if (resp_part == resp_ranges.getCount()) {
+            resp_head = ByteBuffer.wrap(resp_ranges.closing());
+            body_position = body_length;
+            if (resp_cached_body != null) {
+                resp_cached_body.position(resp_cached_body.limit());
+            }
+            return true;
+        }
+        resp_head = ByteBuffer.wrap(resp_ranges.partHead(resp_part, resp_type));
+        body_position = resp_ranges.getStart(resp_part);
+        body_length = resp_ranges.getEnd(resp_part);
+        if (resp_cached_body != null) {
+            resp_cached_body.limit((int) body_length).position((int) body_position);
+        }
+        return true;
+    }
+
+    //arms the connection's timer (0 means no deadline)
+    private void armTimer(int millis) {
+        if (millis > 0) {
+            timer_wheel.arm(timer, millis);
+        } else {
+            timer_wheel.cancel(timer);
+        }
+    }
+
+    /**
+     * Run by the reactor's timer wheel when the connection's timer expires
+     * Sends a 408 response to a client that did not complete its request in time
+     * (an idle persistent connection that has not started its next request is closed quietly instead),
+     * and resets a connection whose response sent nothing since the timer was armed (one still making progress is given more time
+     * unless it fell below the minimum send rate)
+     */
+    private void timerExpired() {
+        if (state == WRITING_RESPONSE) {
+            if (resp_bytes == timer_mark) {
+                //the selector only reports the channel writable again once a good part of its send buffer is free,
+                //a client taking its response slowly may have made room for some of it well before that
+                try {
+                    writeResponse();
+                    if (state != WRITING_RESPONSE) {
+                        //response done, go on with any pipelined requests
+                        serveBufferedRequests();
+                        return;
+                    }
+                } catch (IOException e) {
+                    logger.fine("Error: a problem occured on client connection " + remoteAddress() + ": " + e.getMessage());
+                    close();
+                    return;
+                }
+            }
+            long now = System.currentTimeMillis();
+            long slow_deadline = slowDeadline(resp_bytes);
+            if (now >= slow_deadline) {
+                logger.fine("Client " + remoteAddress() + " took its response slower than the minimum send rate");
+                abort();
+                return;
+            }
+            if (resp_bytes != timer_mark) {
+                timer_mark = resp_bytes;
+                armTimer((int) Math.min(write_timeout, slow_deadline - now));
+                return;
+            }
+            logger.fine("Client " + remoteAddress() + " stopped taking its response for longer than the write timeout");
+            abort();
+            return;
+        }
+        if (state != READING_REQUEST) {
+            return;
+        }
+        if (requests_served > 0 && isIdle()) {
+            close();
+            return;
+        }
+        try {
+            request_parsed = false;
+            keep_alive = false;
+            beginResponse(WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_408, false), null, 0);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Gives the time by which a response must have sent more than it has to keep up the minimum send rate
+     * (the write timeout, and a second more for each min_send_rate bytes sent)
+     *
+     * @param sent  the response bytes sent so far
+     * @return the deadline in System.currentTimeMillis() time, Long.MAX_VALUE if there is no minimum rate
+     */
+    private long slowDeadline(long sent) {
+        if (min_send_rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return write_started + write_timeout + sent * 1000 / min_send_rate;
+    }
+
+    /**
+     * Checks whether the connection is idle, ie. waiting on a request it has not recieved any bytes of
+     * (idle connections are closed straight away when the server shuts down)
+     */
+    public boolean isIdle() {
+        return state == READING_REQUEST && req_buffer.position() == 0;
+    }
+
+    /**
+     * Closes the connection part way through its response, resetting it rather than letting the
+     * response bytes already in the socket send buffer trickle out to the client
+     */
+    public void abort() {
+        if (state == CLOSED) {
+            return;
+        }
+        try {
+            cli_chan.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } catch (IOException e) {
+            // Ok, closed normally
+        }
+        close();
+    }
+
+    /**
+     * Closes the client channel and any open object channel
+     */
+    public void close() {
+        if (state == CLOSED) {
+            return;
+        }
+        if (state == WRITING_RESPONSE) {
+            //response cut short, recorded with the bytes that were sent
+            recordResponse();
+        }
+        state = CLOSED;
+        timer_wheel.cancel(timer);
+        if (metrics != null) {
+            metrics.connectionClosed();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (resp_cached != null) {
+            resp_cached.release();
+            resp_cached = null;
+        }
+        try {
+            if (resp_body != null) {
+                resp_body.close();
+            }
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+        try {
+            cli_chan.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+
+    /**
+     * Adds the current request to the access log and the metrics, once, with the status of its response head and the bytes sent
+     * (requests that were never parsed are logged without method and object-path)
+     */
+    private void recordResponse() {
+        if (resp_logged) {
+            return;
+        }
+        resp_logged = true;
+        long now = System.nanoTime();
+        if (access_log != null) {
+            String method = request_parsed ? request_parser.getMethod() : null;
+            String target = request_parsed ? request_parser.getTarget() : null;
+            access_log.log(client_name, method, target, head.getStatus(), resp_bytes, now - req_started);
+        }
+        if (metrics != null) {
+            metrics.response(head.getStatus(), resp_bytes, (resp_first_byte > 0) ? resp_first_byte - req_started : -1, now - req_started);
+        }
+    }
+
+    //client address and port as the access log records them
+    private String clientName() {
+        try {
+            InetSocketAddress remote = (InetSocketAddress) cli_chan.getRemoteAddress();
+            return remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    //remote address of the client for log messages
+    private String remoteAddress() {
+        try {
+            return String.valueOf(cli_chan.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,175 @@
+
+/**
+ * WebServerOffHeapStore Class
+ * Keeps cached object bodies outside the Java heap, so a large cache adds nothing to GC work
+ *
+ * Small objects are copied into direct buffers taken from per size class pools (powers of two from 4 KB
+ * up to the map threshold), released buffers go back to thier pool for the next object of that class.
+ * Objects larger than the map threshold are memory-mapped read only, thier pages live in the OS page cache.
+ * Either way the body can be written to a socket channel without being copied onto the heap.
+ *
+ * A mapped file that is truncated while mapped makes reads of the lost pages fail,
+ * the content cache limits this by revalidating entries against the file (see WebServerCachedObject).
+ * Mapped segments are unmapped by the GC once unreachable, getMappedBytes counts them until they are released.
+ * Bodies built in memory (compressed variants) are copied into pooled buffers too, unless they are larger
+ * than the largest one, then they stay on the heap where they were built.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebServerOffHeapStore implements WebServerCacheStore {
+
+    //smallest pooled direct buffer
+    private static final int MIN_BUFFER = 4*1024;
+
+    //largest pooled direct buffer, larger objects are mapped
+    private final int max_buffer;
+
+    //released direct buffers of each size class, how many bytes they hold and the most they may hold
+    private final ArrayDeque<ByteBuffer>[] free_buffers;
+    private long pooled_bytes;
+    private final long max_pooled_bytes;
+    private final ReentrantLock lock;
+
+    //memory held outside the heap: all direct buffers (in use or pooled) and mapped segments in use
+    private final AtomicLong direct_bytes;
+    private final AtomicLong mapped_bytes;
+
+    /**
+     * Constructor for WebServerOffHeapStore
+     *
+     * @param map_threshold     objects larger than this (rounded up to a power of two) are memory-mapped
+     * @param max_pooled        most bytes of released direct buffers kept for reuse
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public WebServerOffHeapStore(long map_threshold, long max_pooled) {
+        int max = MIN_BUFFER;
+        while (max < map_threshold && max < (1 << 30)) {
+            max <<= 1;
+        }
+        max_buffer = max;
+        free_buffers = new ArrayDeque[sizeClass(max_buffer) + 1];
+        for (int i = 0; i < free_buffers.length; i++) {
+            free_buffers[i] = new ArrayDeque<ByteBuffer>();
+        }
+        pooled_bytes = 0;
+        max_pooled_bytes = max_pooled;
+        lock = new ReentrantLock();
+        direct_bytes = new AtomicLong();
+        mapped_bytes = new AtomicLong();
+    }
+
+    public ByteBuffer load(FileChannel obj_chan, long length) throws IOException {
+        if (length > max_buffer) {
+            ByteBuffer mapped = obj_chan.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mapped_bytes.addAndGet(length);
+            return mapped;
+        }
+
+        ByteBuffer body = takeBuffer(sizeClass((int) length));
+        body.limit((int) length);
+        if (!WebServerCacheStore.readFully(obj_chan, body)) {
+            release(body);
+            return null;
+        }
+        return body;
+    }
+
+    public ByteBuffer copy(byte[] b, int length) {
+        if (length > max_buffer) {
+            return ByteBuffer.wrap(b, 0, length);
+        }
+
+        ByteBuffer body = takeBuffer(sizeClass(length));
+        body.put(b, 0, length);
+        body.flip();
+        return body;
+    }
+
+    public void release(ByteBuffer body) {
+        if (!body.isDirect()) {
+            //a large copied body left on the heap
+            return;
+        }
+        if (body.capacity() > max_buffer) {
+            mapped_bytes.addAndGet(-body.capacity());
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (pooled_bytes + body.capacity() <= max_pooled_bytes) {
+                body.clear();
+                free_buffers[sizeClass(body.capacity())].addLast(body);
+                pooled_bytes += body.capacity();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        //pool is full, leave the buffer to the GC
+        direct_bytes.addAndGet(-body.capacity());
+    }
+
+    //takes a pooled direct buffer of the size class, allocating one if the pool is empty
+    private ByteBuffer takeBuffer(int size_class) {
+        lock.lock();
+        try {
+            ByteBuffer b = free_buffers[size_class].pollFirst();
+            if (b != null) {
+                pooled_bytes -= b.capacity();
+                return b;
+            }
+        } finally {
+            lock.unlock();
+        }
+        int capacity = MIN_BUFFER << size_class;
+        direct_bytes.addAndGet(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    //index of the smallest size class holding length bytes
+    private static int sizeClass(int length) {
+        int c = 0;
+        while ((MIN_BUFFER << c) < length) {
+            c++;
+        }
+        return c;
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS (off-heap memory use, none of it counts against the Java heap)
+
+    public long getAllocatedBytes() {
+        return direct_bytes.get() + mapped_bytes.get();
+    }
+
+    //direct buffer bytes, including released buffers kept in the pools
+    public long getDirectBytes() {
+        return direct_bytes.get();
+    }
+
+    public long getPooledBytes() {
+        lock.lock();
+        try {
+            return pooled_bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMappedBytes() {
+        return mapped_bytes.get();
+    }
+
+    public String toString() {
+        return String.format("store=offheap direct_bytes=%d pooled_bytes=%d mapped_bytes=%d",
+            getDirectBytes(), getPooledBytes(), getMappedBytes());
+    }
+}
@@ -0,0 +1,238 @@
+
+/**
+ * WebServerReactor Class
+ * Event loop thread that multiplexes many client connections over a single Selector
+ *
+ * The main WebServer thread accepts connections and hands them to its reactors in turn,
+ * each reactor then drives its WebServerNioConnections until they are closed
+ */
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.*;
+
+public class WebServerReactor extends Thread implements Executor {
+
+	// global logger object, configures in the driver class
+	private static final Logger logger = Logger.getLogger("WebServer");
+
+    //how long a select call may block before the reactor advances its timer wheel and checks for shutdown
+    //(one tick of the wheel)
+    private final int SELECT_CHECKTIME = WebServerTimerWheel.TICK_MILLIS;
+
+    //selector multiplexing the client connections of this reactor
+    private Selector selector;
+
+    //channels accepted by the main server thread waiting to be registered with the selector
+    private ConcurrentLinkedQueue<SocketChannel> pending_channels;
+
+    //work handed back to the reactor by the loader threads (a request to carry on once its object is loaded),
+    //and set once the reactor has stopped, after which such work is run where it is handed over
+    private ConcurrentLinkedQueue<Runnable> pending_tasks;
+    private volatile boolean stopped;
+
+    //the server settings (timeouts and persistent connection limit) passed along to every connection
+    private WebServerConfig config;
+
+    //timer wheel keeping the deadlines of this reactor's connections, advanced by the reactor itself
+    //(so connection timeouts cost nothing per connection while nothing expires, and expire on the reactor thread)
+    private WebServerTimerWheel timer_wheel;
+
+    //content cache shared with the rest of the server, null when disabled
+    private WebServerContentCache content_cache;
+
+    //metadata index of the document root shared with the rest of the server, null when disabled
+    private WebServerFileIndex file_index;
+
+    //paths recently found missing, shared with the rest of the server, null when disabled
+    private WebServerNegativeCache negative_cache;
+
+    //access log shared with the rest of the server, null when disabled
+    private WebServerAccessLog access_log;
+
+    //server metrics, null when the metrics endpoint is disabled
+    private WebServerMetrics metrics;
+
+    //threads reading objects and loading them into the content cache for the connections
+    private Executor loaders;
+
+    //System.currentTimeMillis() after which connections still serving a response on shutdown are forcibly closed
+    private volatile long drain_deadline;
+
+    /**
+     * Constructor for WebServerReactor thread class
+     *
+     * @param id    index of the reactor, used in its thread name
+     * @param config    the server settings (timeout and persistent connection limit) the reactor's connections will abide by
+     * @param cache     the server's content cache, null if caching is disabled
+     * @param log       the server's access log, null if it is disabled
+     * @param m         the server's metrics, null if the metrics endpoint is disabled
+     * @param index     the server's file index, null if it is disabled
+     * @param missing   the server's negative cache, null if it is disabled
+     * @param l         the threads reading objects and loading them into the content cache
+     * @throws IOException if the selector could not be opened
+     */
+    public WebServerReactor(int id, WebServerConfig config, WebServerContentCache cache, WebServerAccessLog log, WebServerMetrics m, WebServerFileIndex index, WebServerNegativeCache missing, Executor l) throws IOException {
+        super("WebServerReactor-" + id);
+        content_cache = cache;
+        file_index = index;
+        negative_cache = missing;
+        access_log = log;
+        metrics = m;
+        loaders = l;
+        this.config = config;
+        timer_wheel = new WebServerTimerWheel(WebServerTimerWheel.TICK_MILLIS, WebServerTimerWheel.SLOTS);
+        selector = Selector.open();
+        pending_channels = new ConcurrentLinkedQueue<SocketChannel>();
+        pending_tasks = new ConcurrentLinkedQueue<Runnable>();
+        stopped = false;
+        drain_deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Hands an accepted client channel over to this reactor
+     * (called from the main WebServer thread)
+     *
+     * @param cc    the accepted client channel
+     */
+    public void addConnection(SocketChannel cc) {
+        pending_channels.add(cc);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands work over to be run on the reactor thread
+     * (called from the loader threads, once the reactor has stopped the work is run straight away instead)
+     *
+     * @param task  the work to run
+     */
+    public void execute(Runnable task) {
+        pending_tasks.add(task);
+        if (stopped) {
+            runPending();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Sets the deadline for the responses in progress once shutdown is requested
+     * (idle connections are closed straight away, the rest when they finish thier response or at the deadline)
+     * (called from the main WebServer thread)
+     *
+     * @param deadline  System.currentTimeMillis() by which in-flight responses must be done
+     */
+    public void drain(long deadline) {
+        drain_deadline = deadline;
+        selector.wakeup();
+    }
+
+
+
+    public void run() {
+        try {
+            while (!WebServer.shutdownRequested || !selector.keys().isEmpty()) {
+                selector.select(SELECT_CHECKTIME);
+
+                registerPending();
+                runPending();
+
+                //advance every connection whose channel is ready
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while (ready.hasNext()) {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    if (key.isValid()) {
+                        ((WebServerNioConnection) key.attachment()).handleReady();
+                    }
+                }
+
+                timer_wheel.advance();
+                if (WebServer.shutdownRequested) {
+                    checkConnections();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + getName() + " selector failed");
+            e.printStackTrace();
+        } finally {
+            closeAll();
+        }
+    }
+
+    //registers the channels handed over by the main server thread with the selector
+    private void registerPending() {
+        SocketChannel cc;
+        while ((cc = pending_channels.poll()) != null) {
+            try {
+                cc.configureBlocking(false);
+                cc.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+                WebServerNioConnection conn = new WebServerNioConnection(cc, config, content_cache, access_log, metrics, timer_wheel, file_index, negative_cache, loaders, this);
+                conn.setKey(cc.register(selector, 0, conn));
+            } catch (ClosedChannelException e) {
+                // Ok, client already gone
+            } catch (IOException e) {
+                System.out.println("Error: could not register client connection with " + getName());
+                try {
+                    cc.close();
+                } catch (IOException ie) {
+                    // Ok, ignore
+                }
+            }
+        }
+    }
+
+    //runs the work handed back by the loader threads
+    private void runPending() {
+        Runnable task;
+        while ((task = pending_tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    //once shutdown is requested closes idle connections and any connection still serving a response after the drain deadline
+    private void checkConnections() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            WebServerNioConnection conn = (WebServerNioConnection) key.attachment();
+            if (conn.isIdle()) {
+                conn.close();
+            } else if (now >= drain_deadline) {
+                conn.abort();
+            }
+        }
+    }
+
+    //closes any connection left when the reactor stops
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((WebServerNioConnection) key.attachment()).close();
+        }
+        SocketChannel cc;
+        while ((cc = pending_channels.poll()) != null) {
+            try {
+                cc.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+        //connections are closed, any load still landing only lets go of its result
+        stopped = true;
+        runPending();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+}
@@ -0,0 +1,283 @@
+
+/**
+ * WebServerRequestParser Class
+ * Incremental parser of Http request heads, reused for every request on a connection
+ *
+ * The parser works on the connection's own request buffer: each call only scans the bytes recieved since
+ * the previous call for the end of the head, and a complete head is split into its request line and headers
+ * as offsets into that buffer, so parsing a request allocates nothing. Strings are only built on request
+ * (ie. the object-path, or a header value a handler needs).
+ *
+ * Heads longer than WebServerHttp.MAX_REQUEST_HEAD or with more than MAX_HEADERS headers are refused.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public class WebServerRequestParser {
+
+    //most headers accepted in one request
+    public static final int MAX_HEADERS = 64;
+
+    //results of parse
+    public static final int INCOMPLETE = 0;
+    public static final int COMPLETE = 1;
+    public static final int BAD_REQUEST = 2;
+    public static final int TOO_LARGE = 3;
+
+    //buffer holding the last complete head, where the head starts and ends (just past its terminator)
+    private byte[] buf;
+    private int head_start;
+    private int head_end;
+
+    //bytes of the current request already scanned for the head terminator
+    private int scanned;
+
+    //request line elements (method starts at head_start)
+    private int method_end;
+    private int target_start;
+    private int target_end;
+    private int version_start;
+    private int version_end;
+
+    //start and end of the name and of the (trimmed) value of each header
+    private final int[] headers;
+    private int header_count;
+
+    /**
+     * Constructor for WebServerRequestParser
+     */
+    public WebServerRequestParser() {
+        headers = new int[MAX_HEADERS * 4];
+        reset();
+    }
+
+    /**
+     * Gets ready for the next request (its bytes start wherever the caller next points parse at)
+     */
+    public void reset() {
+        scanned = 0;
+        header_count = 0;
+    }
+
+    /**
+     * Scans the bytes of a request recieved so far for the end of its head and parses a complete head
+     * (the bytes may move in the buffer between calls, as long as the request still starts at start)
+     *
+     * @param b         the request buffer
+     * @param start     offset of the first byte of the request
+     * @param end       offset just past the last byte recieved
+     * @return COMPLETE once the head is complete and valid, INCOMPLETE if more bytes are needed,
+     *         BAD_REQUEST if the head is malformed and TOO_LARGE if it exceeds the size or header limits
+     */
+    public int parse(byte[] b, int start, int end) {
+        for (int i = start + Math.max(scanned, 3); i < end; i++) {
+            if (b[i] == '\n' && b[i-1] == '\r' && b[i-2] == '\n' && b[i-3] == '\r') {
+                if (i + 1 - start > WebServerHttp.MAX_REQUEST_HEAD) {
+                    return TOO_LARGE;
+                }
+                buf = b;
+                head_start = start;
+                head_end = i + 1;
+                return parseHead();
+            }
+        }
+        scanned = end - start;
+        return (scanned >= WebServerHttp.MAX_REQUEST_HEAD) ? TOO_LARGE : INCOMPLETE;
+    }
+
+    //splits a complete head into its request line and headers
+    private int parseHead() {
+        //request line: method SP target SP version CRLF
+        int line_end = indexOf(head_start, head_end, '\r');
+        method_end = indexOf(head_start, line_end, ' ');
+        target_start = method_end + 1;
+        target_end = indexOf(target_start, line_end, ' ');
+        version_start = target_end + 1;
+        version_end = line_end;
+        if (method_end == head_start || target_end <= target_start || version_start >= version_end
+                || indexOf(version_start, version_end, ' ') != version_end) {
+            return BAD_REQUEST;
+        }
+
+        //headers: name ":" OWS value OWS CRLF, up to the empty line ending the head
+        header_count = 0;
+        int line_start = line_end + 2;
+        while (line_start < head_end - 2) {
+            line_end = indexOf(line_start, head_end, '\r');
+            int colon = indexOf(line_start, line_end, ':');
+            if (colon == line_end || colon == line_start) {
+                return BAD_REQUEST;
+            }
+            if (header_count == MAX_HEADERS) {
+                return TOO_LARGE;
+            }
+            int value_start = colon + 1;
+            int value_end = line_end;
+            while (value_start < value_end && isSpace(buf[value_start])) {
+                value_start++;
+            }
+            while (value_end > value_start && isSpace(buf[value_end - 1])) {
+                value_end--;
+            }
+            int h = header_count * 4;
+            headers[h] = line_start;
+            headers[h + 1] = trimEnd(line_start, colon);
+            headers[h + 2] = value_start;
+            headers[h + 3] = value_end;
+            header_count++;
+            line_start = line_end + 2;
+        }
+        return COMPLETE;
+    }
+
+    //first position of c in [from, to), or to if there is none
+    private int indexOf(int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    //end of the range [from, to) without its trailing whitespace
+    private int trimEnd(int from, int to) {
+        while (to > from && isSpace(buf[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    //checks whether the bytes in [from, to) equal s, ignoring case if asked
+    private boolean matches(int from, int to, String s, boolean ignore_case) {
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int a = buf[from + i];
+            int c = s.charAt(i);
+            if (a != c && !(ignore_case && toLower(a) == toLower(c))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+
+
+    /**
+     * Checks the request method
+     *
+     * @param method    the expected method, ie. "GET"
+     */
+    public boolean isMethod(String method) {
+        return matches(head_start, method_end, method, false);
+    }
+
+    /**
+     * Checks the request version
+     *
+     * @param version   the expected version, ie. "HTTP/1.1"
+     */
+    public boolean isVersion(String version) {
+        return matches(version_start, version_end, version, false);
+    }
+
+    /**
+     * @return the method of the request line
+     */
+    public String getMethod() {
+        return new String(buf, head_start, method_end - head_start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the object-path of the request line
+     */
+    public String getTarget() {
+        return new String(buf, target_start, target_end - target_start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Finds a request header
+     *
+     * @param name  the header name, matched case-insensitively
+     * @return the index of the first header with the name, or -1 if the request does not have it
+     */
+    public int findHeader(String name) {
+        for (int h = 0; h < header_count * 4; h += 4) {
+            if (matches(headers[h], headers[h + 1], name, true)) {
+                return h / 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the value of a request header
+     *
+     * @param name  the header name, matched case-insensitively
+     * @return the trimmed header value, or null if the request does not have the header
+     */
+    public String getHeaderValue(String name) {
+        int h = findHeader(name);
+        if (h < 0) {
+            return null;
+        }
+        return new String(buf, headers[h*4 + 2], headers[h*4 + 3] - headers[h*4 + 2], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Checks whether the value of a request header contains a token, ignoring case
+     *
+     * @param name      the header name, matched case-insensitively
+     * @param token     the token looked for, in lower case
+     * @return false if the request does not have the header or its value does not contain the token
+     */
+    public boolean headerContains(String name, String token) {
+        int h = findHeader(name);
+        if (h < 0) {
+            return false;
+        }
+        int last = headers[h*4 + 3] - token.length();
+        for (int i = headers[h*4 + 2]; i <= last; i++) {
+            if (matches(i, i + token.length(), token, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the client wants the connection kept open after the response
+     * (Http/1.1 connections are persistent unless the client sends Connection: close)
+     */
+    public boolean keepAliveRequested() {
+        return !headerContains("Connection", "close");
+    }
+
+    /**
+     * @return offset just past the end of the last complete head, where the next request starts
+     */
+    public int getHeadEnd() {
+        return head_end;
+    }
+
+    /**
+     * @return the last complete head as a string (for printing)
+     */
+    public String getHead() {
+        return new String(buf, head_start, head_end - head_start, StandardCharsets.US_ASCII);
+    }
+
+    public int getHeaderCount() {
+        return header_count;
+    }
+}
@@ -0,0 +1,142 @@
+
+/**
+ * WebServerResponseHead Class
+ * Reusable buffer a connection builds its response heads in (see the response builders of WebServerHttp)
+ *
+ * A connection keeps one for all its responses, so building a head copies a few prebuilt
+ * byte templates into an array that is already there instead of allocating strings.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class WebServerResponseHead {
+
+    //the head bytes built so far
+    private byte[] bytes;
+    private int length;
+
+    //buffer view of the bytes handed to channel writes
+    private ByteBuffer view;
+
+    /**
+     * Constructor for WebServerResponseHead
+     */
+    public WebServerResponseHead() {
+        bytes = new byte[256];
+        length = 0;
+    }
+
+    /**
+     * Empties the buffer for the next head
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Appends bytes to the head
+     *
+     * @param b     the bytes to append
+     */
+    public void append(byte[] b) {
+        ensureRoom(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+    }
+
+    /**
+     * Appends a US-ASCII string to the head (without converting it to bytes first)
+     *
+     * @param str   the string to append
+     */
+    public void append(String str) {
+        ensureRoom(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            bytes[length++] = (byte) str.charAt(i);
+        }
+    }
+
+    /**
+     * Appends a single US-ASCII character to the head
+     *
+     * @param c     the character to append
+     */
+    public void append(char c) {
+        ensureRoom(1);
+        bytes[length++] = (byte) c;
+    }
+
+    /**
+     * Appends a number in decimal to the head
+     *
+     * @param v     the number to append (not negative)
+     */
+    public void append(long v) {
+        int digits = 1;
+        for (long rest = v / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureRoom(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        length += digits;
+    }
+
+    //grows the buffer to fit n more bytes
+    private void ensureRoom(int n) {
+        if (length + n > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+        }
+    }
+
+    /**
+     * Writes the head to an output stream
+     *
+     * @param out   the client socket output stream
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Gives the head as a buffer for channel writes
+     * (the buffer is reused, it is only valid until the head is reset)
+     *
+     * @return the head bytes, from position 0 to the end of the head
+     */
+    public ByteBuffer asByteBuffer() {
+        if (view == null || view.array() != bytes) {
+            view = ByteBuffer.wrap(bytes);
+        }
+        view.clear();
+        view.limit(length);
+        return view;
+    }
+
+    /**
+     * @return the status code of the head (0 if no status line has been built)
+     */
+    public int getStatus() {
+        //status code follows "HTTP/1.1 "
+        if (length < 12) {
+            return 0;
+        }
+        return (bytes[9] - '0') * 100 + (bytes[10] - '0') * 10 + (bytes[11] - '0');
+    }
+
+    public int length() {
+        return length;
+    }
+
+    //the head as a string (for printing)
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+}
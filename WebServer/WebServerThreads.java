@@ -0,0 +1,63 @@
+
+/**
+ * WebServerThreads Class
+ * Creates the threads WebServerClientProcesses run on
+ *
+ * Platform threads are used in thread mode, virtual threads in virtual mode.
+ * Virtual threads are looked up reflectively (Thread.ofVirtual() is only available from Java 21)
+ * so the server still compiles and runs its other modes on older JVMs.
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+public class WebServerThreads {
+
+    /**
+     * Builds a factory of platform threads
+     *
+     * @param name  prefix of the created thread names
+     * @return the thread factory
+     */
+    public static ThreadFactory platformFactory(String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + (count++));
+            }
+        };
+    }
+
+    /**
+     * Builds a factory of virtual threads
+     *
+     * @param name  prefix of the created thread names
+     * @return the thread factory
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    public static ThreadFactory virtualFactory(String name) {
+        try {
+            //Thread.ofVirtual().name(name + "-", 0).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or newer (running " + System.getProperty("java.version") + ")");
+        }
+    }
+
+    /**
+     * Checks whether the running JVM supports virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        try {
+            virtualFactory("probe");
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+
+/**
+ * WebServerTimerWheel Class
+ * Hashed timing wheel keeping the deadlines of many connections at a constant cost per deadline
+ *
+ * Time is cut into ticks and the wheel has a slot (a linked list of timers) for each of a fixed number of ticks,
+ * a timer being kept in the slot of the tick its deadline falls in (modulo the number of slots). Arming or cancelling
+ * a timer is a list insert or unlink in one slot, and each tick only the timers of one slot are looked at,
+ * so the wheel costs nothing per connection while nothing expires (unlike a scan of every connection).
+ * Deadlines further away than one turn of the wheel simply stay in thier slot until the turn they are due.
+ *
+ * Each connection owns one Timer it re-arms for its next deadline, so arming allocates nothing.
+ * Slots are guarded by striped locks so connection threads can arm and cancel timers while the wheel advances.
+ * The wheel is either advanced by its own ticker thread (the threaded modes, one wheel shared by every connection)
+ * or by the thread that owns it calling advance() (each event loop in nio mode has its own wheel).
+ * Expired timers run thier task on the thread advancing the wheel, so tasks must be short and must not block.
+ * A timer re-armed or cancelled after the wheel expired it but before its task ran does not run the task,
+ * the deadline it was expired for no longer holds.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebServerTimerWheel implements Runnable {
+
+    //lock stripes guarding the slots (a power of two, slot s is guarded by stripe s & (STRIPES - 1))
+    private static final int STRIPES = 64;
+
+    //tick length and slots the server's wheels are made with (a turn of about 51 seconds)
+    public static final int TICK_MILLIS = 50;
+    public static final int SLOTS = 1024;
+
+    /**
+     * Timer Class
+     * A deadline and the task run when it passes, re-armed as often as needed
+     */
+    public static final class Timer {
+        private final Runnable task;
+
+        //serializes arming and cancelling the timer and running its task (a lock rather than a monitor,
+        //so it is also safe to wait on from virtual threads)
+        private final ReentrantLock guard;
+
+        //bumped by every arm and cancel, and its value when the advancing thread last expired the timer
+        private volatile long generation;
+        private long expired_generation;
+
+        //slot list links and the tick the timer is due at, guarded by the slot's lock
+        private Timer prev;
+        private Timer next;
+        private long due_tick;
+
+        //slot the timer is in, -1 while it is not armed
+        private volatile int slot;
+
+        private Timer(Runnable task) {
+            this.task = task;
+            guard = new ReentrantLock();
+            generation = 0;
+            slot = -1;
+        }
+
+        public boolean isArmed() {
+            return slot >= 0;
+        }
+    }
+
+    //tick length in nano-seconds and the slots (a power of two)
+    private final long tick_nanos;
+    private final int mask;
+    private final Timer[] slots;
+    private final ReentrantLock[] stripes;
+
+    //time ticks are counted from, and the last tick whose slot has been expired
+    //(only written while holding the lock of that tick's slot)
+    private final long epoch;
+    private volatile long processed;
+
+    //timers expired by the current advance, before thier tasks are run
+    private final ArrayList<Timer> due;
+
+    //timers expired so far
+    private final AtomicLong expired_count;
+
+    //ticker thread, null if the owner advances the wheel
+    private Thread ticker;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor for WebServerTimerWheel
+     *
+     * @param tick_millis   length of a tick in milli-seconds, deadlines are met to within a tick
+     * @param slot_count    number of slots, rounded up to a power of two (a turn of the wheel is tick_millis * slot_count)
+     */
+    public WebServerTimerWheel(long tick_millis, int slot_count) {
+        tick_nanos = Math.max(1, tick_millis) * 1000000L;
+        int n = STRIPES;
+        while (n < slot_count) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        slots = new Timer[n];
+        stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        epoch = System.nanoTime();
+        processed = 0;
+        due = new ArrayList<Timer>();
+        expired_count = new AtomicLong();
+        stopped = false;
+    }
+
+    /**
+     * Creates a timer (not armed) for a task
+     *
+     * @param task  run on the advancing thread each time the timer expires
+     * @return the timer
+     */
+    public Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    /**
+     * Arms a timer, moving its deadline if it is already armed
+     *
+     * @param t             the timer
+     * @param delay_millis  milli-seconds from now the timer expires in
+     */
+    public void arm(Timer t, long delay_millis) {
+        //ticks are counted from the epoch, a deadline expires with the first tick at or after it
+        long due_tick = (System.nanoTime() - epoch + delay_millis * 1000000L + tick_nanos - 1) / tick_nanos;
+        t.guard.lock();
+        try {
+            t.generation++;
+            cancelArmed(t);
+            while (true) {
+                //a tick already expired can not take the timer, it goes in the next one
+                long tick = Math.max(due_tick, processed + 1);
+                int s = (int) (tick & mask);
+                ReentrantLock lock = stripes[s & (STRIPES - 1)];
+                lock.lock();
+                try {
+                    if (tick > processed) {
+                        t.due_tick = tick;
+                        t.prev = null;
+                        t.next = slots[s];
+                        if (t.next != null) {
+                            t.next.prev = t;
+                        }
+                        slots[s] = t;
+                        t.slot = s;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            t.guard.unlock();
+        }
+    }
+
+    /**
+     * Cancels a timer, nothing happens if it is not armed
+     * (a timer expired but whose task has not run yet is cancelled too, its task does not run)
+     *
+     * @param t     the timer
+     */
+    public void cancel(Timer t) {
+        t.guard.lock();
+        try {
+            t.generation++;
+            cancelArmed(t);
+        } finally {
+            t.guard.unlock();
+        }
+    }
+
+    //unlinks a timer from its slot (the caller holds the timer's guard, so only the advancing thread can move it meanwhile)
+    private void cancelArmed(Timer t) {
+        int s = t.slot;
+        if (s < 0) {
+            return;
+        }
+        ReentrantLock lock = stripes[s & (STRIPES - 1)];
+        lock.lock();
+        try {
+            //the timer may have expired while the lock was awaited
+            if (t.slot == s) {
+                unlink(s, t);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //removes a timer from a slot list (the slot's lock is held)
+    private void unlink(int s, Timer t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            slots[s] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.slot = -1;
+    }
+
+    /**
+     * Expires the timers of every tick up to now and runs thier tasks
+     * (called by one thread only, the ticker or the wheel's owner)
+     */
+    public void advance() {
+        long now_tick = (System.nanoTime() - epoch) / tick_nanos;
+        while (processed < now_tick) {
+            long tick = processed + 1;
+            int s = (int) (tick & mask);
+            ReentrantLock lock = stripes[s & (STRIPES - 1)];
+            lock.lock();
+            try {
+                //timers due in a later turn of the wheel stay in the slot
+                Timer t = slots[s];
+                while (t != null) {
+                    Timer next = t.next;
+                    if (t.due_tick <= tick) {
+                        unlink(s, t);
+                        t.expired_generation = t.generation;
+                        due.add(t);
+                    }
+                    t = next;
+                }
+                processed = tick;
+            } finally {
+                lock.unlock();
+            }
+
+            //tasks run outside the slot lock, they may re-arm thier timer
+            //(under the timer's guard, so a timer re-armed or cancelled since it was expired is seen as such and skipped)
+            for (int i = 0; i < due.size(); i++) {
+                Timer t = due.get(i);
+                t.guard.lock();
+                try {
+                    if (t.generation == t.expired_generation) {
+                        expired_count.incrementAndGet();
+                        t.task.run();
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Error: a timer task failed: " + e);
+                } finally {
+                    t.guard.unlock();
+                }
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Starts a ticker thread advancing the wheel every tick
+     * (in place of an owner calling advance())
+     */
+    public void start() {
+        ticker = new Thread(this, "WebServerTimerWheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Stops the ticker thread, timers still armed do not expire anymore
+     *
+     * @throws InterruptedException if interrupted while waiting for the ticker to stop
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        if (ticker != null) {
+            LockSupport.unpark(ticker);
+            ticker.join();
+        }
+    }
+
+    public void run() {
+        while (!stopped) {
+            advance();
+            LockSupport.parkNanos(tick_nanos);
+        }
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS
+
+    //timers expired so far
+    public long getExpired() {
+        return expired_count.get();
+    }
+}
@@ -0,0 +1,555 @@
+
+/**
+ * WebServerWorkerPool Class
+ * Bounded pool of worker threads that run WebServerClientProcesses in pool mode
+ *
+ * Accepted connections wait in a bounded queue for a free worker. The queue is split per client ip
+ * and workers take from the clients in round robin, so one busy client cannot starve the others,
+ * and no single client may hold more than its share of the queue. A connection that does not fit
+ * is refused straight away (the server answers it with 503) instead of piling up threads.
+ *
+ * A worker only holds a connection while it serves a request. A new connection waiting for its first request,
+ * or a persistent one waiting for its next, is parked on a selector and only queued once the request starts
+ * arriving, so idle clients can not keep the workers from anyone else. The queue limits are applied to a new
+ * connection when its first request arrives (a connection is also refused straight away while the queue is full).
+ * A refused connection has its request drained after the 503 before it is closed, so the client is not reset.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebServerWorkerPool {
+
+    //a connection waiting for a worker
+    private static class QueuedProcess {
+        WebServerClientProcess process;
+        long enqueue_time;
+
+        QueuedProcess(WebServerClientProcess p) {
+            process = p;
+            enqueue_time = System.nanoTime();
+        }
+    }
+
+    //a connection parked until its (next) request arrives, and whether it was admitted to the queue already
+    private static class Parked {
+        WebServerClientProcess process;
+        boolean admitted;
+
+        Parked(WebServerClientProcess p, boolean a) {
+            process = p;
+            admitted = a;
+        }
+    }
+
+    //a refused connection being drained and when it is closed regardless
+    private static class Refused {
+        SocketChannel channel;
+        long deadline;
+
+        Refused(SocketChannel cc, long d) {
+            channel = cc;
+            deadline = d;
+        }
+    }
+
+    //milli-seconds a refused connection is drained for at most, and how often the parker checks for the overdue ones
+    private static final long REFUSED_DRAIN = 500;
+    private static final long REFUSED_CHECK = 100;
+
+    //queue limits
+    private final int max_queued;
+    private final int max_queued_per_client;
+
+    //seconds refused clients are told to wait before retrying
+    private final int retry_after;
+
+    //waiting connections of each client and the clients with waiting connections in round robin order
+    private final HashMap<InetAddress, ArrayDeque<QueuedProcess>> client_queues;
+    private final ArrayDeque<InetAddress> client_turns;
+    private int queued;
+
+    //guards the queues (a lock rather than a monitor, so it is also safe to wait on from virtual threads)
+    private final ReentrantLock lock;
+    private final Condition not_empty;
+
+    private final Thread[] workers;
+    private volatile boolean shutdown;
+
+    //idle connections: the selector they are parked on until thier request arrives (refused connections are drained
+    //on it too), the connections handed over to it, the thread watching it, whether that thread is to stop once the
+    //refused connections are drained and whether it has stopped (connections handed over after that are closed where
+    //they are handed over)
+    private final Selector idle_selector;
+    private final ConcurrentLinkedQueue<Parked> parking;
+    private final ConcurrentLinkedQueue<Refused> refusing;
+    private final Thread parker;
+    private volatile boolean parker_stopping;
+    private volatile boolean parker_stopped;
+
+    //counters exposed for sizing the pool
+    private final AtomicLong accepted_count;
+    private final AtomicLong shed_count;
+    private final AtomicLong dequeued_count;
+    private final AtomicLong total_wait_nanos;
+    private final AtomicLong max_wait_nanos;
+    private volatile int max_queued_seen;
+    private final AtomicLong parked_count;
+
+    /**
+     * Constructor for WebServerWorkerPool, starts the worker threads
+     *
+     * @param worker_count      number of worker threads
+     * @param queue_depth       connections allowed to wait for a worker
+     * @param client_depth      connections allowed to wait for a worker from a single client ip
+     * @param retry             seconds the refused clients are told to wait before retrying
+     * @throws IOException if the selector for idle connections could not be opened
+     */
+    public WebServerWorkerPool(int worker_count, int queue_depth, int client_depth, int retry) throws IOException {
+        max_queued = queue_depth;
+        max_queued_per_client = Math.max(1, Math.min(client_depth, queue_depth));
+        retry_after = retry;
+        client_queues = new HashMap<InetAddress, ArrayDeque<QueuedProcess>>();
+        client_turns = new ArrayDeque<InetAddress>();
+        lock = new ReentrantLock();
+        not_empty = lock.newCondition();
+
+        accepted_count = new AtomicLong();
+        shed_count = new AtomicLong();
+        dequeued_count = new AtomicLong();
+        total_wait_nanos = new AtomicLong();
+        max_wait_nanos = new AtomicLong();
+        parked_count = new AtomicLong();
+
+        idle_selector = Selector.open();
+        parking = new ConcurrentLinkedQueue<Parked>();
+        refusing = new ConcurrentLinkedQueue<Refused>();
+        parker_stopping = false;
+        parker_stopped = false;
+
+        ThreadFactory threads = WebServerThreads.platformFactory("WebServerWorker");
+        workers = new Thread[worker_count];
+        for (int i = 0; i < worker_count; i++) {
+            workers[i] = threads.newThread(this::runWorker);
+            workers[i].start();
+        }
+        parker = threads.newThread(this::runParker);
+        parker.start();
+    }
+
+    /**
+     * Takes an accepted connection, it waits for its first request parked without a worker and is queued for one
+     * once the request arrives (so clients holding connections open without sending anything hold no worker)
+     *
+     * @param p     the client process of an accepted connection
+     * @return false if the queue is full and the connection must be shed
+     */
+    public boolean submit(WebServerClientProcess p) {
+        p.pooled(this);
+        lock.lock();
+        try {
+            if (shutdown || queued >= max_queued) {
+                shed_count.incrementAndGet();
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        hand(new Parked(p, false));
+        return true;
+    }
+
+    //adds a connection to its client's queue (the lock must be held)
+    private void enqueue(InetAddress client, WebServerClientProcess p) {
+        ArrayDeque<QueuedProcess> q = client_queues.get(client);
+        if (q == null) {
+            q = new ArrayDeque<QueuedProcess>();
+            client_queues.put(client, q);
+            client_turns.addLast(client);
+        }
+        q.addLast(new QueuedProcess(p));
+        queued++;
+        if (queued > max_queued_seen) {
+            max_queued_seen = queued;
+        }
+        not_empty.signal();
+    }
+
+    /**
+     * Parks an idle persistent connection until its next request starts arriving, its worker is free in the meantime
+     * (called by the worker that served its last request, once the process has let go of the connection)
+     *
+     * @param p     the client process of the connection
+     */
+    public void park(WebServerClientProcess p) {
+        hand(new Parked(p, true));
+    }
+
+    //hands a connection over to the parker
+    private void hand(Parked pk) {
+        parking.add(pk);
+        if (parker_stopped) {
+            closeParking();
+        } else {
+            idle_selector.wakeup();
+        }
+    }
+
+    /**
+     * Takes over a connection refused with 503 once the response is written and its output shut down,
+     * the request the client sent is read and dropped until the client closes its side (at most REFUSED_DRAIN)
+     * and only then is the connection closed, so the client is not reset before it has read the 503
+     *
+     * @param cc    the channel of the refused connection
+     */
+    public void drainRefused(SocketChannel cc) {
+        refusing.add(new Refused(cc, System.currentTimeMillis() + REFUSED_DRAIN));
+        if (parker_stopped) {
+            closeRefusing();
+        } else {
+            idle_selector.wakeup();
+        }
+    }
+
+    //queues a parked connection whose request has started arriving for the next free worker
+    //(a new connection is held to the queue limits here and refused with 503 over them, a persistent one was admitted already)
+    private void resume(Parked pk) {
+        WebServerClientProcess p = pk.process;
+        InetAddress client = p.get_cliSocket().getInetAddress();
+        boolean refuse = false;
+        lock.lock();
+        try {
+            if (!shutdown) {
+                ArrayDeque<QueuedProcess> q = client_queues.get(client);
+                if (pk.admitted) {
+                    enqueue(client, p);
+                    return;
+                }
+                if (queued < max_queued && (q == null || q.size() < max_queued_per_client)) {
+                    enqueue(client, p);
+                    accepted_count.incrementAndGet();
+                    return;
+                }
+                shed_count.incrementAndGet();
+                refuse = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (refuse) {
+            p.clientServiceUnavailable(retry_after);
+        } else {
+            p.closeParked();
+        }
+    }
+
+    //parker thread body, watches the parked connections for thier request and drains the refused ones
+    //(a parked connection is taken off the selector and back in blocking mode before a worker reads from it again)
+    private void runParker() {
+        ArrayDeque<Parked> ready = new ArrayDeque<Parked>();
+        ByteBuffer discard = ByteBuffer.allocate(4096);
+        int draining = 0;
+        boolean idle_closed = false;
+        try {
+            while (!parker_stopping || draining > 0 || !refusing.isEmpty()) {
+                idle_selector.select((draining > 0) ? REFUSED_CHECK : 0);
+
+                //on shutdown the parked connections are closed, the refused ones are still drained
+                if (shutdown && !idle_closed) {
+                    closeIdle();
+                    idle_closed = true;
+                }
+
+                Parked pk;
+                while ((pk = parking.poll()) != null) {
+                    if (shutdown) {
+                        pk.process.closeParked();
+                        continue;
+                    }
+                    try {
+                        SocketChannel cc = pk.process.get_cliSocket().getChannel();
+                        cc.configureBlocking(false);
+                        cc.register(idle_selector, SelectionKey.OP_READ, pk);
+                        parked_count.incrementAndGet();
+                    } catch (IOException e) {
+                        //connection closed in the meantime
+                        pk.process.closeParked();
+                    }
+                }
+                Refused r;
+                while ((r = refusing.poll()) != null) {
+                    try {
+                        r.channel.configureBlocking(false);
+                        r.channel.register(idle_selector, SelectionKey.OP_READ, r);
+                        draining++;
+                    } catch (IOException e) {
+                        close(r.channel);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = idle_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.attachment() instanceof Refused) {
+                        if (!drain((Refused) key.attachment(), discard)) {
+                            close(((Refused) key.attachment()).channel);
+                            draining--;
+                        }
+                        continue;
+                    }
+                    key.cancel();
+                    ready.add((Parked) key.attachment());
+                }
+                if (draining > 0) {
+                    draining -= closeOverdue();
+                }
+                if (ready.isEmpty()) {
+                    continue;
+                }
+                //deregister the cancelled keys (anything selected meanwhile is reported again by the next select)
+                idle_selector.selectNow();
+                idle_selector.selectedKeys().clear();
+                while ((pk = ready.poll()) != null) {
+                    parked_count.decrementAndGet();
+                    try {
+                        pk.process.get_cliSocket().getChannel().configureBlocking(true);
+                        resume(pk);
+                    } catch (IOException e) {
+                        pk.process.closeParked();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error: the worker pool selector for idle connections failed");
+            e.printStackTrace();
+        } finally {
+            //whatever is left is closed (the server is shutting down, or the selector failed)
+            for (SelectionKey key : idle_selector.keys()) {
+                if (key.attachment() instanceof Refused) {
+                    close(((Refused) key.attachment()).channel);
+                } else {
+                    ((Parked) key.attachment()).process.closeParked();
+                }
+            }
+            for (Parked pk : ready) {
+                pk.process.closeParked();
+            }
+            parked_count.set(0);
+            parker_stopped = true;
+            closeParking();
+            closeRefusing();
+            try {
+                idle_selector.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+    }
+
+    //reads and drops what a refused client has sent, false once it has closed its side (or the connection failed)
+    private boolean drain(Refused r, ByteBuffer discard) {
+        try {
+            int n;
+            do {
+                discard.clear();
+                n = r.channel.read(discard);
+            } while (n > 0);
+            return n == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //closes the refused connections whose drain deadline has passed, returns how many
+    private int closeOverdue() {
+        long now = System.currentTimeMillis();
+        int closed = 0;
+        for (SelectionKey key : idle_selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Refused && now >= ((Refused) key.attachment()).deadline) {
+                close(((Refused) key.attachment()).channel);
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    //closes the parked connections (on shutdown)
+    private void closeIdle() {
+        for (SelectionKey key : idle_selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Parked) {
+                key.cancel();
+                parked_count.decrementAndGet();
+                ((Parked) key.attachment()).process.closeParked();
+            }
+        }
+    }
+
+    //closes the connections handed over for parking that the parker will not pick up
+    private void closeParking() {
+        Parked pk;
+        while ((pk = parking.poll()) != null) {
+            pk.process.closeParked();
+        }
+    }
+
+    //closes the refused connections handed over that the parker will not pick up
+    private void closeRefusing() {
+        Refused r;
+        while ((r = refusing.poll()) != null) {
+            close(r.channel);
+        }
+    }
+
+    private static void close(SocketChannel cc) {
+        try {
+            cc.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+
+    //takes the next waiting connection, giving each client a turn in round robin order
+    private QueuedProcess take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued == 0) {
+                if (shutdown) {
+                    return null;
+                }
+                not_empty.await();
+            }
+            InetAddress client = client_turns.pollFirst();
+            ArrayDeque<QueuedProcess> q = client_queues.get(client);
+            QueuedProcess next = q.pollFirst();
+            if (q.isEmpty()) {
+                client_queues.remove(client);
+            } else {
+                client_turns.addLast(client);
+            }
+            queued--;
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //worker thread body
+    private void runWorker() {
+        try {
+            QueuedProcess next;
+            while ((next = take()) != null) {
+                long waited = System.nanoTime() - next.enqueue_time;
+                dequeued_count.incrementAndGet();
+                total_wait_nanos.addAndGet(waited);
+                max_wait_nanos.accumulateAndGet(waited, Math::max);
+                next.process.run();
+            }
+        } catch (InterruptedException e) {
+            // Ok, pool stopped
+        }
+    }
+
+    /**
+     * Stops the pool: connections still waiting for a worker are answered with 503, idle connections are closed,
+     * workers finish the connection they are serving and then exit
+     */
+    public void shutdown() {
+        ArrayDeque<QueuedProcess> refused = new ArrayDeque<QueuedProcess>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (ArrayDeque<QueuedProcess> q : client_queues.values()) {
+                refused.addAll(q);
+            }
+            client_queues.clear();
+            client_turns.clear();
+            queued = 0;
+            not_empty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        idle_selector.wakeup();
+        for (QueuedProcess qp : refused) {
+            qp.process.clientServiceUnavailable(retry_after);
+        }
+
+        //the parker stops once the refused connections are drained
+        parker_stopping = true;
+        idle_selector.wakeup();
+    }
+
+    /**
+     * Waits for every worker thread (and the thread watching the idle and refused connections) to exit
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        for (Thread w : workers) {
+            w.join();
+        }
+        parker.join();
+    }
+
+
+
+    //BASIC ACCESSOR FUNCTIONS (pool statistics)
+
+    //connections currently waiting for a worker
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //largest number of connections that were waiting at once
+    public int getMaxQueueDepth() {
+        return max_queued_seen;
+    }
+
+    //connections admitted to the queue
+    public long getAcceptedCount() {
+        return accepted_count.get();
+    }
+
+    //connections refused with 503
+    public long getShedCount() {
+        return shed_count.get();
+    }
+
+    //average and longest time a connection waited for a worker, in milli-seconds
+    public double getAverageQueueWaitMillis() {
+        long n = dequeued_count.get();
+        return (n == 0) ? 0 : total_wait_nanos.get() / (n * 1e6);
+    }
+
+    public double getMaxQueueWaitMillis() {
+        return max_wait_nanos.get() / 1e6;
+    }
+
+    //idle connections parked until thier first or next request, holding no worker
+    public long getParkedCount() {
+        return parked_count.get();
+    }
+
+    public String toString() {
+        return String.format("workers=%d queued=%d max_queued=%d accepted=%d shed=%d parked=%d avg_wait_ms=%.3f max_wait_ms=%.3f",
+            workers.length, getQueueDepth(), getMaxQueueDepth(), getAcceptedCount(), getShedCount(), getParkedCount(),
+            getAverageQueueWaitMillis(), getMaxQueueWaitMillis());
+    }
+}
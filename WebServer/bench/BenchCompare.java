@@ -0,0 +1,87 @@
+
+/**
+ * BenchCompare Class
+ * Compares two JSON result files written by BenchHarness (ie. the same suite run on two commits)
+ *
+ * Benchmarks are matched by name. For each the baseline and new scores are printed with the change,
+ * and changes for the worse beyond the threshold are flagged: a lower score is better for time modes
+ * (avgt, sample), a higher one for throughput (thrpt). Changes within the error reported for either
+ * run are marked as noise rather than flagged.
+ *
+ * Run from the WebServer directory:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out BenchCompare <baseline.json> <new.json> [threshold percent, default 5]
+ * Exits with status 1 if any benchmark regressed, so it can gate a script.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class BenchCompare {
+
+    private static final Pattern RESULT = Pattern.compile("\"benchmark\": \"([^\"]*)\", \"mode\": \"(\\w+)\", \"unit\": \"([^\"]*)\", \"score\": ([-0-9.eE]+)(?:, \"error\": ([-0-9.eE]+))?");
+    private static final Pattern COMMIT = Pattern.compile("\"commit\": \"([^\"]*)\"");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: BenchCompare <baseline.json> <new.json> [threshold percent]");
+            System.exit(2);
+        }
+        double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : 5;
+        Map<String, double[]> baseline = read(args[0]);
+        Map<String, double[]> current = read(args[1]);
+        System.out.println("baseline " + commit(args[0]) + ", new " + commit(args[1]));
+
+        int regressions = 0;
+        System.out.println(String.format("%-44s %14s %14s %9s", "benchmark", "baseline", "new", "change"));
+        for (Map.Entry<String, double[]> b : baseline.entrySet()) {
+            double[] n = current.get(b.getKey());
+            if (n == null) {
+                continue;
+            }
+            double base = b.getValue()[0];
+            double score = n[0];
+            double change = (base != 0) ? (score - base) / base * 100 : 0;
+            //thrpt results carry a 1 in the direction slot, higher is better for them
+            boolean higher_better = b.getValue()[2] > 0;
+            boolean worse = higher_better ? change < -threshold : change > threshold;
+            boolean noise = Math.abs(score - base) <= Math.max(b.getValue()[1], n[1]);
+            String verdict = "";
+            if (worse && !noise) {
+                verdict = "REGRESSION";
+                regressions++;
+            } else if (worse) {
+                verdict = "(noise)";
+            }
+            System.out.println(String.format("%-44s %14.3f %14.3f %+8.1f%% %s", b.getKey(), base, score, change, verdict));
+        }
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+        System.exit((regressions > 0) ? 1 : 0);
+    }
+
+    //reads the results of a file: score, error and whether higher scores are better, by benchmark name
+    private static Map<String, double[]> read(String file) throws IOException {
+        Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        for (String line : lines) {
+            Matcher m = RESULT.matcher(line);
+            if (m.find()) {
+                double error = (m.group(5) != null) ? Double.parseDouble(m.group(5)) : 0;
+                results.put(m.group(1), new double[] {Double.parseDouble(m.group(4)), error, m.group(2).equals("thrpt") ? 1 : 0});
+            }
+        }
+        return results;
+    }
+
+    private static String commit(String file) throws IOException {
+        Matcher m = COMMIT.matcher(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+        return m.find() ? m.group(1) : "unknown";
+    }
+}
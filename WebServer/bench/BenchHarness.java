@@ -0,0 +1,317 @@
+
+/**
+ * BenchHarness Class
+ * Warm-up-then-measure harness shared by the benchmark suites, writing thier results as JSON
+ *
+ * JMH is not available to this source tree (it has no build file), so this harness follows the JMH
+ * average-time mode as closely as plain Java allows: each benchmark runs for a number of timed warm-up
+ * iterations, then measured iterations; the score is the mean time per operation over the measured
+ * iterations with a 99.9% confidence error, and the heap bytes allocated per operation are read from the
+ * thread allocation counter of the HotSpot ThreadMXBean. Every benchmark runs in the same JVM (there are no forks),
+ * so run suites in a fresh JVM and compare like with like.
+ *
+ * Results are written as one JSON document per run: the run (suite, commit, date, JVM, cpus, settings)
+ * and one line per result, so runs from different commits can be compared with BenchCompare.
+ *
+ * Options, common to every suite:
+ *   -wi <n>       warm-up iterations (default 3)
+ *   -i <n>        measured iterations (default 5)
+ *   -t <ms>       length of each iteration (default 1000)
+ *   -b <text>     only run benchmarks whose name contains the text
+ *   -o <file>     JSON output file (default bench-<suite>.json)
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class BenchHarness {
+
+    /**
+     * Benchmark Interface
+     * A benchmark body, run a given number of operations at a time
+     */
+    public interface Benchmark {
+        /**
+         * Runs the operations
+         *
+         * @param ops   number of operations to run
+         * @return a value derived from the work, kept alive so the JIT cannot drop it
+         */
+        long run(int ops) throws Exception;
+    }
+
+    //operations per call are grown until a call takes about this long, so the timing overhead stays small
+    private static final long TARGET_CALL_NANOS = 1000*1000L;
+
+    //keeps the results alive so the JIT cannot drop the work
+    private static long sink;
+
+    private final String suite;
+    private final int warmup_iterations;
+    private final int iterations;
+    private final long iteration_nanos;
+    private final String filter;
+    private final String output;
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final List<Map<String, Object>> results;
+
+    /**
+     * Constructor for BenchHarness
+     *
+     * @param suite     name of the suite, used in the default output file name
+     * @param args      the command line, the harness options are read from it (others are left to the suite)
+     */
+    public BenchHarness(String suite, String[] args) {
+        this.suite = suite;
+        Map<String, String> params = options(args);
+        warmup_iterations = Integer.parseInt(params.getOrDefault("-wi", "3"));
+        iterations = Math.max(1, Integer.parseInt(params.getOrDefault("-i", "5")));
+        iteration_nanos = Long.parseLong(params.getOrDefault("-t", "1000")) * 1000 * 1000;
+        filter = params.getOrDefault("-b", "");
+        output = params.getOrDefault("-o", "bench-" + suite + ".json");
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        results = new ArrayList<Map<String, Object>>();
+    }
+
+    /**
+     * Reads "-name value" pairs from a command line
+     *
+     * @param args  the command line
+     * @return the values by option name
+     */
+    public static Map<String, String> options(String[] args) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            params.put(args[i], args[i + 1]);
+        }
+        return params;
+    }
+
+    /**
+     * Checks whether a benchmark was selected with -b
+     *
+     * @param name  the benchmark name
+     */
+    public boolean selected(String name) {
+        return name.contains(filter);
+    }
+
+    /**
+     * Runs a benchmark (if selected) and records its time and allocation per operation
+     *
+     * @param name  the benchmark name
+     * @param b     the benchmark body
+     * @throws Exception if the benchmark fails
+     */
+    public void run(String name, Benchmark b) throws Exception {
+        if (!selected(name)) {
+            return;
+        }
+        long tid = Thread.currentThread().getId();
+
+        //grow the operations per call until a call takes about TARGET_CALL_NANOS
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sink += b.run(ops);
+            long nanos = System.nanoTime() - start;
+            if (nanos >= TARGET_CALL_NANOS || ops >= (1 << 24)) {
+                break;
+            }
+            ops = (nanos < TARGET_CALL_NANOS / 16) ? ops * 8 : ops * 2;
+        }
+
+        for (int i = 0; i < warmup_iterations; i++) {
+            iteration(b, ops);
+        }
+        double[] scores = new double[iterations];
+        long allocated = threads.getThreadAllocatedBytes(tid);
+        long total_ops = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] timed = iteration(b, ops);
+            scores[i] = (double) timed[0] / timed[1];
+            total_ops += timed[1];
+        }
+        allocated = threads.getThreadAllocatedBytes(tid) - allocated;
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("benchmark", name);
+        result.put("mode", "avgt");
+        result.put("unit", "ns/op");
+        result.put("score", mean(scores));
+        result.put("error", error(scores));
+        result.put("alloc_bytes_per_op", (double) allocated / total_ops);
+        result.put("ops", total_ops);
+        result.put("iterations", scores);
+        add(result);
+    }
+
+    //runs calls of ops operations until the iteration time is up, returns the nanos taken and the operations run
+    private long[] iteration(Benchmark b, int ops) throws Exception {
+        long done = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += b.run(ops);
+            done += ops;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iteration_nanos);
+        return new long[] {elapsed, done};
+    }
+
+    /**
+     * Records a result measured by the suite itself (ie. a loopback load run), printed and written with the others
+     *
+     * @param result    the result fields, at least "benchmark", "mode", "unit" and "score"
+     */
+    public void add(Map<String, Object> result) {
+        results.add(result);
+        Number score = (Number) result.get("score");
+        Number error = (Number) result.get("error");
+        Number alloc = (Number) result.get("alloc_bytes_per_op");
+        StringBuilder line = new StringBuilder(String.format("%-44s %-6s %14.3f", result.get("benchmark"), result.get("mode"), score.doubleValue()));
+        line.append((error != null) ? String.format(" +- %10.3f", error.doubleValue()) : String.format("%14s", ""));
+        line.append(String.format(" %-8s", result.get("unit")));
+        if (alloc != null) {
+            line.append(String.format(" %12.1f B/op", alloc.doubleValue()));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Writes the results of the run to the JSON output file
+     *
+     * @param settings  suite specific settings recorded with the run (may be empty)
+     * @throws IOException if the file cannot be written
+     */
+    public void finish(Map<String, Object> settings) throws IOException {
+        Map<String, Object> run = new LinkedHashMap<String, Object>();
+        run.put("suite", suite);
+        run.put("commit", commit());
+        run.put("date", Instant.now().toString());
+        run.put("java", System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        run.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        run.put("cpus", Runtime.getRuntime().availableProcessors());
+        run.put("warmup_iterations", warmup_iterations);
+        run.put("iterations", iterations);
+        run.put("iteration_ms", iteration_nanos / 1000000);
+        run.putAll(settings);
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"run\": " + json(run) + ",");
+            out.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                out.println("    " + json(results.get(i)) + ((i + 1 < results.size()) ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+        System.out.println("results written to " + output + " (" + sink % 2 + ")");
+    }
+
+    //mean of the iteration scores
+    private static double mean(double[] scores) {
+        double sum = 0;
+        for (double s : scores) {
+            sum += s;
+        }
+        return sum / scores.length;
+    }
+
+    //half width of the 99.9% confidence interval of the mean (normal approximation), 0 for a single iteration
+    private static double error(double[] scores) {
+        if (scores.length < 2) {
+            return 0;
+        }
+        double m = mean(scores);
+        double squares = 0;
+        for (double s : scores) {
+            squares += (s - m) * (s - m);
+        }
+        return 3.291 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length);
+    }
+
+    //the commit the run was built from, from -Dbench.commit or git, "unknown" if neither is available
+    private static String commit() {
+        String commit = System.getProperty("bench.commit");
+        if (commit != null) {
+            return commit;
+        }
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(git.getInputStream(), StandardCharsets.UTF_8))) {
+                String line = in.readLine();
+                if (git.waitFor() == 0 && line != null) {
+                    return line.trim();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Ok, ignore
+        }
+        return "unknown";
+    }
+
+    /**
+     * Formats a value as JSON (maps, numbers, double arrays, booleans and strings)
+     *
+     * @param value     the value
+     * @return the JSON text, on one line
+     */
+    public static String json(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof Map) {
+            StringBuilder s = new StringBuilder("{");
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (s.length() > 1) {
+                    s.append(", ");
+                }
+                s.append(json(e.getKey().toString())).append(": ").append(json(e.getValue()));
+            }
+            return s.append("}").toString();
+        }
+        if (value instanceof double[]) {
+            StringBuilder s = new StringBuilder("[");
+            for (double d : (double[]) value) {
+                if (s.length() > 1) {
+                    s.append(", ");
+                }
+                s.append(json(d));
+            }
+            return s.append("]").toString();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return (Double.isNaN(d) || Double.isInfinite(d)) ? "null" : String.format(Locale.ROOT, "%.4f", d);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        StringBuilder s = new StringBuilder("\"");
+        for (char c : value.toString().toCharArray()) {
+            if (c == '"' || c == '\\') {
+                s.append('\\').append(c);
+            } else if (c < ' ') {
+                s.append(String.format("\\u%04x", (int) c));
+            } else {
+                s.append(c);
+            }
+        }
+        return s.append('"').toString();
+    }
+}
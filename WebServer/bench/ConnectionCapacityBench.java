@@ -0,0 +1,148 @@
+
+/**
+ * ConnectionCapacityBench Class
+ * Measures how many idle and active connections a WebServer holds within the same heap under each server mode
+ *
+ * The benchmark starts a WebServer on the loopback interface and opens connections to it until the target
+ * count is reached or the server/JVM runs out of resources, then reports heap use, live threads and resident memory:
+ *  idle    - connections that have not sent a request (server waits on the request read)
+ *  active  - connections that requested a large object and do not read it (server waits on the response write
+ *            once the socket buffers are full)
+ *
+ * Run from the WebServer directory (objects are served from user.dir), with the same heap for every mode:
+ *   javac -d out *.java bench/*.java
+ *   java -Xmx256m -cp out ConnectionCapacityBench thread 5000
+ *   java -Xmx256m -cp out ConnectionCapacityBench virtual 5000
+ *   java -Xmx256m -cp out ConnectionCapacityBench pool 5000
+ *   java -Xmx256m -cp out ConnectionCapacityBench nio 5000
+ * Client and server sockets share the process, so the open file limit (ulimit -n) must be above twice the target.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+public class ConnectionCapacityBench {
+
+    //object requested by active connections, large enough not to fit in the socket buffers
+    private static final String ACTIVE_OBJECT = "/simpleFile.pdf";
+
+    //time given to the server to pick up newly opened connections before measuring
+    private static final int SETTLE_TIME = 2000;
+
+    public static void main(String[] args) throws Exception {
+        String mode = (args.length > 0) ? args[0] : WebServer.MODE_THREAD;
+        int target = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+        int port = (args.length > 2) ? Integer.parseInt(args[2]) : 2026;
+
+        if (mode.equals(WebServer.MODE_VIRTUAL) && !WebServerThreads.virtualThreadsAvailable()) {
+            System.out.println("virtual mode requires Java 21 or newer, skipping");
+            return;
+        }
+
+        //the server reports every connection on standard output (and aborted responses on standard error), keep that out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        WebServerConfig config = new WebServerConfig(0);
+        config.mode = mode;
+        WebServer server = new WebServer(port, config);
+        server.start();
+        InetSocketAddress srv_addr = new InetSocketAddress(InetAddress.getLocalHost(), port);
+
+        console.println("mode " + mode + ", target " + target + " connections, max heap " + (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+        console.println(String.format("%-8s %12s %14s %10s %12s", "phase", "connections", "heap used MB", "threads", "rss MB"));
+        report(console, "baseline", 0);
+
+        //idle phase, connect without sending anything
+        ArrayList<Socket> clients = new ArrayList<Socket>();
+        try {
+            while (clients.size() < target) {
+                Socket s = new Socket();
+                s.connect(srv_addr, 10000);
+                clients.add(s);
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            console.println("stopped opening connections at " + clients.size() + ": " + e);
+        }
+        Thread.sleep(SETTLE_TIME);
+        report(console, "idle", countOpen(clients));
+
+        //active phase, every connection requests a large object and never reads the response
+        byte[] request = ("GET " + ACTIVE_OBJECT + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        for (Socket s : clients) {
+            try {
+                s.getOutputStream().write(request);
+            } catch (IOException e) {
+                // Ok, counted as closed below
+            }
+        }
+        Thread.sleep(SETTLE_TIME);
+        report(console, "active", countOpen(clients));
+
+        //clean up
+        for (Socket s : clients) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+        server.shutdown();
+        server.join(10000);
+        System.setOut(console);
+        System.exit(0);
+    }
+
+    //prints heap use after a collection, live threads and resident memory of the process
+    private static void report(PrintStream out, String phase, int connections) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapUsed = memory.getHeapMemoryUsage().getUsed();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        out.println(String.format("%-8s %12d %14.1f %10d %12s", phase, connections, heapUsed / 1048576.0, threads, residentMemory()));
+    }
+
+    //counts the connections the server has not closed (a closed connection reads end of stream)
+    private static int countOpen(ArrayList<Socket> clients) {
+        int open = 0;
+        for (Socket s : clients) {
+            try {
+                s.setSoTimeout(1);
+                if (s.getInputStream().read() != -1) {
+                    open++;
+                }
+            } catch (java.net.SocketTimeoutException e) {
+                open++;
+            } catch (IOException e) {
+                // Ok, closed
+            }
+        }
+        return open;
+    }
+
+    //resident set size of the process, which includes the platform thread stacks the heap figure misses
+    private static String residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    long kb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    return String.format("%.1f", kb / 1024.0);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Ok, not on linux
+        }
+        return "n/a";
+    }
+}
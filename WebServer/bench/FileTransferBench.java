@@ -0,0 +1,131 @@
+
+/**
+ * FileTransferBench Class
+ * Compares the throughput of the buffered copy and the zero-copy (FileChannel.transferTo) object paths
+ * of WebServerClientProcess on large files
+ *
+ * For every file size the benchmark starts a loopback WebServer in thread mode twice, once with the
+ * sendfile threshold above the file size (buffered copy through the 32 KB read buffer) and once with it at 0
+ * (transferTo), and downloads the file repeatedly over one persistent connection.
+ *
+ * Run from the WebServer directory (the test files are created there and removed afterwards):
+ *   javac -d out *.java bench/*.java
+ *   java -cp out FileTransferBench [sizes in MB, default 4,32,128] [downloads per run, default 10]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class FileTransferBench {
+
+    private static final int PORT = 2027;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = ((args.length > 0) ? args[0] : "4,32,128").split(",");
+        int downloads = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        //the server reports every request on standard output, keep that out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.println(String.format("%-10s %-10s %12s %12s", "size MB", "path", "MB/s", "ms/object"));
+        for (String size : sizes) {
+            long bytes = Long.parseLong(size.trim()) * 1024 * 1024;
+            File obj = createObject(bytes);
+            try {
+                for (String path : new String[] {"buffered", "zerocopy"}) {
+                    WebServerConfig config = new WebServerConfig(0);
+                    config.maxRequests = Integer.MAX_VALUE;
+                    config.sendfileThreshold = path.equals("zerocopy") ? 0 : Long.MAX_VALUE;
+                    config.cacheBytes = 0;
+                    WebServer server = new WebServer(PORT, config);
+                    server.start();
+
+                    //one warm-up download, then the measured ones
+                    download(obj.getName(), 1);
+                    long start = System.nanoTime();
+                    long total = download(obj.getName(), downloads);
+                    double secs = (System.nanoTime() - start) / 1e9;
+                    console.println(String.format("%-10s %-10s %12.1f %12.2f", size.trim(), path, total / 1048576.0 / secs, secs * 1000 / downloads));
+
+                    server.shutdown();
+                    server.join();
+                }
+            } finally {
+                obj.delete();
+            }
+        }
+        System.setOut(console);
+        System.exit(0);
+    }
+
+    //writes a file of random bytes of the given size into the served directory
+    private static File createObject(long bytes) throws IOException {
+        File obj = new File(System.getProperty("user.dir"), "bench_object_" + bytes + ".bin");
+        obj.deleteOnExit();
+        byte[] chunk = new byte[1024*1024];
+        new Random(1).nextBytes(chunk);
+        try (RandomAccessFile out = new RandomAccessFile(obj, "rw")) {
+            for (long written = 0; written < bytes; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, bytes - written));
+            }
+        }
+        return obj;
+    }
+
+    //downloads the object n times over one persistent connection and returns the number of body bytes recieved
+    private static long download(String name, int n) throws IOException {
+        long total = 0;
+        try (SocketChannel chan = SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), PORT))) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(256*1024);
+            byte[] request = ("GET /" + name + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < n; i++) {
+                chan.write(ByteBuffer.wrap(request));
+                total += readResponse(chan, buf);
+            }
+        }
+        return total;
+    }
+
+    //reads one response, returns its body length
+    private static long readResponse(SocketChannel chan, ByteBuffer buf) throws IOException {
+        //read until the end of the response head
+        StringBuilder head = new StringBuilder();
+        buf.clear();
+        while (head.indexOf("\r\n\r\n") < 0) {
+            buf.clear();
+            buf.limit(1);
+            if (chan.read(buf) == -1) {
+                throw new IOException("connection closed in response head");
+            }
+            head.append((char) buf.get(0));
+        }
+        String h = head.toString();
+        int at = h.indexOf("Content-Length: ") + "Content-Length: ".length();
+        long length = Long.parseLong(h.substring(at, h.indexOf("\r\n", at)));
+
+        //drain the body
+        long remaining = length;
+        while (remaining > 0) {
+            buf.clear();
+            if (remaining < buf.capacity()) {
+                buf.limit((int) remaining);
+            }
+            int r = chan.read(buf);
+            if (r == -1) {
+                throw new IOException("connection closed in response body");
+            }
+            remaining -= r;
+        }
+        return length;
+    }
+}
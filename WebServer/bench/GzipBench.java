@@ -0,0 +1,98 @@
+
+/**
+ * GzipBench Class
+ * Measures what gzip encoding costs in CPU against the bytes it saves on the wire, per deflate level
+ *
+ * Each object is compressed with WebServerGzip.compress (the same call the content cache makes for a gzip variant).
+ * Reported per object and level: compressed size, ratio, time per compression, throughput and the CPU time
+ * spent per KB saved. The content cache pays this once per version of an object, a precompressed .gz sibling
+ * not at all; without the cache it would be paid on every response.
+ * JMH is not available to this source tree, so this is a plain warm-up-then-measure harness.
+ *
+ * Run from the WebServer directory:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out GzipBench [files...] (default: index.html simpleText.txt and generated html and json bodies)
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class GzipBench {
+
+    //keeps the results alive so the JIT cannot drop the work
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, byte[]> objects = new LinkedHashMap<String, byte[]>();
+        if (args.length > 0) {
+            for (String name : args) {
+                objects.put(name, Files.readAllBytes(Paths.get(name)));
+            }
+        } else {
+            objects.put("index.html", Files.readAllBytes(Paths.get("index.html")));
+            objects.put("simpleText.txt", Files.readAllBytes(Paths.get("simpleText.txt")));
+            objects.put("page-64k.html", generatedHtml(64*1024));
+            objects.put("api-256k.json", generatedJson(256*1024));
+        }
+
+        System.out.println(String.format("%-16s %5s %10s %10s %7s %12s %10s %14s",
+            "object", "level", "bytes", "gzip", "ratio", "us/compress", "MB/s", "us/KB saved"));
+        for (Map.Entry<String, byte[]> object : objects.entrySet()) {
+            ByteBuffer body = ByteBuffer.wrap(object.getValue());
+            int length = object.getValue().length;
+            for (int level : new int[] {1, 6, 9}) {
+                //enough rounds for about 64 MB of input, warmed up first
+                int n = Math.max(20, (64*1024*1024) / Math.max(1, length));
+                run(body, level, n);
+                long start = System.nanoTime();
+                int compressed = run(body, level, n);
+                long nanos = System.nanoTime() - start;
+
+                double us = nanos / 1000.0 / n;
+                double saved_kb = (length - compressed) / 1024.0;
+                System.out.println(String.format("%-16s %5d %10d %10d %7.2f %12.1f %10.1f %14s",
+                    object.getKey(), level, length, compressed, (double) compressed / length, us,
+                    (double) length * n / 1e6 / (nanos / 1e9),
+                    (saved_kb > 0) ? String.format("%.2f", us / saved_kb) : "-"));
+            }
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    //compresses the body n times, returns the compressed length
+    private static int run(ByteBuffer body, int level, int n) throws IOException {
+        int compressed = 0;
+        for (int i = 0; i < n; i++) {
+            compressed = WebServerGzip.compress(body, level).length;
+            sink += compressed;
+        }
+        return compressed;
+    }
+
+    //a page of repetitive markup, like a generated listing
+    private static byte[] generatedHtml(int size) {
+        StringBuilder page = new StringBuilder("<!DOCTYPE html>\n<html><head><title>listing</title></head><body><table>\n");
+        for (int row = 0; page.length() < size; row++) {
+            page.append("<tr class=\"row\"><td>").append(row).append("</td><td><a href=\"/files/object-").append(row * 7919 % 100003)
+                .append(".txt\">object-").append(row).append("</a></td><td>").append(row * 131 % 65536).append(" bytes</td></tr>\n");
+        }
+        page.append("</table></body></html>\n");
+        return page.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    //an array of json records, like an api response
+    private static byte[] generatedJson(int size) {
+        StringBuilder json = new StringBuilder("[");
+        for (int id = 0; json.length() < size; id++) {
+            json.append(id > 0 ? "," : "").append("{\"id\":").append(id).append(",\"name\":\"user").append(id * 2654435761L % 1000000)
+                .append("\",\"active\":").append(id % 3 == 0).append(",\"score\":").append(id * 37 % 1000).append("}");
+        }
+        json.append("]");
+        return json.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,320 @@
+
+/**
+ * HotPathBench Class
+ * Microbenchmarks of the request/response hot path of WebServerClientProcess, without a network
+ *
+ *  parse.*         - a request head read in bulk from an in-memory stream and parsed in place (as readClientGET does),
+ *                    and the header lookups made while serving it (content encoding, conditional request)
+ *  headers.*       - response heads: 200 Ok from cached object headers, 200 Ok with the object headers built per request
+ *                    (uncached objects), and a 404
+ *  resolve.*       - object-path to file: resolving the path, then the file metadata and content type lookups,
+ *                    made on disk or answered by the file index, and a missing object looked for on disk or
+ *                    answered by the negative cache
+ *  copy.*          - object file to socket: the buffered copy through the 32 KB read buffer and FileChannel.transferTo,
+ *                    into in-memory stand-ins for the socket stream and channel (transferTo to a channel that is not
+ *                    a socket cannot use sendfile, so the two show the user space cost only)
+ *  connection.*    - a whole WebServerClientProcess serving pipelined requests for index.html over an in-memory socket,
+ *                    with and without the content cache
+ *
+ * Run from the WebServer directory (objects are resolved against user.dir):
+ *   javac -d out *.java bench/*.java
+ *   java -cp out HotPathBench [BenchHarness options] (ie. -b copy -i 10)
+ * Results are written to bench-hotpath.json unless -o is given.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+
+public class HotPathBench {
+
+    //a typical browser request head
+    private static final byte[] REQUEST = (
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: localhost:2025\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+        "Accept-Language: en-CA,en-US;q=0.7,en;q=0.3\r\n" +
+        "Accept-Encoding: gzip, deflate, br\r\n" +
+        "If-None-Match: \"18e2a6c1f40-1d9\"\r\n" +
+        "Connection: keep-alive\r\n" +
+        "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    //requests a connection benchmark sends per connection
+    private static final int PIPELINE = 256;
+
+    public static void main(String[] args) throws Exception {
+        BenchHarness harness = new BenchHarness("hotpath", args);
+
+        //parsing
+        byte[] buffer = new byte[WebServerHttp.MAX_REQUEST_HEAD];
+        WebServerRequestParser parser = new WebServerRequestParser();
+        ByteArrayInputStream request_in = new ByteArrayInputStream(REQUEST);
+        harness.run("parse.request", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                request_in.reset();
+                int end = request_in.read(buffer, 0, buffer.length);
+                parser.reset();
+                if (parser.parse(buffer, 0, end) != WebServerRequestParser.COMPLETE || !WebServerHttp.isValidGET(parser)) {
+                    throw new IllegalStateException("request not parsed");
+                }
+                r += parser.getHeadEnd();
+            }
+            return r;
+        });
+        harness.run("parse.negotiate", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                r += WebServerHttp.acceptsGzip(parser) ? 1 : 0;
+                r += WebServerHttp.notModified(parser, "\"18e2a6c1f40-1d9\"", 0) ? 1 : 0;
+                r += parser.keepAliveRequested() ? 1 : 0;
+            }
+            return r;
+        });
+
+        //header generation
+        File index = new File(System.getProperty("user.dir"), "index.html");
+        long mtime = index.lastModified();
+        long length = index.length();
+        byte[] cached_headers = WebServerHttp.objectHeaders("text/html", null, WebServerHttp.validatorHeaders(mtime, WebServerHttp.etag(mtime, length)), length);
+        WebServerResponseHead head = new WebServerResponseHead();
+        harness.run("headers.ok.cached", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                r += WebServerHttp.okResponseHead(head, cached_headers, true).length();
+            }
+            return r;
+        });
+        harness.run("headers.ok.built", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                byte[] validators = WebServerHttp.validatorHeaders(mtime, WebServerHttp.etag(mtime, length));
+                r += WebServerHttp.okResponseHead(head, WebServerHttp.objectHeaders("text/html", null, validators, length), true).length();
+            }
+            return r;
+        });
+        harness.run("headers.404", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                r += WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_404, true).length();
+            }
+            return r;
+        });
+
+        //path resolution
+        harness.run("resolve.path", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                r += WebServerHttp.resolveObject("/index.html").getPath().length();
+            }
+            return r;
+        });
+        harness.run("resolve.stat", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                File f = WebServerHttp.resolveObject("/index.html");
+                if (f.exists()) {
+                    r += f.lastModified() + f.length();
+                }
+            }
+            return r;
+        });
+        harness.run("resolve.contentType", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                r += WebServerHttp.contentType(WebServerHttp.resolveObject("/index.html")).length();
+            }
+            return r;
+        });
+        if (harness.selected("resolve.index")) {
+            WebServerFileIndex file_index = new WebServerFileIndex(System.getProperty("user.dir"), new WebServerConfig(0).indexEntries);
+            harness.run("resolve.index", ops -> {
+                long r = 0;
+                for (int i = 0; i < ops; i++) {
+                    WebServerFileIndex.Entry e = file_index.lookup(WebServerHttp.resolveObject("/index.html").getPath());
+                    if (e != null) {
+                        r += e.getLastModified() + e.getLength() + e.getContentType().length();
+                    }
+                }
+                return r;
+            });
+            file_index.stop();
+        }
+        harness.run("resolve.missing.stat", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                if (!WebServerHttp.resolveObject("/no/such/object.html").exists()) {
+                    r++;
+                }
+            }
+            return r;
+        });
+        WebServerNegativeCache negative_cache = new WebServerNegativeCache(new WebServerConfig(0).negativeEntries, null);
+        harness.run("resolve.missing.negative", ops -> {
+            long r = 0;
+            for (int i = 0; i < ops; i++) {
+                String path = WebServerHttp.resolveObject("/no/such/object.html").getPath();
+                if (negative_cache.isMissing(path)) {
+                    r++;
+                } else {
+                    long generation = negative_cache.getGeneration();
+                    if (!new File(path).exists()) {
+                        negative_cache.add(path, generation);
+                    }
+                }
+            }
+            return r;
+        });
+
+        //file to socket copying
+        for (int size : new int[] {4*1024, 256*1024, 4*1024*1024}) {
+            if (!harness.selected("copy.")) {
+                break;
+            }
+            File obj = createObject(size);
+            try {
+                CountingOutputStream sock_out = new CountingOutputStream();
+                byte[] read_buffer = new byte[32*1024];
+                harness.run("copy.buffered." + (size / 1024) + "k", ops -> {
+                    for (int i = 0; i < ops; i++) {
+                        try (FileInputStream in = new FileInputStream(obj)) {
+                            int n;
+                            while ((n = in.read(read_buffer)) > 0) {
+                                sock_out.write(read_buffer, 0, n);
+                            }
+                        }
+                    }
+                    return sock_out.count;
+                });
+                CountingChannel sock_chan = new CountingChannel();
+                harness.run("copy.transferTo." + (size / 1024) + "k", ops -> {
+                    for (int i = 0; i < ops; i++) {
+                        try (FileInputStream in = new FileInputStream(obj)) {
+                            FileChannel chan = in.getChannel();
+                            long position = 0;
+                            while (position < size) {
+                                position += chan.transferTo(position, size - position, sock_chan);
+                            }
+                        }
+                    }
+                    return sock_chan.count;
+                });
+            } finally {
+                obj.delete();
+            }
+        }
+
+        //whole connections over an in-memory socket, one operation is one request
+        byte[] pipelined = new byte[REQUEST.length * PIPELINE];
+        for (int i = 0; i < PIPELINE; i++) {
+            System.arraycopy(REQUEST, 0, pipelined, i * REQUEST.length, REQUEST.length);
+        }
+        WebServerConfig config = new WebServerConfig(0);
+        config.maxRequests = Integer.MAX_VALUE;
+        config.gzipLevel = 0;
+        WebServerContentCache cache = new WebServerContentCache(config.cacheBytes, config.cacheMaxEntry, 0, new WebServerHeapStore(), null);
+        for (String variant : new String[] {"cached", "uncached"}) {
+            WebServerContentCache c = variant.equals("cached") ? cache : null;
+            harness.run("connection." + variant, ops -> {
+                long r = 0;
+                for (int done = 0; done < ops; done += PIPELINE) {
+                    int n = Math.min(PIPELINE, ops - done);
+                    MemorySocket sock = new MemorySocket(new ByteArrayInputStream(pipelined, 0, n * REQUEST.length));
+                    new WebServerClientProcess(Thread.currentThread(), sock, config, c, null, null, null, null, null).run();
+                    r += sock.out.count;
+                }
+                return r;
+            });
+        }
+
+        harness.finish(Collections.<String, Object>emptyMap());
+    }
+
+    //writes a file of random bytes of the given size into the temp directory
+    private static File createObject(int bytes) throws IOException {
+        File obj = File.createTempFile("bench_object_", ".bin");
+        obj.deleteOnExit();
+        byte[] content = new byte[bytes];
+        new Random(1).nextBytes(content);
+        try (RandomAccessFile out = new RandomAccessFile(obj, "rw")) {
+            out.write(content);
+        }
+        return obj;
+    }
+
+    //stand-in for the client socket output stream, counts the bytes written
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    //stand-in for the client socket channel, consumes and counts the bytes written
+    private static class CountingChannel implements WritableByteChannel {
+        long count;
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            count += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    //stand-in for an accepted client socket: requests come from memory and responses are counted
+    //(it has no channel, so objects are always sent through the read buffer)
+    private static class MemorySocket extends Socket {
+        final InputStream in;
+        final CountingOutputStream out;
+
+        MemorySocket(InputStream i) {
+            in = i;
+            out = new CountingOutputStream();
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        public int getPort() {
+            return 40000;
+        }
+
+        public void setSoTimeout(int timeout) {
+        }
+    }
+}
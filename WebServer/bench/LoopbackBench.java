@@ -0,0 +1,201 @@
+
+/**
+ * LoopbackBench Class
+ * Macro benchmark of a whole WebServer under concurrent keep-alive load on the loopback interface
+ *
+ * For each server mode the benchmark starts a WebServer in the same JVM, then the client connections
+ * each send requests back to back (closed loop: a new request as soon as the previous response is read),
+ * cycling through the object paths. After a warm-up period the requests completed and the latency of each
+ * (request written to response fully read) are recorded for the measured period. Connections closed by the
+ * server (at its persistent connection limit) are reopened, the reconnect is part of the next request's latency.
+ * Client and server share the machine, so the numbers compare commits and modes, not absolute capacity.
+ *
+ * Run from the WebServer directory (objects are served from user.dir):
+ *   javac -d out *.java bench/*.java
+ *   java -cp out LoopbackBench [-m thread,pool,nio] [-c connections] [-d seconds] [-w warm-up seconds]
+ *                              [-paths /index.html,/simplePic.jpg] [BenchHarness -o option]
+ * Results are written to bench-loopback.json unless -o is given.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoopbackBench {
+
+    private static final int PORT = 2028;
+
+    //set while the measured period runs
+    private static volatile boolean measuring;
+    private static volatile boolean stopping;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = BenchHarness.options(args);
+        String[] modes = params.getOrDefault("-m", "thread,pool,nio").split(",");
+        int connections = Integer.parseInt(params.getOrDefault("-c", "16"));
+        int seconds = Integer.parseInt(params.getOrDefault("-d", "10"));
+        int warmup = Integer.parseInt(params.getOrDefault("-w", "2"));
+        String[] paths = params.getOrDefault("-paths", "/index.html,/simplePic.jpg,/simpleText.txt").split(",");
+        BenchHarness harness = new BenchHarness("loopback", args);
+
+        PrintStream console = System.out;
+        for (String mode : modes) {
+            //the server reports on standard output, keep that out of the measurement
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            WebServerConfig config = new WebServerConfig(0);
+            config.mode = mode;
+            WebServer server = new WebServer(PORT, config);
+            server.start();
+
+            WebServerHistogram latency = new WebServerHistogram(connections);
+            AtomicLong completed = new AtomicLong();
+            AtomicLong bytes = new AtomicLong();
+            AtomicLong errors = new AtomicLong();
+            measuring = false;
+            stopping = false;
+            Thread[] clients = new Thread[connections];
+            for (int i = 0; i < connections; i++) {
+                int first = i;
+                clients[i] = new Thread(() -> client(paths, first, latency, completed, bytes, errors), "LoopbackBenchClient-" + i);
+                clients[i].start();
+            }
+
+            Thread.sleep(warmup * 1000L);
+            measuring = true;
+            long start = System.nanoTime();
+            Thread.sleep(seconds * 1000L);
+            measuring = false;
+            double secs = (System.nanoTime() - start) / 1e9;
+            stopping = true;
+            for (Thread client : clients) {
+                client.join();
+            }
+            server.shutdown();
+            server.join();
+            System.setOut(console);
+
+            WebServerHistogram.Snapshot s = latency.snapshot();
+            Map<String, Object> throughput = result("loopback." + mode + ".throughput", "thrpt", "req/s", completed.get() / secs);
+            throughput.put("requests", completed.get());
+            throughput.put("mb_per_s", bytes.get() / 1048576.0 / secs);
+            throughput.put("errors", errors.get());
+            harness.add(throughput);
+            harness.add(result("loopback." + mode + ".latency.mean", "sample", "us", (s.getCount() > 0) ? (double) s.getSum() / s.getCount() : 0));
+            harness.add(result("loopback." + mode + ".latency.p50", "sample", "us", s.quantile(0.5)));
+            harness.add(result("loopback." + mode + ".latency.p99", "sample", "us", s.quantile(0.99)));
+            harness.add(result("loopback." + mode + ".latency.p999", "sample", "us", s.quantile(0.999)));
+        }
+
+        Map<String, Object> settings = new LinkedHashMap<String, Object>();
+        settings.put("connections", connections);
+        settings.put("seconds", seconds);
+        settings.put("warmup_seconds", warmup);
+        settings.put("paths", String.join(",", paths));
+        harness.finish(settings);
+        System.exit(0);
+    }
+
+    private static Map<String, Object> result(String name, String mode, String unit, double score) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("benchmark", name);
+        result.put("mode", mode);
+        result.put("unit", unit);
+        result.put("score", score);
+        return result;
+    }
+
+    //one client connection sending requests back to back until the run stops
+    private static void client(String[] paths, int first, WebServerHistogram latency, AtomicLong completed, AtomicLong bytes, AtomicLong errors) {
+        Socket sock = null;
+        InputStream in = null;
+        OutputStream out = null;
+        for (int i = first; !stopping; i++) {
+            byte[] request = ("GET " + paths[i % paths.length] + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            long start = System.nanoTime();
+            try {
+                if (sock == null) {
+                    sock = new Socket(InetAddress.getLocalHost(), PORT);
+                    sock.setTcpNoDelay(true);
+                    in = new BufferedInputStream(sock.getInputStream(), 64*1024);
+                    out = sock.getOutputStream();
+                }
+                out.write(request);
+                long[] response = readResponse(in);
+                if (measuring) {
+                    latency.record((System.nanoTime() - start) / 1000);
+                    completed.incrementAndGet();
+                    bytes.addAndGet(response[0]);
+                }
+                if (response[1] != 0) {
+                    sock.close();
+                    sock = null;
+                }
+            } catch (IOException e) {
+                if (measuring) {
+                    errors.incrementAndGet();
+                }
+                try {
+                    if (sock != null) {
+                        sock.close();
+                    }
+                } catch (IOException ce) {
+                    // Ok, ignore
+                }
+                sock = null;
+            }
+        }
+        try {
+            if (sock != null) {
+                sock.close();
+            }
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+
+    //reads one response, returns its body length and 1 if the server is closing the connection (else 0)
+    private static long[] readResponse(InputStream in) throws IOException {
+        long length = 0;
+        long close = 0;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("connection closed in response head");
+            }
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            String l = line.toString().trim().toLowerCase();
+            line.setLength(0);
+            if (l.isEmpty()) {
+                break;
+            }
+            if (l.startsWith("content-length:")) {
+                length = Long.parseLong(l.substring(15).trim());
+            } else if (l.equals("connection: close")) {
+                close = 1;
+            }
+        }
+        for (long remaining = length; remaining > 0; ) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("connection closed in response body");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return new long[] {length, close};
+    }
+}
@@ -0,0 +1,145 @@
+
+/**
+ * RequestParserBench Class
+ * Compares the cost of reading and parsing a request head three ways:
+ *  perbyte  - the original WebServerClientProcess loop: one read() per byte, the request and the end detector
+ *             grown by String concatenation, then split() on the request line and headers
+ *  split    - bulk read into a buffer, the head copied into a String, then split() on the request line and headers
+ *  parser   - bulk read into a buffer parsed in place by WebServerRequestParser (offsets, no copies)
+ *
+ * Each variant reads from an in-memory stream so only the parsing work is measured (on a real socket the
+ * perbyte variant also pays one system call per byte). Reported per request: time and heap bytes allocated
+ * (measured with the thread allocation counter of the HotSpot ThreadMXBean).
+ *
+ * JMH is not available to this source tree (it has no build file), so this is a plain warm-up-then-measure harness.
+ *
+ * Run from the WebServer directory:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out RequestParserBench [requests per round, default 200000]
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+public class RequestParserBench {
+
+    //a typical browser request head
+    private static final byte[] REQUEST = (
+        "GET /images/simplePic.jpg HTTP/1.1\r\n" +
+        "Host: localhost:2025\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+        "Accept: image/avif,image/webp,image/png,image/svg+xml,image/*;q=0.8,*/*;q=0.5\r\n" +
+        "Accept-Language: en-CA,en-US;q=0.7,en;q=0.3\r\n" +
+        "Accept-Encoding: gzip, deflate, br\r\n" +
+        "Referer: http://localhost:2025/index.html\r\n" +
+        "Connection: keep-alive\r\n" +
+        "Cache-Control: no-cache\r\n" +
+        "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    //keeps the results alive so the JIT cannot drop the work
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        System.out.println(String.format("%-10s %12s %14s", "variant", "ns/request", "bytes/request"));
+        for (String variant : new String[] {"perbyte", "split", "parser"}) {
+            //warm up, then measure
+            run(variant, n);
+            long bytes = threads.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+            run(variant, n);
+            long nanos = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(tid) - bytes;
+            System.out.println(String.format("%-10s %12.1f %14.1f", variant, (double) nanos / n, (double) bytes / n));
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    //reads and parses the request n times with the given variant
+    private static void run(String variant, int n) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(REQUEST);
+        byte[] buffer = new byte[WebServerHttp.MAX_REQUEST_HEAD];
+        WebServerRequestParser parser = new WebServerRequestParser();
+        for (int i = 0; i < n; i++) {
+            in.reset();
+            if (variant.equals("perbyte")) {
+                sink += perByte(in);
+            } else if (variant.equals("split")) {
+                sink += split(in, buffer);
+            } else {
+                sink += parser(in, buffer, parser);
+            }
+        }
+    }
+
+    //the original per byte read loop and split() parsing
+    private static int perByte(InputStream in) throws IOException {
+        String Http_Req = "";
+        String Http_Req_endDetect = "";
+        boolean Http_Req_read = false;
+        int b;
+        while (!Http_Req_read && (b = in.read()) != -1) {
+            Http_Req = Http_Req + (char) b;
+            if ((char) b == '\r' || (char) b == '\n') {
+                Http_Req_endDetect = Http_Req_endDetect + (char) b;
+            } else {
+                Http_Req_endDetect = "";
+            }
+            if (Http_Req_endDetect.equals("\r\n\r\n")) {
+                Http_Req_read = true;
+            }
+        }
+        return splitParse(Http_Req);
+    }
+
+    //bulk read, the head copied into a String and parsed with split()
+    private static int split(InputStream in, byte[] buffer) throws IOException {
+        int end = readHead(in, buffer);
+        return splitParse(new String(buffer, 0, end, StandardCharsets.US_ASCII));
+    }
+
+    //bulk read parsed in place
+    private static int parser(InputStream in, byte[] buffer, WebServerRequestParser parser) throws IOException {
+        int end = readHead(in, buffer);
+        parser.reset();
+        if (parser.parse(buffer, 0, end) != WebServerRequestParser.COMPLETE || !WebServerHttp.isValidGET(parser)) {
+            throw new IllegalStateException("request not parsed");
+        }
+        return parser.keepAliveRequested() ? parser.getHeadEnd() : 0;
+    }
+
+    //reads the whole request into the buffer
+    private static int readHead(InputStream in, byte[] buffer) throws IOException {
+        int end = 0;
+        int r;
+        while ((r = in.read(buffer, end, buffer.length - end)) > 0) {
+            end += r;
+        }
+        return end;
+    }
+
+    //the original request line check and Connection header lookup built on split()
+    private static int splitParse(String http_req) {
+        String[] lines = http_req.split("\r\n");
+        String[] GET_header_elems = lines[0].split(" ");
+        if (GET_header_elems.length != 3 || !GET_header_elems[0].equals("GET") || !GET_header_elems[2].equals("HTTP/1.1")) {
+            throw new IllegalStateException("request not parsed");
+        }
+        String connection = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Connection")) {
+                connection = lines[i].substring(colon + 1).trim();
+                break;
+            }
+        }
+        boolean keep_alive = connection == null || !connection.toLowerCase().contains("close");
+        return keep_alive ? http_req.length() : 0;
+    }
+}
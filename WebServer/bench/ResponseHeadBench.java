@@ -0,0 +1,113 @@
+
+/**
+ * ResponseHeadBench Class
+ * Compares the cost of building response heads the original way and with the prebuilt templates
+ *  strings    - the original builders: a new SimpleDateFormat per response, header strings concatenated,
+ *               then converted with getBytes("US-ASCII")
+ *  templates  - WebServerHttp builders: byte templates, the WebServerClock date and the object headers
+ *               copied into the connection's reusable WebServerResponseHead
+ *
+ * For the 200 Ok head both variants start from object headers built once (as the content cache holds them).
+ * Reported per response: time and heap bytes allocated (measured with the thread allocation counter
+ * of the HotSpot ThreadMXBean). JMH is not available to this source tree, so this is a plain
+ * warm-up-then-measure harness.
+ *
+ * Run from the WebServer directory:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out ResponseHeadBench [responses per round, default 1000000]
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class ResponseHeadBench {
+
+    //object headers of a typical cached object
+    private static final String OBJECT_HEADERS =
+        "Last-Modified: Sun, 10 Mar 2024 03:22:36 GMT\r\n" +
+        "Content-Length: 33183\r\n" +
+        "Content-Type: image/jpeg\r\n";
+    private static final byte[] OBJECT_HEADER_BYTES = OBJECT_HEADERS.getBytes(StandardCharsets.US_ASCII);
+
+    //keeps the results alive so the JIT cannot drop the work
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        System.out.println(String.format("%-10s %-10s %12s %14s", "response", "variant", "ns/response", "bytes/response"));
+        for (String response : new String[] {"200", "404", "408"}) {
+            for (String variant : new String[] {"strings", "templates"}) {
+                //warm up, then measure
+                run(response, variant, n);
+                long bytes = threads.getThreadAllocatedBytes(tid);
+                long start = System.nanoTime();
+                run(response, variant, n);
+                long nanos = System.nanoTime() - start;
+                bytes = threads.getThreadAllocatedBytes(tid) - bytes;
+                System.out.println(String.format("%-10s %-10s %12.1f %14.1f", response, variant, (double) nanos / n, (double) bytes / n));
+            }
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    //builds the response n times with the given variant
+    private static void run(String response, String variant, int n) throws UnsupportedEncodingException {
+        WebServerResponseHead head = new WebServerResponseHead();
+        for (int i = 0; i < n; i++) {
+            if (variant.equals("strings")) {
+                byte[] b;
+                if (response.equals("200")) {
+                    b = okResponseString(OBJECT_HEADERS, true).getBytes("US-ASCII");
+                } else if (response.equals("404")) {
+                    b = statusResponseString("404 Not Found", true).getBytes("US-ASCII");
+                } else {
+                    b = statusResponseString("408 Request Timeout", false).getBytes("US-ASCII");
+                }
+                sink += b.length;
+            } else {
+                if (response.equals("200")) {
+                    WebServerHttp.okResponseHead(head, OBJECT_HEADER_BYTES, true);
+                } else if (response.equals("404")) {
+                    WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_404, true);
+                } else {
+                    WebServerHttp.statusResponse(head, WebServerHttp.RESPONSE_408, false);
+                }
+                sink += head.length();
+            }
+        }
+    }
+
+    //the original 200 Ok head builder
+    private static String okResponseString(String object_headers, boolean keep_alive) {
+        SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss zzz");
+        String currentDate_formatted = dateFormatter.format(new Date());
+        String ConnectionVal = keep_alive ? "keep-alive" : "close";
+        return
+            "HTTP/1.1 200 Ok\r\n"+
+            "Server: " + WebServerHttp.SERVER_NAME + "\r\n" +
+            "Date: " + currentDate_formatted + "\r\n"+
+            object_headers +
+            "Connection: " + ConnectionVal + "\r\n" +
+            "\r\n";
+    }
+
+    //the original body-less response builder
+    private static String statusResponseString(String status, boolean keep_alive) {
+        SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss zzz");
+        String currentDate_formatted = dateFormatter.format(new Date());
+        String ConnectionVal = keep_alive ? "keep-alive" : "close";
+        return
+            "HTTP/1.1 " + status + "\r\n"+
+            "Server: " + WebServerHttp.SERVER_NAME + "\r\n" +
+            "Date: " + currentDate_formatted + "\r\n"+
+            "Content-Length: 0\r\n"+
+            "Connection: " + ConnectionVal + "\r\n" +
+            "\r\n";
+    }
+}
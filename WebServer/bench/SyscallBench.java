@@ -0,0 +1,187 @@
+
+/**
+ * SyscallBench Class
+ * Counts the write system calls the WebServer makes per response, and the latency of back to back requests
+ *
+ * For each server mode and for the content cache on and off, the benchmark starts a WebServer in the same JVM
+ * and sends requests for objects of a few sizes one after another over a single keep-alive connection.
+ * The write calls are read from /proc/self/io (syscw, which counts write, writev and sendfile alike) before and
+ * after the measured requests; the client makes exactly one write per request, which is taken off, the rest are
+ * the server's. The access log is off so its writer adds none. Linux only.
+ * The client leaves Nagle's algorithm on, like most clients, so a response split over several small writes
+ * shows up in the latency as well (the client's delayed acknowledgement holds back the last write).
+ *
+ * Run from the WebServer directory (objects are created in a temporary directory under user.dir):
+ *   javac -d out *.java bench/*.java
+ *   java -cp out SyscallBench [-m thread,pool,nio] [-n requests] [-sizes 512,4096,65536,1048576] [BenchHarness -o option]
+ * Results are written to bench-syscalls.json unless -o is given.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class SyscallBench {
+
+    private static final int PORT = 2029;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = BenchHarness.options(args);
+        String[] modes = params.getOrDefault("-m", "thread,pool,nio").split(",");
+        int requests = Integer.parseInt(params.getOrDefault("-n", "200"));
+        String[] sizes = params.getOrDefault("-sizes", "512,4096,65536,1048576").split(",");
+        BenchHarness harness = new BenchHarness("syscalls", args);
+        if (!new File("/proc/self/io").canRead()) {
+            System.out.println("Error: /proc/self/io is not readable, the write calls can not be counted");
+            System.exit(1);
+        }
+
+        //the objects, under user.dir so the server can serve them
+        File dir = Files.createTempDirectory(Paths.get(System.getProperty("user.dir")), "bench_syscalls_").toFile();
+        String[] paths = new String[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            File obj = new File(dir, "object_" + sizes[i] + ".bin");
+            createObject(obj, Integer.parseInt(sizes[i]));
+            paths[i] = "/" + dir.getName() + "/" + obj.getName();
+        }
+
+        PrintStream console = System.out;
+        try {
+            for (String mode : modes) {
+                for (boolean cached : new boolean[] {true, false}) {
+                    //the server reports on standard output, keep that out of the measurement
+                    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                    WebServerConfig config = new WebServerConfig(0);
+                    config.mode = mode;
+                    config.accessLog = "off";
+                    config.maxRequests = Integer.MAX_VALUE;
+                    config.cacheMaxEntry = 2*1024*1024;
+                    if (!cached) {
+                        config.cacheBytes = 0;
+                    }
+                    WebServer server = new WebServer(PORT, config);
+                    server.start();
+                    Thread.sleep(200);
+
+                    List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+                    try (Socket sock = new Socket(InetAddress.getLocalHost(), PORT)) {
+                        InputStream in = new BufferedInputStream(sock.getInputStream(), 64*1024);
+                        OutputStream out = sock.getOutputStream();
+                        for (int i = 0; i < paths.length; i++) {
+                            byte[] request = ("GET " + paths[i] + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                            for (int r = 0; r < 20; r++) {
+                                out.write(request);
+                                readResponse(in);
+                            }
+                            long writes = writeCalls();
+                            long start = System.nanoTime();
+                            for (int r = 0; r < requests; r++) {
+                                out.write(request);
+                                readResponse(in);
+                            }
+                            long elapsed = System.nanoTime() - start;
+                            double per_response = (double) (writeCalls() - writes - requests) / requests;
+
+                            String name = "syscalls." + mode + (cached ? ".cached." : ".uncached.") + sizes[i];
+                            results.add(result(name + ".writes", "per response", per_response));
+                            results.add(result(name + ".latency", "us", elapsed / 1000.0 / requests));
+                        }
+                    }
+                    server.shutdown();
+                    server.join();
+                    System.setOut(console);
+                    for (Map<String, Object> r : results) {
+                        harness.add(r);
+                    }
+                }
+            }
+        } finally {
+            System.setOut(console);
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+
+        Map<String, Object> settings = new LinkedHashMap<String, Object>();
+        settings.put("requests", requests);
+        settings.put("sizes", String.join(",", sizes));
+        harness.finish(settings);
+        System.exit(0);
+    }
+
+    private static Map<String, Object> result(String name, String unit, double score) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("benchmark", name);
+        result.put("mode", "avgt");
+        result.put("unit", unit);
+        result.put("score", score);
+        return result;
+    }
+
+    //write system calls made by the whole process so far
+    private static long writeCalls() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+            if (line.startsWith("syscw:")) {
+                return Long.parseLong(line.substring(6).trim());
+            }
+        }
+        throw new IOException("no syscw in /proc/self/io");
+    }
+
+    private static void createObject(File obj, int bytes) throws IOException {
+        byte[] content = new byte[bytes];
+        new Random(1).nextBytes(content);
+        try (RandomAccessFile out = new RandomAccessFile(obj, "rw")) {
+            out.write(content);
+        }
+    }
+
+    //reads one response (with a Content-Length body), throws if the server closed the connection
+    private static void readResponse(InputStream in) throws IOException {
+        long length = 0;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("connection closed in response head");
+            }
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            String l = line.toString().trim().toLowerCase();
+            line.setLength(0);
+            if (l.isEmpty()) {
+                break;
+            }
+            if (l.startsWith("content-length:")) {
+                length = Long.parseLong(l.substring(15).trim());
+            }
+        }
+        for (long remaining = length; remaining > 0; ) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("connection closed in response body");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}